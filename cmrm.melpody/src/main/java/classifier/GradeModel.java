@@ -0,0 +1,308 @@
+package classifier;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import melpody.midi.note.NoteLength;
+
+/**
+ * @author Giorgio De Luca
+ *
+ * Class to define the probabilities of the grades used by {@link NoteRank} (a preset).
+ *
+ * The grades are grouped in three stability classes (high, medium and low probability): each class has a weight, the grades
+ * belonging to the class and the lengths of the notes that prefer the class. The preset is compiled in tables (grade -> class,
+ * class -> probability, length -> order of the classes) and it is never modified: a new preset replaces the previous one.
+ *
+ * The preset is read from a properties file (grades from 1 = root of the chord to 8):
+ * HIGH_GRADES=1,5
+ * HIGH_WEIGHT=5/17
+ * HIGH_LENGTHS=WHOLE_NOTE,HALF_NOTE,QUARTER_NOTE
+ * and the same values for the classes MED and LOW.
+ */
+public final class GradeModel {
+
+	public static final String DEFAULT_NAME = "default";
+
+	public static final int HIGH_CLASS = 0;
+	public static final int MED_CLASS = 1;
+	public static final int LOW_CLASS = 2;
+	public static final int NO_CLASS = -1;
+
+	public static final int MAX_GRADES = 8;
+
+	private static final String[] CLASS_NAMES = {"HIGH", "MED", "LOW"};
+	private static final int CLASS_COUNT = CLASS_NAMES.length;
+	private static final int[] NOVELTY_CLASS_ORDER = {LOW_CLASS, MED_CLASS, HIGH_CLASS};
+	private static final double[] DEFAULT_WEIGHTS = {5D/17D, 3D/17D, 1D/17D};
+
+	private static final GradeModel DEFAULT = createDefault();
+
+	private final String name;
+	private final int[] gradeClass;
+	private final double[] classProbability;
+	private final String[] classDescription;
+	//Order of the classes tried for each length of the note (position 0 = length not defined)
+	private final int[][] classOrder;
+	//True if the class is selected by the length of the note (position 0 = length not defined)
+	private final boolean[][] preferredClass;
+
+	private GradeModel(String name, int[] gradeClass, double[] classWeight, boolean[][] classLength) {
+		this.name = name;
+		this.gradeClass = gradeClass;
+		this.classProbability = classWeight;
+
+		classDescription = new String[CLASS_COUNT];
+		for(int c = 0; c < CLASS_COUNT; c++) {
+			classDescription[c] = CLASS_NAMES[c].charAt(0) + CLASS_NAMES[c].substring(1).toLowerCase() + " prob: " + getGrades(c);
+		}
+
+		classOrder = new int[NoteLength.values().length + 1][];
+		preferredClass = new boolean[NoteLength.values().length + 1][];
+		for(int i = 0; i < classOrder.length; i++) {
+			preferredClass[i] = new boolean[CLASS_COUNT];
+			for(int c = 0; c < CLASS_COUNT; c++) {
+				preferredClass[i][c] = i > 0 && classLength[c][i - 1];
+			}
+			classOrder[i] = getClassOrder(preferredClass[i], classWeight);
+		}
+	}
+
+	/**
+	 * Returns the preset defined by the slides of the project: 1 and 5 (5/17), 3 and 7 (3/17), 2, 4 and 6 (1/17), 8 not ranked
+	 * @return the default preset
+	 */
+	public static GradeModel getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Use this method to compile a preset from its properties, the values not defined are taken from the default preset.
+	 * A class without grades takes the default grades not assigned by the preset to another class (e.g. HIGH_GRADES=1,3,5
+	 * leaves 7 to the medium class)
+	 * @param name the name of the preset
+	 * @param properties the properties of the preset
+	 * @return the compiled preset
+	 * @throws IllegalArgumentException if a value is not valid
+	 */
+	public static GradeModel parse(String name, Properties properties) {
+		int[] gradeClass = new int[MAX_GRADES];
+		double[] classWeight = new double[CLASS_COUNT];
+		boolean[][] classLength = new boolean[CLASS_COUNT][NoteLength.values().length];
+		Arrays.fill(gradeClass, NO_CLASS);
+
+		//Prima i gradi definiti dal preset, poi le classi non definite prendono i gradi di default rimasti liberi
+		for(int c = 0; c < CLASS_COUNT; c++) {
+			String grades = properties.getProperty(CLASS_NAMES[c] + "_GRADES");
+			if(grades == null) {
+				continue;
+			}
+			for(String value : split(grades)) {
+				int grade = Integer.parseInt(value) - 1;
+				if(grade < 0 || grade >= MAX_GRADES) {
+					throw new IllegalArgumentException("Preset " + name + ": grade " + value + " out of range (1-" + MAX_GRADES + ")");
+				}
+				if(gradeClass[grade] != NO_CLASS) {
+					throw new IllegalArgumentException("Preset " + name + ": grade " + value + " assigned to more classes");
+				}
+				gradeClass[grade] = c;
+			}
+		}
+
+		for(int c = 0; c < CLASS_COUNT; c++) {
+			if(properties.getProperty(CLASS_NAMES[c] + "_GRADES") == null) {
+				for(int grade = 0; grade < MAX_GRADES; grade++) {
+					if(gradeClass[grade] == NO_CLASS && DEFAULT.gradeClass[grade] == c) {
+						gradeClass[grade] = c;
+					}
+				}
+			}
+
+			String weight = properties.getProperty(CLASS_NAMES[c] + "_WEIGHT");
+			classWeight[c] = weight != null ? parseWeight(weight.trim()) : DEFAULT_WEIGHTS[c];
+			if(!(classWeight[c] > 0D)) {
+				throw new IllegalArgumentException("Preset " + name + ": the weight of the class " + CLASS_NAMES[c] + " must be positive");
+			}
+
+			String lengths = properties.getProperty(CLASS_NAMES[c] + "_LENGTHS");
+			if(lengths != null) {
+				for(String value : split(lengths)) {
+					classLength[c][NoteLength.valueOf(value).ordinal()] = true;
+				}
+			}else {
+				for(NoteLength noteLength : NoteLength.values()) {
+					classLength[c][noteLength.ordinal()] = DEFAULT.preferredClass[noteLength.ordinal() + 1][c];
+				}
+			}
+		}
+
+		return new GradeModel(name, gradeClass, classWeight, classLength);
+	}
+
+	private static GradeModel createDefault() {
+		int[] gradeClass = {HIGH_CLASS, LOW_CLASS, MED_CLASS, LOW_CLASS, HIGH_CLASS, LOW_CLASS, MED_CLASS, NO_CLASS};
+		double[] classWeight = DEFAULT_WEIGHTS.clone();
+		boolean[][] classLength = new boolean[CLASS_COUNT][NoteLength.values().length];
+
+		for(NoteLength noteLength : NoteLength.values()) {
+			classLength[HIGH_CLASS][noteLength.ordinal()] = NoteLength.getSlowNoteLengths().contains(noteLength);
+			classLength[MED_CLASS][noteLength.ordinal()] = NoteLength.getMediumNoteLengths().contains(noteLength);
+			classLength[LOW_CLASS][noteLength.ordinal()] = NoteLength.getFastNoteLengths().contains(noteLength);
+		}
+
+		return new GradeModel(DEFAULT_NAME, gradeClass, classWeight, classLength);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the class of a grade
+	 * @param grade the grade (0 = root of the chord)
+	 * @return the class, {@link #NO_CLASS} if the grade is not ranked
+	 */
+	public int getGradeClass(int grade) {
+		return grade >= 0 && grade < gradeClass.length ? gradeClass[grade] : NO_CLASS;
+	}
+
+	public double getClassProbability(int gradeClass) {
+		return classProbability[gradeClass];
+	}
+
+	public String getClassDescription(int gradeClass) {
+		return classDescription[gradeClass];
+	}
+
+	/**
+	 * Returns the order in which the classes are tried for a stable note of a specific length
+	 * @param noteLength the length of the note, it can be null
+	 * @return the classes, the shared array must not be modified
+	 */
+	public int[] getClassOrder(NoteLength noteLength) {
+		return classOrder[noteLength != null ? noteLength.ordinal() + 1 : 0];
+	}
+
+	/**
+	 * Returns the order in which the classes are tried for a note that creates tension
+	 * @return the classes, the shared array must not be modified
+	 */
+	public int[] getNoveltyClassOrder() {
+		return NOVELTY_CLASS_ORDER;
+	}
+
+	/**
+	 * Returns true if the class is the one selected by the length of the note (as opposed to the default order of the classes)
+	 * @param noteLength the length of the note, it can be null
+	 * @param gradeClass the class
+	 * @return true if the length prefers the class
+	 */
+	public boolean isPreferredClass(NoteLength noteLength, int gradeClass) {
+		return preferredClass[noteLength != null ? noteLength.ordinal() + 1 : 0][gradeClass];
+	}
+
+	/**
+	 * Returns the probability assigned to a grade of the scale
+	 * @param grade the grade (0 = root of the chord)
+	 * @return the probability, 0 if the grade is not ranked
+	 */
+	public double getGradeProbability(int grade) {
+		int c = getGradeClass(grade);
+		return c != NO_CLASS ? classProbability[c] : 0D;
+	}
+
+	/**
+	 * Use this method to evaluate the stability of a grade for a note of a specific length, with the same criteria used
+	 * to select a stable note
+	 * @param grade the grade (0 = root of the chord)
+	 * @param noteLength the length of the note
+	 * @return the score, between 0 (grade not ranked) and 1 (grade of the class with the highest probability preferred for the length)
+	 */
+	public double getStabilityScore(int grade, NoteLength noteLength) {
+		int c = getGradeClass(grade);
+		if(c == NO_CLASS) {
+			return 0D;
+		}
+
+		double maxProbability = Math.max(classProbability[HIGH_CLASS], Math.max(classProbability[MED_CLASS], classProbability[LOW_CLASS]));
+		return (classProbability[c] / maxProbability + (c == getClassOrder(noteLength)[0] ? 1D : 0D)) / 2D;
+	}
+
+	/**
+	 * Returns true if the grade is one of the grades selected first by the novelty
+	 * @param grade the grade (0 = root of the chord)
+	 * @return true if the grade creates tension
+	 */
+	public boolean isTensionGrade(int grade) {
+		return getGradeClass(grade) == NOVELTY_CLASS_ORDER[0];
+	}
+
+	private String getGrades(int c) {
+		StringBuilder grades = new StringBuilder();
+		for(int grade = 0; grade < gradeClass.length; grade++) {
+			if(gradeClass[grade] == c) {
+				grades.append(grades.length() > 0 ? "," : "").append(grade + 1);
+			}
+		}
+		return grades.toString();
+	}
+
+	/**
+	 * This method computes the order of the classes: the classes preferred by the length of the note, then the other classes
+	 * from the highest probability
+	 */
+	private static int[] getClassOrder(boolean[] preferred, double[] probability) {
+		int[] order = new int[CLASS_COUNT];
+		int size = 0;
+
+		for(int c = 0; c < CLASS_COUNT; c++) {
+			if(preferred[c]) {
+				order[size++] = c;
+			}
+		}
+
+		int firstOther = size;
+		for(int c = 0; c < CLASS_COUNT; c++) {
+			if(!preferred[c]) {
+				//Inserimento ordinato per probabilita' decrescente
+				int idx = size++;
+				while(idx > firstOther && probability[order[idx - 1]] < probability[c]) {
+					order[idx] = order[idx - 1];
+					idx--;
+				}
+				order[idx] = c;
+			}
+		}
+
+		return order;
+	}
+
+	/**
+	 * This method reads a weight written as a number or as a fraction (e.g. 5/17)
+	 */
+	private static double parseWeight(String weight) {
+		int idx = weight.indexOf('/');
+		if(idx < 0) {
+			return Double.parseDouble(weight);
+		}
+		return Double.parseDouble(weight.substring(0, idx).trim()) / Double.parseDouble(weight.substring(idx + 1).trim());
+	}
+
+	private static String[] split(String values) {
+		String[] tokens = values.split(",");
+		int size = 0;
+		for(String token : tokens) {
+			if(!token.trim().isEmpty()) {
+				tokens[size++] = token.trim();
+			}
+		}
+		return Arrays.copyOf(tokens, size);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + classDescription[HIGH_CLASS] + " = " + classProbability[HIGH_CLASS] + ", " + classDescription[MED_CLASS] + " = "
+				+ classProbability[MED_CLASS] + ", " + classDescription[LOW_CLASS] + " = " + classProbability[LOW_CLASS] + ")";
+	}
+
+}
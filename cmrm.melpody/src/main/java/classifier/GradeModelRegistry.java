@@ -0,0 +1,196 @@
+package classifier;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import melpody.MelpodyMain;
+
+/**
+ * @author Giorgio De Luca
+ *
+ * Class to collect the presets of the grade probabilities ({@link GradeModel}), read from the files with extension
+ * ".grades" of a directory (the name of the preset is the name of the file).
+ *
+ * The presets are kept in a map that is never modified: when a file changes, a new map is created with the new preset
+ * and it replaces the previous one atomically. A job takes its preset once, at the beginning, so the jobs already started
+ * continue with the previous version of the preset and they are never stopped by a reload.
+ */
+public final class GradeModelRegistry {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String PRESET_DIRECTORY_PROPERTY = "GRADE_PRESET_DIRECTORY";
+	public static final String PRESET_PROPERTY = "GRADE_PRESET";
+	public static final String PRESET_EXTENSION = ".grades";
+
+	private static final AtomicReference<Map<String, GradeModel>> models = new AtomicReference<Map<String, GradeModel>>(getDefaultModels());
+	private static Thread watcher;
+	private static File watchedDirectory;
+
+	private GradeModelRegistry() {}
+
+	/**
+	 * Use this method to load the presets of the directory defined by the property GRADE_PRESET_DIRECTORY and to reload them
+	 * when the files change. Without the property only the default preset is available. A new directory replaces the presets
+	 * and the watch of the previous one.
+	 * @param properties the properties of the process
+	 */
+	public static synchronized void initialize(Properties properties) {
+		String directoryName = properties.getProperty(PRESET_DIRECTORY_PROPERTY);
+		if(directoryName == null || directoryName.trim().isEmpty()) {
+			return;
+		}
+
+		File directory = new File(directoryName.trim());
+		if(!directory.isDirectory()) {
+			log.warning("Grade preset directory " + directory + " not found: default preset used");
+			return;
+		}
+
+		if(watcher != null && (!watcher.isAlive() || !directory.getAbsoluteFile().equals(watchedDirectory))) {
+			//La directory e' cambiata (o non e' piu' osservata): fermo il watcher precedente, l'attesa evita che ricarichi la vecchia directory dopo la nuova
+			watcher.interrupt();
+			try {
+				watcher.join();
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			watcher = null;
+			watchedDirectory = null;
+		}
+
+		if(watcher == null) {
+			//Registro la directory prima di leggerla: nessuna modifica va persa tra la lettura e l'attesa
+			try {
+				WatchService watchService = FileSystems.getDefault().newWatchService();
+				directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				watcher = new Thread(() -> watch(directory, watchService), "melpody-grade-preset-watcher");
+				watcher.setDaemon(true);
+				watcher.start();
+				watchedDirectory = directory.getAbsoluteFile();
+			}catch(IOException e) {
+				log.log(Level.SEVERE, "Grade preset directory " + directory + " cannot be watched", e);
+			}
+		}
+
+		load(directory);
+	}
+
+	/**
+	 * Use this method to read again all the presets of a directory. A preset that cannot be read keeps its previous version
+	 * @param directory the directory of the presets
+	 */
+	public static void load(File directory) {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(PRESET_EXTENSION));
+		if(files == null) {
+			return;
+		}
+
+		Map<String, GradeModel> previousModels;
+		Map<String, GradeModel> newModels;
+		do {
+			previousModels = models.get();
+			newModels = new HashMap<String, GradeModel>(getDefaultModels());
+
+			for(File file : files) {
+				String name = file.getName().substring(0, file.getName().length() - PRESET_EXTENSION.length());
+				try(Reader reader = new FileReader(file)) {
+					Properties properties = new Properties();
+					properties.load(reader);
+					newModels.put(name, GradeModel.parse(name, properties));
+				}catch(IOException | IllegalArgumentException e) {
+					log.severe("Grade preset " + file + " not valid: " + e.getMessage());
+					if(previousModels.containsKey(name)) {
+						newModels.put(name, previousModels.get(name));
+					}
+				}
+			}
+		}while(!models.compareAndSet(previousModels, Collections.unmodifiableMap(newModels)));
+
+		log.info("Grade presets loaded: " + newModels.keySet());
+	}
+
+	/**
+	 * Use this method to retrieve a preset
+	 * @param name the name of the preset, null for the default preset
+	 * @return the preset, the default preset if the name is not defined
+	 */
+	public static GradeModel getModel(String name) {
+		if(name == null || name.trim().isEmpty()) {
+			return GradeModel.getDefault();
+		}
+
+		GradeModel model = models.get().get(name.trim());
+		if(model == null) {
+			log.warning("Grade preset " + name + " not found: default preset used");
+			return GradeModel.getDefault();
+		}
+		return model;
+	}
+
+	/**
+	 * Use this method to retrieve a preset requested explicitly (e.g. by a client of the service), without the default preset
+	 * as fallback
+	 * @param name the name of the preset
+	 * @return the preset
+	 * @throws IllegalArgumentException if the preset is not defined
+	 */
+	public static GradeModel getDefinedModel(String name) {
+		GradeModel model = name != null ? models.get().get(name.trim()) : null;
+		if(model == null) {
+			throw new IllegalArgumentException("Grade preset " + name + " not found, presets available: " + models.get().keySet());
+		}
+		return model;
+	}
+
+	/**
+	 * Use this method to retrieve the preset selected by the property GRADE_PRESET
+	 * @param properties the properties of the process
+	 * @return the preset
+	 */
+	public static GradeModel getModel(Properties properties) {
+		return getModel(properties.getProperty(PRESET_PROPERTY));
+	}
+
+	private static Map<String, GradeModel> getDefaultModels() {
+		return Collections.singletonMap(GradeModel.DEFAULT_NAME, GradeModel.getDefault());
+	}
+
+	/**
+	 * This method waits the changes of the files of the directory and reloads the presets
+	 */
+	private static void watch(File directory, WatchService watchService) {
+		try(WatchService service = watchService) {
+			while(!Thread.currentThread().isInterrupted()) {
+				WatchKey key = service.take();
+				//Un salvataggio produce piu' eventi: li raccolgo tutti prima di ricaricare
+				Thread.sleep(100);
+				key.pollEvents();
+				load(directory);
+
+				if(!key.reset()) {
+					log.warning("Grade preset directory " + directory + " no longer available");
+					return;
+				}
+			}
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}catch(IOException e) {
+			log.log(Level.SEVERE, "Grade preset directory " + directory + " cannot be watched", e);
+		}
+	}
+
+}
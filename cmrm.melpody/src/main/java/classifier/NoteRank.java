@@ -1,187 +1,264 @@
 package classifier;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.logging.Logger;
 
-import exception.MelpodySelectionProcessException;
 import melpody.MelpodyMain;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.chord.ScaleCatalogue;
 import melpody.midi.note.MidiNote;
+import melpody.midi.note.Note;
 import melpody.midi.note.NoteLength;
+import melpody.random.RandomSource;
 
 /**
  * @author Giorgio De Luca
- * Class to select the final output note from a context restricted to harmony, novelty and length of the note. 
- * 
+ * Class to select the final output note from a context restricted to harmony, novelty and length of the note.
+ *
  * Selection is based on the grade stability explained into the slides of the project.
- * 
+ *
+ * The grade of each pitch class for each scale of the {@link ScaleCatalogue} and each position of the root of the chord is computed
+ * once in a table. The stability classes of the grades, their probabilities and the order in which the classes are tried for each
+ * length of the note are defined by a preset ({@link GradeModel}), chosen by the caller. The selection of a note does not create any object.
+ *
  */
 public final class NoteRank {
 
 	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
-	private static Map<Double, Set<Integer>> noteProbabilityMap = new TreeMap<Double, Set<Integer>>();
-	
-	private static final double LOW_PROB = 1D/17D;
-	private static final double MED_PROB = 3D/17D;
-	private static final double HIGH_PROB = 5D/17D;
+
+	private static final int HIGH_CLASS = GradeModel.HIGH_CLASS;
+	private static final int MED_CLASS = GradeModel.MED_CLASS;
+	private static final int NO_CLASS = GradeModel.NO_CLASS;
+
+	//Grade of each pitch class for each scale of the catalogue and position of the root of the chord: [scale][offset * 12 + pitch class]
+	private static final byte[][] GRADE_TABLE = new byte[ScaleCatalogue.SIZE][GradeModel.MAX_GRADES * 12];
+
+	static {
+		for(int scaleIndex = 0; scaleIndex < ScaleCatalogue.SIZE; scaleIndex++) {
+			PossibleScale scale = ScaleCatalogue.getScale(scaleIndex);
+			byte[] grades = GRADE_TABLE[scaleIndex];
+			Arrays.fill(grades, (byte) -1);
+
+			for(int offset = 0; offset < scale.size(); offset++) {
+				for(int i = 0; i < scale.size(); i++) {
+					grades[offset * 12 + scale.getNote((i + offset) % scale.size()).getOffsetFromC()] = (byte) i;
+				}
+			}
+		}
+	}
 
 	private NoteRank() {}
-	
+
+	/**
+	 * The tables of the ranking are computed when the class is loaded: the method only forces the loading of the class
+	 */
 	public static void initialize() {
-		Set<Integer> set15 = new TreeSet<Integer>();
-		set15.add(0);
-		set15.add(4);
-		noteProbabilityMap.put(5D/17D, set15);
-		
-		Set<Integer> set73 = new TreeSet<Integer>();
-		set73.add(2);
-		set73.add(6);
-		noteProbabilityMap.put(3D/17D, set73);
-		
-		Set<Integer> set246 = new TreeSet<Integer>();
-		set246.add(1);
-		set246.add(3);
-		set246.add(5);
-		noteProbabilityMap.put(1D/17D, set246);
+		log.fine(() -> "Note ranking tables: " + GRADE_TABLE.length + " scales");
 	}
 
 	/**
 	 * Use this method to select a note among possible notes in input.
-	 * 
+	 *
 	 * Novelty boolean is used and apply a total different algorithm based on the lowest probability notes found the note list.
-	 * 
+	 *
+	 * @param model the probabilities of the grades
 	 * @param noteLength the length of the output note
-	 * @param novelty the novelty boolean 
+	 * @param novelty the novelty boolean
 	 * @param indexOffset the offset between the root fundamental of the harmony and the root of the scale selected
 	 * @param possibleNoteList the possible note list
-	 * @param scaleNotes the set of notes in the selected scale
-	 * @return the midi note to be written in output
-	 * @throws Exception
+	 * @param scale the selected scale
+	 * @param random the source of the random choice among the notes of the same class
+	 * @return the midi note to be written in output, null if no possible note has a ranked grade in the scale
 	 */
-	public static MidiNote getNoteFromParameterAndRanking(NoteLength noteLength, boolean novelty, int indexOffset, List<MidiNote> possibleNoteList, List<MidiNote> scaleNotes) throws MelpodySelectionProcessException {
-		MidiNote returnNote = null;
-		
-		List<MidiNote>  subSetSelection = null;
-		List<Double> probabilityList = Arrays.asList(HIGH_PROB, MED_PROB, LOW_PROB);
-		List<Integer> gradesCompatibleWithScale = getAllGradesFromPossibleNotes(possibleNoteList, scaleNotes, indexOffset);
-		Map<Double, List<MidiNote>> mapCompatibleGradeProb = getMapCompatibility(gradesCompatibleWithScale, possibleNoteList);
-		
-		if(gradesCompatibleWithScale == null || 
-				gradesCompatibleWithScale.isEmpty() || 
-				mapCompatibleGradeProb == null || 
-				mapCompatibleGradeProb.isEmpty()) {
-			throw new MelpodySelectionProcessException("ATTENTION... NO grades found in the list");
+	public static MidiNote getNoteFromParameterAndRanking(GradeModel model, NoteLength noteLength, boolean novelty, int indexOffset, List<MidiNote> possibleNoteList, PossibleScale scale, RandomSource random) {
+		byte[] grades = GRADE_TABLE[scale.getCatalogueIndex()];
+		int gradeOffset = indexOffset * 12;
+
+		//Peso totale di ogni classe tra le note possibili
+		double highWeight = 0D;
+		double medWeight = 0D;
+		double lowWeight = 0D;
+
+		for(int i = 0; i < possibleNoteList.size(); i++) {
+			int gradeClass = model.getGradeClass(grades[gradeOffset + possibleNoteList.get(i).getNote().getOffsetFromC()]);
+			if(gradeClass == HIGH_CLASS) {
+				highWeight += model.getClassProbability(HIGH_CLASS);
+			}else if(gradeClass == MED_CLASS) {
+				medWeight += model.getClassProbability(MED_CLASS);
+			}else if(gradeClass != NO_CLASS) {
+				lowWeight += model.getClassProbability(gradeClass);
+			}
 		}
-		
-		//Se voglio una nota che crei tensione
+
+		if(highWeight == 0D && medWeight == 0D && lowWeight == 0D) {
+			log.fine("No grades found in the list");
+			return null;
+		}
+
+		//Se voglio una nota che crei tensione provo prima le classi meno probabili
+		int[] classOrder;
 		if(novelty) {
-			
-			log.info("Novelty activated");
-			Collections.reverse(probabilityList);
-			
-			int i = 0;
-			do {
-				Double prob = probabilityList.get(i);
-				subSetSelection = mapCompatibleGradeProb.get(prob);
-				i++;
-				log.fine("novelty index " + i);
-			}while(subSetSelection == null && i < probabilityList.size());
-			
-		}else { // se voglio una nota che crei stabilità
-			
-			if(NoteLength.getSlowNoteLengths().contains(noteLength) && mapCompatibleGradeProb.get(HIGH_PROB) != null) {
-				subSetSelection = mapCompatibleGradeProb.get(HIGH_PROB);
-				log.info("High prob: 1, 5");
-
-			}else if(NoteLength.getMediumNoteLengths().contains(noteLength) && mapCompatibleGradeProb.get(MED_PROB) != null) {
-				subSetSelection = mapCompatibleGradeProb.get(MED_PROB);
-				log.info("Med prob: 3,7");
-			
-			}else if(NoteLength.getFastNoteLengths().contains(noteLength) && mapCompatibleGradeProb.get(LOW_PROB) != null) {
-				subSetSelection = mapCompatibleGradeProb.get(LOW_PROB);
-				log.info("Low prob: 2,4,6");
-				
+			log.fine("Novelty activated");
+			classOrder = model.getNoveltyClassOrder();
+		}else {
+			classOrder = model.getClassOrder(noteLength);
+		}
+
+		int selectedClass = NO_CLASS;
+		double selectedWeight = 0D;
+		for(int i = 0; i < classOrder.length && selectedClass == NO_CLASS; i++) {
+			double weight = classOrder[i] == HIGH_CLASS ? highWeight : classOrder[i] == MED_CLASS ? medWeight : lowWeight;
+			if(weight > 0D) {
+				selectedClass = classOrder[i];
+				selectedWeight = weight;
+			}
+		}
+
+		if(!novelty) {
+			//Una riga per nota: solo nel log di dettaglio
+			int usedClass = selectedClass;
+			if(model.isPreferredClass(noteLength, selectedClass)) {
+				log.fine(() -> model.getClassDescription(usedClass));
+			}else {
+				log.fine(() -> "No grade for that prob, " + model.getClassProbability(usedClass) + " used");
 			}
 		}
-		
-		if(subSetSelection == null) {
-			log.severe("No grade for that prob");
-			for(Double prob : probabilityList) {
-				if(mapCompatibleGradeProb.get(prob) != null) {
-					subSetSelection = mapCompatibleGradeProb.get(prob);
-					log.info(prob + " used");
+
+		//Estrazione con pesi cumulativi tra le note della classe scelta
+		double target = random.nextDouble() * selectedWeight;
+		MidiNote returnNote = null;
+		for(int i = 0; i < possibleNoteList.size(); i++) {
+			MidiNote mn = possibleNoteList.get(i);
+			if(model.getGradeClass(grades[gradeOffset + mn.getNote().getOffsetFromC()]) == selectedClass) {
+				returnNote = mn;
+				target -= model.getClassProbability(selectedClass);
+				if(target < 0D) {
 					break;
 				}
 			}
 		}
-		
-		int indexSubSelection = (int) (Math.round(Math.random() * subSetSelection.size()));
-		
-		returnNote = subSetSelection.get(Math.min(indexSubSelection, subSetSelection.size() - 1));
-		
+
 		return returnNote;
 	}
 
 	/**
-	 * This method creates a map where the key is the probability assigned to the grades, and the values are the notes with that probability
-	 * @param gradesCompatibleWithScale the grades of the scale compatible with the possible notes 
-	 * @param possibleNoteList possible notes
-	 * @return the map probability-list of notes with that probability
+	 * Use this method to check if a note can be selected among the possible notes, without selecting it
+	 * @param model the probabilities of the grades
+	 * @param indexOffset the offset between the root fundamental of the harmony and the root of the scale selected
+	 * @param possibleNoteList the possible note list
+	 * @param scale the selected scale
+	 * @return true if at least one of the possible notes has a ranked grade in the scale
 	 */
-	private static Map<Double, List<MidiNote>> getMapCompatibility(List<Integer> gradesCompatibleWithScale, List<MidiNote> possibleNoteList) {
-		
-		Map<Double, List<MidiNote>> returnMap = new TreeMap<Double, List<MidiNote>>();
-		
-		int idx = 0;
-		for(Integer grade : gradesCompatibleWithScale) {
-			for(Double prob : noteProbabilityMap.keySet()) {
-				for(Integer i : noteProbabilityMap.get(prob)) {
-					if(i.intValue() == grade.intValue()) {
-						List<MidiNote> grades = returnMap.get(prob);
-						if(grades == null) {
-							grades = new ArrayList<MidiNote>();
-						}
-						grades.add(possibleNoteList.get(idx));
-						returnMap.put(prob, grades);
-					}
-				}
+	public static boolean hasRankedGrade(GradeModel model, int indexOffset, List<MidiNote> possibleNoteList, PossibleScale scale) {
+		byte[] grades = GRADE_TABLE[scale.getCatalogueIndex()];
+		int gradeOffset = indexOffset * 12;
+
+		for(int i = 0; i < possibleNoteList.size(); i++) {
+			if(model.getGradeClass(grades[gradeOffset + possibleNoteList.get(i).getNote().getOffsetFromC()]) != NO_CLASS) {
+				return true;
 			}
-			idx++;
 		}
-		
-		return returnMap;
+
+		return false;
 	}
 
 	/**
-	 * This method creates a list of integer representing the list of grades of a given scale compatible to a set of notes
-	 * @param possibleNoteList the set of notes
-	 * @param scaleNotes the notes of the scale
-	 * @param indexOffset the offset between the root fundamental of the harmony and the root of the scale selected 
-	 * @return the list of compatible grades of the scale
+	 * Use this method to select a note among possible midi keys, with the same criteria of
+	 * {@link #getNoteFromParameterAndRanking(GradeModel, NoteLength, boolean, int, List, PossibleScale, RandomSource)}.
+	 * The method does not create any object and it does not write in the log: it can be used by the real time selection.
+	 *
+	 * @param model the probabilities of the grades
+	 * @param noteLength the length of the output note, it can be null
+	 * @param novelty the novelty boolean
+	 * @param indexOffset the offset between the root fundamental of the harmony and the root of the scale selected
+	 * @param possibleKeys the possible midi keys, from position 0
+	 * @param possibleKeyCount the number of possible midi keys
+	 * @param scale the selected scale
+	 * @param random the source of the random choice among the notes of the same class
+	 * @return the midi key to be written in output, -1 if no possible key has a ranked grade in the scale
 	 */
-	private static List<Integer> getAllGradesFromPossibleNotes(List<MidiNote> possibleNoteList, List<MidiNote> scaleNotes, int indexOffset) {
-		List<Integer> returnList = null;
-		if(possibleNoteList != null && !possibleNoteList.isEmpty()) {
-			returnList = new ArrayList<Integer>();
-			
-			for(MidiNote pn : possibleNoteList) {
-				
-				for(int i = 0; i < scaleNotes.size(); i++) {
-					int idx = (i + indexOffset) % scaleNotes.size();
-					if(scaleNotes.get(idx).getNote().equals(pn.getNote())) {
-						returnList.add(i);
-					}
+	public static int getKeyFromParameterAndRanking(GradeModel model, NoteLength noteLength, boolean novelty, int indexOffset, int[] possibleKeys, int possibleKeyCount, PossibleScale scale, RandomSource random) {
+		byte[] grades = GRADE_TABLE[scale.getCatalogueIndex()];
+		int gradeOffset = indexOffset * 12;
+
+		double highWeight = 0D;
+		double medWeight = 0D;
+		double lowWeight = 0D;
+
+		for(int i = 0; i < possibleKeyCount; i++) {
+			int gradeClass = model.getGradeClass(grades[gradeOffset + possibleKeys[i] % 12]);
+			if(gradeClass == HIGH_CLASS) {
+				highWeight += model.getClassProbability(HIGH_CLASS);
+			}else if(gradeClass == MED_CLASS) {
+				medWeight += model.getClassProbability(MED_CLASS);
+			}else if(gradeClass != NO_CLASS) {
+				lowWeight += model.getClassProbability(gradeClass);
+			}
+		}
+
+		if(highWeight == 0D && medWeight == 0D && lowWeight == 0D) {
+			return -1;
+		}
+
+		int[] classOrder = novelty ? model.getNoveltyClassOrder() : model.getClassOrder(noteLength);
+
+		int selectedClass = NO_CLASS;
+		double selectedWeight = 0D;
+		for(int i = 0; i < classOrder.length && selectedClass == NO_CLASS; i++) {
+			double weight = classOrder[i] == HIGH_CLASS ? highWeight : classOrder[i] == MED_CLASS ? medWeight : lowWeight;
+			if(weight > 0D) {
+				selectedClass = classOrder[i];
+				selectedWeight = weight;
+			}
+		}
+
+		double target = random.nextDouble() * selectedWeight;
+		int returnKey = -1;
+		for(int i = 0; i < possibleKeyCount; i++) {
+			if(model.getGradeClass(grades[gradeOffset + possibleKeys[i] % 12]) == selectedClass) {
+				returnKey = possibleKeys[i];
+				target -= model.getClassProbability(selectedClass);
+				if(target < 0D) {
+					break;
 				}
 			}
 		}
-		
-		return returnList;
+
+		return returnKey;
+	}
+
+	/**
+	 * Use this method to check if a midi key can be selected among the possible keys, without selecting it
+	 * @param model the probabilities of the grades
+	 * @param indexOffset the offset between the root fundamental of the harmony and the root of the scale selected
+	 * @param possibleKeys the possible midi keys, from position 0
+	 * @param possibleKeyCount the number of possible midi keys
+	 * @param scale the selected scale
+	 * @return true if at least one of the possible keys has a ranked grade in the scale
+	 */
+	public static boolean hasRankedGrade(GradeModel model, int indexOffset, int[] possibleKeys, int possibleKeyCount, PossibleScale scale) {
+		byte[] grades = GRADE_TABLE[scale.getCatalogueIndex()];
+		int gradeOffset = indexOffset * 12;
+
+		for(int i = 0; i < possibleKeyCount; i++) {
+			if(model.getGradeClass(grades[gradeOffset + possibleKeys[i] % 12]) != NO_CLASS) {
+				return true;
+			}
+		}
+
+		return false;
 	}
-	
+
+	/**
+	 * Returns the grade of a note in a scale, with respect to the root of the chord
+	 * @param scale the scale
+	 * @param indexOffset the offset between the root fundamental of the harmony and the root of the scale selected
+	 * @param note the note
+	 * @return the grade (0 = root of the chord), -1 if the note does not belong to the scale
+	 */
+	public static int getGrade(PossibleScale scale, int indexOffset, Note note) {
+		return GRADE_TABLE[scale.getCatalogueIndex()][indexOffset * 12 + note.getOffsetFromC()];
+	}
+
 }
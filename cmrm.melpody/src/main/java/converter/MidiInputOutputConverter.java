@@ -15,8 +15,9 @@ import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
 
 import melpody.MelpodyMain;
+import melpody.metrics.Metrics;
+import melpody.metrics.Phase;
 import melpody.midi.note.MidiNote;
-import melpody.midi.note.Note;
 import melpody.midi.track.AbstractMidiTrack;
 import melpody.midi.track.MidiTrackFactory;
 import melpody.midi.util.MidiTemporalSequenceEvent;
@@ -32,8 +33,14 @@ public final class MidiInputOutputConverter {
 	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
 	public static final int NOTE_ON = 0x90;
 	public static final int NOTE_OFF = 0x80;
+	public static final int END_OF_TRACK = 0x2F;
 	public static MidiInputOutputConverter instance;
 	
+	//Property to select the parser of the midi files
+	public static final String MIDI_PARSER_PROPERTY = "MIDI_PARSER";
+	public static final String MAPPED_PARSER = "MAPPED";
+	public static final String JAVAX_SOUND_PARSER = "JAVAX_SOUND";
+	
 	private MidiInputOutputConverter() {}
 	
 	public static synchronized void initialize() {
@@ -43,7 +50,8 @@ public final class MidiInputOutputConverter {
 	}
 	
 	/**
-	 * Use this method to map a midi file in a Melpody usable object, using the absolute path of the file MIDI and the Melpody type of object desired 
+	 * Use this method to map a midi file in a Melpody usable object, using the absolute path of the file MIDI and the Melpody type of object desired.
+	 * The parser is selected by the property MIDI_PARSER (MAPPED by default, JAVAX_SOUND to use the javax.sound.midi API)
 	 * @param midiFilename the absolute path of midi file
 	 * @param type the Melpody type of midi track
 	 * @return the midi track object desired
@@ -51,8 +59,46 @@ public final class MidiInputOutputConverter {
 	 * @throws IOException
 	 */
 	public static <T extends AbstractMidiTrack> AbstractMidiTrack mapMidi(String midiFilename, Class<T> type) throws InvalidMidiDataException, IOException {
+		return mapMidi(midiFilename, type, MelpodyMain.properties.getProperty(MIDI_PARSER_PROPERTY, MAPPED_PARSER));
+	}
+	
+	/**
+	 * Use this method to map a midi file in a Melpody usable object, using the absolute path of the file MIDI, the Melpody type of object desired
+	 * and the parser of the file
+	 * @param midiFilename the absolute path of midi file
+	 * @param type the Melpody type of midi track
+	 * @param parser the parser of the file: MAPPED to read the file mapped in memory, JAVAX_SOUND to use the javax.sound.midi API
+	 * @return the midi track object desired
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	public static <T extends AbstractMidiTrack> AbstractMidiTrack mapMidi(String midiFilename, Class<T> type, String parser) throws InvalidMidiDataException, IOException {
 		
 		AbstractMidiTrack returnMappedMidi = MidiTrackFactory.getCorrectType(type);
+		
+		Metrics.Timer timer = Metrics.start(Phase.PARSE);
+		try {
+			if(JAVAX_SOUND_PARSER.equalsIgnoreCase(parser)) {
+				mapMidiSequence(midiFilename, returnMappedMidi);
+			}else {
+				StandardMidiFileParser.parse(midiFilename, returnMappedMidi);
+			}
+		}finally {
+			timer.close();
+		}
+		
+		return returnMappedMidi;
+	}
+	
+	/**
+	 * This method reads the midi file with the javax.sound.midi API and fills the midi track
+	 * @param midiFilename the absolute path of midi file
+	 * @param returnMappedMidi the midi track to be filled
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	private static void mapMidiSequence(String midiFilename, AbstractMidiTrack returnMappedMidi) throws InvalidMidiDataException, IOException {
+		
 		Set<Long> eventTimeList = returnMappedMidi.getEventTimeList();
 		
 		MidiTemporalSequenceEvent returnSequence = new MidiTemporalSequenceEvent();
@@ -65,39 +111,32 @@ public final class MidiInputOutputConverter {
 				MidiMessage message = track.get(i).getMessage();
 				
 				long noteTick = track.get(i).getTick();
-				MidiNote midiNote = new MidiNote();
 				
 				if (message instanceof ShortMessage) {
 					ShortMessage sm = (ShortMessage) message;
 					int key = sm.getData1();
-					int octave = (key / 12) - 1;
-					int note = key % 12;
-					midiNote.setNote(Note.getNote(note));
-					midiNote.setOctave(octave);
-					midiNote.setTimestampEventStart(noteTick);
 					
-					if (sm.getCommand() == NOTE_ON) {
-						returnSequence.add(midiNote);
-						midiNote.setVelocity(sm.getData2());
+					//NOTE_ON with velocity 0 is a NOTE_OFF (running status)
+					if (sm.getCommand() == NOTE_ON && sm.getData2() > 0) {
+						returnSequence.noteOn(sm.getChannel(), key, sm.getData2(), noteTick);
 						eventTimeList.add(noteTick);
 						
-					} else if (sm.getCommand() == NOTE_OFF) {
-						returnSequence.setNoteOff(midiNote, noteTick);
+					} else if (sm.getCommand() == NOTE_OFF || sm.getCommand() == NOTE_ON) {
+						returnSequence.noteOff(sm.getChannel(), key, noteTick);
 						
 					} 
 				} else if(message instanceof MetaMessage) {
 					MetaMessage mm = (MetaMessage) message; 
-					if(mm.getClass().getName().contains("ImmutableEndOfTrack")) {
+					if(mm.getType() == END_OF_TRACK) {
 						returnMappedMidi.setEndOfTrack(noteTick);
 					}
 				}
 			}
 		}
 		
+		returnSequence.sortByStartTick();
 		returnMappedMidi.setMidiInformation(returnSequence);
 		returnMappedMidi.setEventTimeList(eventTimeList);
-		
-		return returnMappedMidi;
 	}
 	
 	/**
@@ -0,0 +1,25 @@
+package converter;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import melpody.midi.note.MidiNote;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Interface to define the destination of the notes generated by Melpody
+ *
+ */
+public interface OutputTrackWriter {
+
+	/**
+	 * Use this method to write a note in output
+	 * @param note the note to be written
+	 * @param startNoteTime start time of the note
+	 * @param endNoteTime end time of the note
+	 * @throws InvalidMidiDataException
+	 */
+	void writeNote(MidiNote note, long startNoteTime, long endNoteTime) throws InvalidMidiDataException;
+
+}
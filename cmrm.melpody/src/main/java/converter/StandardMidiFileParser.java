@@ -0,0 +1,174 @@
+package converter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import melpody.midi.track.AbstractMidiTrack;
+import melpody.midi.util.MidiTemporalSequenceEvent;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class used to read a Standard MIDI File directly into the Melpody structures.
+ *
+ * The file is mapped in memory and the chunks (MThd, MTrk) are decoded reading the bytes in place: the events
+ * are never converted into {@link javax.sound.midi.MidiMessage} objects. Running status is supported, a NOTE_ON
+ * with velocity 0 is a NOTE_OFF and the end of a track is the meta event 0x2F.
+ *
+ */
+public final class StandardMidiFileParser {
+
+	private static final int HEADER_CHUNK = 0x4D546864; // MThd
+	private static final int TRACK_CHUNK = 0x4D54726B; // MTrk
+
+	private static final int META_EVENT = 0xFF;
+	private static final int SYSEX_EVENT = 0xF0;
+	private static final int SYSEX_ESCAPE_EVENT = 0xF7;
+
+	private StandardMidiFileParser() {}
+
+	/**
+	 * Use this method to read a midi file, mapped in memory, into a Melpody midi track
+	 * @param midiFilename the path of the midi file
+	 * @param track the midi track to be filled
+	 * @throws InvalidMidiDataException if the file is not a valid Standard MIDI File
+	 * @throws IOException
+	 */
+	public static void parse(String midiFilename, AbstractMidiTrack track) throws InvalidMidiDataException, IOException {
+		try(FileChannel channel = FileChannel.open(Paths.get(midiFilename), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			parse(buffer, track);
+		}
+	}
+
+	/**
+	 * Use this method to read the content of a midi file into a Melpody midi track
+	 * @param buffer the bytes of the midi file, from the current position to the limit
+	 * @param track the midi track to be filled
+	 * @throws InvalidMidiDataException if the bytes are not a valid Standard MIDI File
+	 */
+	public static void parse(ByteBuffer buffer, AbstractMidiTrack track) throws InvalidMidiDataException {
+		MidiTemporalSequenceEvent sequence = new MidiTemporalSequenceEvent();
+		Set<Long> eventTimeList = track.getEventTimeList();
+
+		try {
+			//Absolute and relative reads are done on a copy: the buffer passed as parameter is not modified
+			ByteBuffer data = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+			int limit = data.limit();
+
+			if(data.remaining() < 14 || data.getInt() != HEADER_CHUNK) {
+				throw new InvalidMidiDataException("Not a Standard MIDI File: MThd chunk not found");
+			}
+
+			int headerLength = data.getInt();
+			int trackCount = data.getShort(data.position() + 2) & 0xFFFF;
+			data.position(data.position() + headerLength);
+
+			int trackRead = 0;
+			while(trackRead < trackCount && data.remaining() >= 8) {
+				int chunkType = data.getInt();
+				int chunkLength = data.getInt();
+				int chunkEnd = data.position() + chunkLength;
+
+				if(chunkLength < 0 || chunkEnd > limit) {
+					throw new InvalidMidiDataException("Chunk length exceeds the size of the file");
+				}
+
+				if(chunkType == TRACK_CHUNK) {
+					parseTrack(data, chunkEnd, sequence, eventTimeList, track);
+					trackRead++;
+				}
+
+				data.position(chunkEnd);
+			}
+		}catch(IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+			throw new InvalidMidiDataException("Unexpected end of the MIDI data");
+		}
+
+		sequence.sortByStartTick();
+		track.setMidiInformation(sequence);
+		track.setEventTimeList(eventTimeList);
+	}
+
+	/**
+	 * This method decodes the events of a single MTrk chunk, the position of the buffer is moved at the end of the chunk
+	 */
+	private static void parseTrack(ByteBuffer data, int end, MidiTemporalSequenceEvent sequence, Set<Long> eventTimeList, AbstractMidiTrack track) throws InvalidMidiDataException {
+		long tick = 0;
+		int runningStatus = -1;
+
+		while(data.position() < end) {
+			tick += readVariableLength(data);
+
+			int status = data.get(data.position()) & 0xFF;
+			if(status >= 0x80) {
+				data.get();
+			}else if(runningStatus >= 0) {
+				status = runningStatus;
+			}else {
+				throw new InvalidMidiDataException("Running status without a previous status byte at tick " + tick);
+			}
+
+			if(status == META_EVENT) {
+				int metaType = data.get() & 0xFF;
+				int length = (int) readVariableLength(data);
+				data.position(data.position() + length);
+
+				if(metaType == MidiInputOutputConverter.END_OF_TRACK) {
+					track.setEndOfTrack(tick);
+					data.position(end);
+					return;
+				}
+			}else if(status == SYSEX_EVENT || status == SYSEX_ESCAPE_EVENT) {
+				int length = (int) readVariableLength(data);
+				data.position(data.position() + length);
+			}else if(status >= 0xF0) {
+				throw new InvalidMidiDataException("Unexpected system message " + Integer.toHexString(status) + " at tick " + tick);
+			}else {
+				runningStatus = status;
+				int command = status & 0xF0;
+				int data1 = data.get() & 0x7F;
+
+				//Program change and channel pressure have a single data byte
+				if(command != 0xC0 && command != 0xD0) {
+					int data2 = data.get() & 0x7F;
+
+					//NOTE_ON with velocity 0 is a NOTE_OFF
+					if(command == MidiInputOutputConverter.NOTE_ON && data2 > 0) {
+						sequence.noteOn(status & 0x0F, data1, data2, tick);
+						eventTimeList.add(tick);
+					}else if(command == MidiInputOutputConverter.NOTE_OFF || command == MidiInputOutputConverter.NOTE_ON) {
+						sequence.noteOff(status & 0x0F, data1, tick);
+					}
+				}
+			}
+		}
+
+		//Track without the end of track event: the track ends with its last event
+		track.setEndOfTrack(tick);
+	}
+
+	/**
+	 * This method reads a variable length quantity (7 bits for each byte, the highest bit is set on all the bytes except the last)
+	 */
+	private static long readVariableLength(ByteBuffer data) {
+		int value = data.get() & 0xFF;
+		long quantity = value & 0x7F;
+		while((value & 0x80) != 0) {
+			value = data.get() & 0xFF;
+			quantity = (quantity << 7) | (value & 0x7F);
+		}
+		return quantity;
+	}
+
+}
@@ -0,0 +1,284 @@
+package converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import melpody.midi.note.MidiNote;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class used to write the output melody as a Standard MIDI File (type 1, one track, 96 ticks per quarter note)
+ * without creating the javax.sound.midi Sequence and Track.
+ *
+ * The events are appended to a buffer with delta times as the notes arrive: the notes must be written in order
+ * of start time, the "NOTE_OFF" events are kept in a queue until the time of the following events is reached.
+ * The length of the track chunk is computed when the track is closed. The buffer can be reused for another file
+ * calling {@link #begin(long)} again.
+ *
+ */
+public final class StandardMidiFileWriter implements OutputTrackWriter {
+
+	public static final int RESOLUTION = 96;
+
+	private static final int META_EVENT = 0xFF;
+	private static final int SYSEX_EVENT = 0xF0;
+	private static final int META_TRACK_NAME = 0x03;
+	private static final String TRACK_NAME = "midifile track";
+	private static final byte[] GENERAL_MIDI_SYSEX = {0x7E, 0x7F, 0x09, 0x01, (byte)0xF7};
+	private static final int NOTE_OFF_VELOCITY = 127;
+
+	private ByteBuffer buffer;
+	private int trackLengthPosition;
+	private long currentTick;
+	private int runningStatus;
+	private long endOfTrack;
+	private boolean open;
+
+	//Queue (binary heap) of the NOTE_OFF events not yet written, ordered by time and insertion
+	private int pendingSize;
+	private long[] pendingTick = new long[16];
+	private long[] pendingOrder = new long[16];
+	private int[] pendingKey = new int[16];
+	private long insertionCount;
+
+	public StandardMidiFileWriter() {
+		buffer = ByteBuffer.allocate(8192);
+	}
+
+	/**
+	 * Use this method to start a new file: the content of the previous file is discarded.
+	 * The General MIDI sysex, the name of the track and the end of track are written as in the javax.sound.midi output track.
+	 * @param endOfTrack the minimum time instant of the end of track (the end of the melody abstraction)
+	 */
+	public void begin(long endOfTrack) {
+		buffer.clear();
+		currentTick = 0;
+		runningStatus = -1;
+		pendingSize = 0;
+		insertionCount = 0;
+		this.endOfTrack = endOfTrack;
+		open = true;
+
+		//Header chunk
+		putInt(0x4D546864);
+		putInt(6);
+		putShort(1);
+		putShort(1);
+		putShort(RESOLUTION);
+
+		//Track chunk, the length is written when the track is closed
+		putInt(0x4D54726B);
+		trackLengthPosition = buffer.position();
+		putInt(0);
+
+		//****  General MIDI sysex -- turn on General MIDI sound set  ****
+		writeVariableLength(0);
+		putByte(SYSEX_EVENT);
+		writeVariableLength(GENERAL_MIDI_SYSEX.length);
+		putBytes(GENERAL_MIDI_SYSEX);
+		runningStatus = SYSEX_EVENT;
+
+		//****  set track name (meta event)  ****
+		writeVariableLength(0);
+		writeMetaEvent(META_TRACK_NAME, TRACK_NAME.getBytes());
+	}
+
+	@Override
+	public void writeNote(MidiNote note, long startNoteTime, long endNoteTime) throws InvalidMidiDataException {
+		if(!open) {
+			throw new InvalidMidiDataException("Track not started or already closed");
+		}
+		if(startNoteTime < currentTick) {
+			throw new InvalidMidiDataException("Notes must be written in order of start time: " + startNoteTime + " < " + currentTick);
+		}
+
+		int key = note.getMidiKeyId() + 12;
+		if(key < 0 || key > 127) {
+			throw new InvalidMidiDataException("Key out of range: " + key);
+		}
+
+		flushNoteOff(startNoteTime);
+		writeShortEvent(startNoteTime, MidiInputOutputConverter.NOTE_ON, key, note.getVelocity());
+		addPendingNoteOff(Math.max(endNoteTime, startNoteTime), key);
+	}
+
+	/**
+	 * Use this method to close the track: the pending "NOTE_OFF" events and the end of track are written
+	 * and the length of the track chunk is computed
+	 */
+	public void close() {
+		if(!open) {
+			return;
+		}
+
+		flushNoteOff(Long.MAX_VALUE);
+
+		writeVariableLength(Math.max(endOfTrack, currentTick) - currentTick);
+		currentTick = Math.max(endOfTrack, currentTick);
+		writeMetaEvent(MidiInputOutputConverter.END_OF_TRACK, new byte[0]);
+
+		buffer.putInt(trackLengthPosition, buffer.position() - trackLengthPosition - 4);
+		open = false;
+	}
+
+	/**
+	 * Use this method to write the file on disk. The track is closed if still open
+	 * @param file the output file
+	 * @throws IOException
+	 */
+	public void writeTo(File file) throws IOException {
+		close();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer content = buffer.duplicate().flip();
+			while(content.hasRemaining()) {
+				channel.write(content);
+			}
+		}
+	}
+
+	/**
+	 * Use this method to retrieve the bytes of the file. The track is closed if still open
+	 * @return the content of the Standard MIDI File
+	 */
+	public byte[] toByteArray() {
+		close();
+		return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	private void flushNoteOff(long tick) {
+		while(pendingSize > 0 && pendingTick[0] <= tick) {
+			long noteOffTick = pendingTick[0];
+			int key = pendingKey[0];
+			removeFirstPendingNoteOff();
+			writeShortEvent(noteOffTick, MidiInputOutputConverter.NOTE_OFF, key, NOTE_OFF_VELOCITY);
+		}
+	}
+
+	private void writeShortEvent(long tick, int status, int data1, int data2) {
+		writeVariableLength(tick - currentTick);
+		currentTick = tick;
+		if(status != runningStatus) {
+			runningStatus = status;
+			putByte(status);
+		}
+		putByte(data1);
+		putByte(data2);
+	}
+
+	private void writeMetaEvent(int type, byte[] data) {
+		putByte(META_EVENT);
+		putByte(type);
+		writeVariableLength(data.length);
+		putBytes(data);
+		runningStatus = META_EVENT;
+	}
+
+	private void writeVariableLength(long value) {
+		ensureCapacity(5);
+		int shift = 28;
+		while(shift > 0 && (value >>> shift) == 0) {
+			shift -= 7;
+		}
+		while(shift > 0) {
+			buffer.put((byte) (((value >>> shift) & 0x7F) | 0x80));
+			shift -= 7;
+		}
+		buffer.put((byte) (value & 0x7F));
+	}
+
+	private void addPendingNoteOff(long tick, int key) {
+		if(pendingSize == pendingTick.length) {
+			pendingTick = Arrays.copyOf(pendingTick, pendingSize * 2);
+			pendingOrder = Arrays.copyOf(pendingOrder, pendingSize * 2);
+			pendingKey = Arrays.copyOf(pendingKey, pendingSize * 2);
+		}
+
+		int idx = pendingSize++;
+		long order = insertionCount++;
+		while(idx > 0) {
+			int parent = (idx - 1) >>> 1;
+			if(!isBefore(tick, order, pendingTick[parent], pendingOrder[parent])) {
+				break;
+			}
+			movePendingNoteOff(parent, idx);
+			idx = parent;
+		}
+		pendingTick[idx] = tick;
+		pendingOrder[idx] = order;
+		pendingKey[idx] = key;
+	}
+
+	private void removeFirstPendingNoteOff() {
+		pendingSize--;
+		long tick = pendingTick[pendingSize];
+		long order = pendingOrder[pendingSize];
+		int key = pendingKey[pendingSize];
+
+		int idx = 0;
+		while(true) {
+			int child = idx * 2 + 1;
+			if(child >= pendingSize) {
+				break;
+			}
+			if(child + 1 < pendingSize && isBefore(pendingTick[child + 1], pendingOrder[child + 1], pendingTick[child], pendingOrder[child])) {
+				child++;
+			}
+			if(!isBefore(pendingTick[child], pendingOrder[child], tick, order)) {
+				break;
+			}
+			movePendingNoteOff(child, idx);
+			idx = child;
+		}
+		pendingTick[idx] = tick;
+		pendingOrder[idx] = order;
+		pendingKey[idx] = key;
+	}
+
+	private void movePendingNoteOff(int from, int to) {
+		pendingTick[to] = pendingTick[from];
+		pendingOrder[to] = pendingOrder[from];
+		pendingKey[to] = pendingKey[from];
+	}
+
+	private static boolean isBefore(long tick, long order, long otherTick, long otherOrder) {
+		return tick < otherTick || (tick == otherTick && order < otherOrder);
+	}
+
+	private void putByte(int value) {
+		ensureCapacity(1);
+		buffer.put((byte) value);
+	}
+
+	private void putBytes(byte[] values) {
+		ensureCapacity(values.length);
+		buffer.put(values);
+	}
+
+	private void putShort(int value) {
+		ensureCapacity(2);
+		buffer.putShort((short) value);
+	}
+
+	private void putInt(int value) {
+		ensureCapacity(4);
+		buffer.putInt(value);
+	}
+
+	private void ensureCapacity(int bytes) {
+		if(buffer.remaining() < bytes) {
+			ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+			buffer.flip();
+			newBuffer.put(buffer);
+			buffer = newBuffer;
+		}
+	}
+
+}
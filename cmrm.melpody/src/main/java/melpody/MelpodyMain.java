@@ -9,63 +9,141 @@ import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
-import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
-
-import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MetaMessage;
-import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.Sequence;
-import javax.sound.midi.SysexMessage;
-import javax.sound.midi.Track;
 
+import classifier.GradeModelRegistry;
 import classifier.NoteRank;
 import converter.MidiInputOutputConverter;
+import converter.StandardMidiFileWriter;
+import melpody.batch.BatchProcessor;
+import melpody.batch.GenerationJob;
+import melpody.batch.GenerationJobResult;
+import melpody.live.LiveSession;
+import melpody.log.AsyncLogHandler;
+import melpody.log.MelpodyLogFormatter;
+import melpody.metrics.Metrics;
+import melpody.metrics.Phase;
 import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleMaskTable;
 import melpody.midi.scale.ScaleTypeInitProcess;
-import melpody.midi.track.HarmonyMidiTrack;
-import melpody.midi.track.MelodyAbstraction;
-import melpody.midi.util.OutputMidiNoteSelector;
+import melpody.midi.track.HarmonyAnalysisCache;
+import melpody.midi.util.StreamingNoteSelector;
+import melpody.service.GenerationService;
 
 public class MelpodyMain {
 
-	private static Sequence outSeq = null;
-	private static Track trOut = null;
 	public static final String MELPODY_LOGNAME = "MelpodyLogger";
 	public static Properties properties = new Properties();
+	
+	private static final String BATCH_OPTION = "-batch";
+	private static final String LIVE_OPTION = "-live";
+	private static final String LIVE_TEST_OPTION = "-live-test";
+	private static final String SERVE_OPTION = "-serve";
+	private static final String STREAM_OPTION = "-stream";
+	private static final int DEFAULT_LIVE_TEST_REPETITIONS = 1;
+	private static final String BATCH_USAGE = "Usage: -batch source [outputDirectory]\n"
+			+ "  source: manifest file (harmonyFile;abstractMelodyFile[;outputFile[;preset]] on each line) or directory with a subdirectory for each job";
 
+	/**
+	 * Without arguments the program generates the melody from the files ../midi/harmony.mid and ../midi/abstract_melody.mid.
+	 * 
+	 * With the arguments "-batch source [outputDirectory]" the program generates the melodies of all the jobs defined by 
+	 * the source (manifest file or directory, see {@link BatchProcessor}), writing the output files in the output 
+	 * directory (../output by default, created if it does not exist). Without the source the usage is printed and the program exits.
+	 * 
+	 * With the arguments "-live [harmonyFile]" the program plays the output melody in real time: the notes of the melody abstraction are
+	 * received from the default midi input device and the output notes are sent to the default synthesizer (see {@link LiveSession}).
+	 * 
+	 * With the arguments "-live-test [repetitions]" the program measures the latency of the real time selection without midi devices,
+	 * playing the melody abstraction ../midi/abstract_melody.mid on the harmony ../midi/harmony.mid: the exit code is 1 if the 99th
+	 * percentile of the latency is not below {@link LiveSession#MAX_P99_NANOS}.
+	 * 
+	 * With the argument "-stream" the program checks the streaming selection (see {@link StreamingNoteSelector}): the melody of
+	 * ../midi/harmony.mid and ../midi/abstract_melody.mid is created from the whole files and from their events in order of time,
+	 * the two outputs must be the same (the result is written in the log, the exit code is 1 if they differ).
+	 * 
+	 * With the arguments "-serve [port]" the program runs as a generation service on the local port (SERVICE_PORT by default) until
+	 * it is stopped: the melodies are requested through HTTP (see {@link GenerationService}).
+	 * 
+	 * When the property METRICS_REPORT is defined the time of each phase and the events of the run are written in that file
+	 * at the end of the run (see {@link Metrics}).
+	 * 
+	 * The exit code is 1 when the run stops for an error.
+	 * @param args the arguments of the program
+	 */
 	public static void main(String[] args) {
 		
+		if(args.length == 1 && BATCH_OPTION.equals(args[0])) {
+			System.err.println(BATCH_USAGE);
+			System.exit(1);
+		}
+		
+		//L'inizializzazione e' misurata prima di sapere se le metriche sono attive
+		long setupStart = System.nanoTime();
+		long setupCpuStart = Metrics.getThreadCpuTime();
+		//Codice di uscita: diverso da 0 se la verifica fallisce o in caso di errore
+		int exitStatus = 0;
+		
 		try {			
 			initializeLogProperties();
 			initializeProperties();
+			Metrics.initialize(properties);
 			
 			ModalScaleInitProcess msip = new ModalScaleInitProcess();
 			ScaleTypeInitProcess stip = new ScaleTypeInitProcess();
 			
 			msip.collectActiveModalScale(properties);
 			stip.collectActiveTypesOfScale(properties);
+			//The table of the scale masks is computed once for the active configuration
+			ScaleMaskTable.getInstance(msip, stip);
 			
 			MidiInputOutputConverter.initialize();
 			NoteRank.initialize();
+			GradeModelRegistry.initialize(properties);
+			HarmonyAnalysisCache.initialize(properties);
+			Metrics.record(Phase.SETUP, System.nanoTime() - setupStart, Metrics.getThreadCpuTime() - setupCpuStart);
 			
-			
-			HarmonyMidiTrack harmonySeq = (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi("../midi/harmony.mid", HarmonyMidiTrack.class);
-			
-			MelodyAbstraction melodyAbstraction = (MelodyAbstraction) MidiInputOutputConverter.mapMidi("../midi/abstract_melody.mid", MelodyAbstraction.class);
-			
-			initializeOutputTrack(melodyAbstraction);
-			
-			OutputMidiNoteSelector omns = new OutputMidiNoteSelector();
-			
-			omns.createOutputTrack(melodyAbstraction, harmonySeq, trOut, msip, stip);
-			
-			MidiSystem.write(outSeq, 1, new File("../output/OUTPROVA.mid"));
-		} catch (Exception e) {
+			if(args.length > 1 && BATCH_OPTION.equals(args[0])) {
+				File outputDirectory = new File(args.length > 2 ? args[2] : "../output");
+				
+				BatchProcessor batchProcessor = new BatchProcessor(properties, msip, stip);
+				batchProcessor.run(BatchProcessor.loadJobs(new File(args[1]), outputDirectory));
+			}else if(args.length > 0 && LIVE_OPTION.equals(args[0])) {
+				LiveSession liveSession = new LiveSession(properties, msip, stip);
+				liveSession.play(new File(args.length > 1 ? args[1] : "../midi/harmony.mid"));
+			}else if(args.length > 0 && LIVE_TEST_OPTION.equals(args[0])) {
+				LiveSession liveSession = new LiveSession(properties, msip, stip);
+				int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_LIVE_TEST_REPETITIONS;
+				if(!liveSession.selfTest(new File("../midi/harmony.mid"), new File("../midi/abstract_melody.mid"), repetitions)) {
+					exitStatus = 1;
+				}
+			}else if(args.length > 0 && STREAM_OPTION.equals(args[0])) {
+				if(!StreamingNoteSelector.selfTest(new File("../midi/harmony.mid"), new File("../midi/abstract_melody.mid"), properties, msip, stip)) {
+					exitStatus = 1;
+				}
+			}else if(args.length > 0 && SERVE_OPTION.equals(args[0])) {
+				GenerationService service = new GenerationService(properties, msip, stip);
+				int port = args.length > 1 ? Integer.parseInt(args[1]) : GenerationService.getPort(properties);
+				service.run(port, new File("../midi/harmony.mid"), new File("../midi/abstract_melody.mid"));
+			}else {
+				GenerationJob job = new GenerationJob("OUTPROVA", new File("../midi/harmony.mid"), new File("../midi/abstract_melody.mid"), new File("../output/OUTPROVA.mid"));
+				GenerationJobResult result = job.run(properties, msip, stip, new StandardMidiFileWriter());
+				
+				if(!result.isSuccessful()) {
+					throw result.getError();
+				}
+			}
+		} catch (Throwable e) {
 			Logger log = Logger.getLogger(MELPODY_LOGNAME);
 			log.severe(e.getMessage());
+			exitStatus = 1;
+		}finally {
+			Metrics.writeReport();
+		}
+		
+		//Il report delle metriche e' gia' scritto
+		if(exitStatus != 0) {
+			System.exit(exitStatus);
 		}
 	}
 	/**
@@ -96,69 +174,20 @@ public class MelpodyMain {
 		mainLogger.setLevel(Level.ALL);
 		mainLogger.setUseParentHandlers(false);
 		
-		FileHandler fileHandler = new FileHandler("../MelpodyLog-" + (new Date()).toString());
+		MelpodyLogFormatter formatter = new MelpodyLogFormatter();
+		
 		ConsoleHandler consoleHandler = new ConsoleHandler();
 		consoleHandler.setLevel(Level.FINE);
-		consoleHandler.setFormatter(new SimpleFormatter() {
-			private static final String format = "[%1$tF %1$tT] [%2$-7s] %3$s %n";
-
-			@Override
-			public synchronized String format(LogRecord lr) {
-				return String.format(format,
-						new Date(lr.getMillis()),
-						lr.getLevel().getLocalizedName(),
-						lr.getMessage()
-				);
-			}
-		});
+		consoleHandler.setFormatter(formatter);
 		
+		//Il file viene scritto da un thread dedicato: chi scrive nel log non attende l'I/O
+		FileHandler fileHandler = new FileHandler("../MelpodyLog-" + (new Date()).toString());
 		fileHandler.setLevel(Level.FINE);
-		fileHandler.setFormatter(new SimpleFormatter() {
-			private static final String format = "[%1$tF %1$tT] [%2$-7s] %3$s %n";
-
-			@Override
-			public synchronized String format(LogRecord lr) {
-				return String.format(format,
-						new Date(lr.getMillis()),
-						lr.getLevel().getLocalizedName(),
-						lr.getMessage()
-				);
-			}
-		});
+		fileHandler.setFormatter(formatter);
+		AsyncLogHandler asyncFileHandler = new AsyncLogHandler(fileHandler, AsyncLogHandler.DEFAULT_CAPACITY);
+		
 		mainLogger.addHandler(consoleHandler);
-		mainLogger.addHandler(fileHandler);
+		mainLogger.addHandler(asyncFileHandler);
 	}
 
-	/**
-	 * Initialize the output track. Melody abstraction file required to define the end of the file.
-	 * @param melodyAbstraction the melody abstraction 
-	 * @throws InvalidMidiDataException
-	 */
-	public static void initializeOutputTrack(MelodyAbstraction melodyAbstraction) throws InvalidMidiDataException {
-		outSeq = new Sequence(Sequence.PPQ, 96);
-		trOut = outSeq.createTrack();
-		
-		//****  General MIDI sysex -- turn on General MIDI sound set  ****
-		byte[] b = {(byte)0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte)0xF7};
-		SysexMessage sm = new SysexMessage();
-		sm.setMessage(b, 6);
-		MidiEvent me = new MidiEvent(sm,(long)0);
-		trOut.add(me);
-
-		MetaMessage mt = new MetaMessage();
-
-		//****  set track name (meta event)  ****
-		String TrackName = new String("midifile track");
-		mt.setMessage(0x03 ,TrackName.getBytes(), TrackName.length());
-		me = new MidiEvent(mt,(long)0);
-		trOut.add(me);
-		
-		//****  set end of track (meta event) 19 ticks later  ****
-		mt = new MetaMessage();
-        byte[] bet = {}; // empty array
-		mt.setMessage(0x2F,bet,0);
-		me = new MidiEvent(mt, melodyAbstraction.getEndOfTrack());
-		trOut.add(me);
-	}
-	
 }
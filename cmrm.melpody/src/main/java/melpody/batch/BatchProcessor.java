@@ -0,0 +1,184 @@
+package melpody.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Logger;
+
+import converter.StandardMidiFileWriter;
+import melpody.MelpodyMain;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleMaskTable;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyAnalysisCache;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class used to run many generation jobs on a work-stealing pool of threads (by default one for each core).
+ *
+ * The jobs are read from:
+ * - a manifest file: each line contains the harmony file, the melody abstraction file and optionally the output file
+ * and the preset of the grades, separated by ";" (paths relative to the directory of the manifest, lines starting with # are ignored);
+ * - a directory: each subdirectory containing the files harmony.mid and abstract_melody.mid is a job, the output file
+ * has the name of the subdirectory.
+ *
+ * The failure of a job does not stop the other jobs.
+ */
+public final class BatchProcessor {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String HARMONY_FILENAME = "harmony.mid";
+	public static final String MELODY_ABSTRACTION_FILENAME = "abstract_melody.mid";
+	private static final String MANIFEST_SEPARATOR = ";";
+	private static final String MIDI_EXTENSION = ".mid";
+
+	private final Properties properties;
+	private final ModalScaleInitProcess modalScaleSelector;
+	private final ScaleTypeInitProcess scaleTypeSelector;
+	private final int parallelism;
+
+	//Output writer of each thread, reused by the jobs of the same thread
+	private final ThreadLocal<StandardMidiFileWriter> outputWriter = ThreadLocal.withInitial(StandardMidiFileWriter::new);
+
+	public BatchProcessor(Properties properties, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		this(properties, modalScaleSelector, scaleTypeSelector, Runtime.getRuntime().availableProcessors());
+	}
+
+	public BatchProcessor(Properties properties, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector, int parallelism) {
+		this.properties = properties;
+		this.modalScaleSelector = modalScaleSelector;
+		this.scaleTypeSelector = scaleTypeSelector;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Use this method to read the jobs from a manifest file or from a directory
+	 * @param source the manifest file or the directory
+	 * @param outputDirectory the directory of the output files
+	 * @return the list of jobs
+	 * @throws IOException
+	 */
+	public static List<GenerationJob> loadJobs(File source, File outputDirectory) throws IOException {
+		List<GenerationJob> jobs = new ArrayList<GenerationJob>();
+
+		if(source.isDirectory()) {
+			File[] directories = source.listFiles(File::isDirectory);
+			Arrays.sort(directories);
+
+			for(File directory : directories) {
+				File harmonyFile = new File(directory, HARMONY_FILENAME);
+				File melodyAbstractionFile = new File(directory, MELODY_ABSTRACTION_FILENAME);
+				if(harmonyFile.isFile() && melodyAbstractionFile.isFile()) {
+					jobs.add(new GenerationJob(directory.getName(), harmonyFile, melodyAbstractionFile, new File(outputDirectory, directory.getName() + MIDI_EXTENSION)));
+				}
+			}
+		}else {
+			File baseDirectory = source.getAbsoluteFile().getParentFile();
+
+			try(BufferedReader reader = new BufferedReader(new FileReader(source))) {
+				String line;
+				int lineNumber = 0;
+				while((line = reader.readLine()) != null) {
+					lineNumber++;
+					line = line.trim();
+					if(line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+
+					String[] values = line.split(MANIFEST_SEPARATOR);
+					if(values.length < 2) {
+						log.warning("Manifest line " + lineNumber + " ignored: harmony and melody abstraction files required");
+						continue;
+					}
+
+					File harmonyFile = resolve(baseDirectory, values[0].trim());
+					File melodyAbstractionFile = resolve(baseDirectory, values[1].trim());
+					String name = "job" + lineNumber + "_" + stripExtension(melodyAbstractionFile.getName());
+					File outputFile = values.length > 2 && !values[2].trim().isEmpty() ? resolve(baseDirectory, values[2].trim()) : new File(outputDirectory, name + MIDI_EXTENSION);
+					String gradePreset = values.length > 3 && !values[3].trim().isEmpty() ? values[3].trim() : null;
+
+					jobs.add(new GenerationJob(name, harmonyFile, melodyAbstractionFile, outputFile, gradePreset));
+				}
+			}
+		}
+
+		return jobs;
+	}
+
+	/**
+	 * Use this method to run the jobs in parallel. The method waits the end of all the jobs and logs a summary of the execution
+	 * @param jobs the jobs to be executed
+	 * @return the results of the jobs, in the same order of the jobs
+	 */
+	public List<GenerationJobResult> run(List<GenerationJob> jobs) {
+		List<GenerationJobResult> results = new ArrayList<GenerationJobResult>(jobs.size());
+
+		long startTime = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<ForkJoinTask<GenerationJobResult>> tasks = new ArrayList<ForkJoinTask<GenerationJobResult>>(jobs.size());
+			for(GenerationJob job : jobs) {
+				tasks.add(pool.submit(() -> job.run(properties, modalScaleSelector, scaleTypeSelector, outputWriter.get())));
+			}
+
+			for(ForkJoinTask<GenerationJobResult> task : tasks) {
+				results.add(task.join());
+			}
+		}finally {
+			pool.shutdown();
+		}
+		long elapsedNanos = System.nanoTime() - startTime;
+
+		logSummary(results, elapsedNanos);
+
+		return results;
+	}
+
+	/**
+	 * This method logs the failed jobs and the throughput of the execution
+	 */
+	private void logSummary(List<GenerationJobResult> results, long elapsedNanos) {
+		int failed = 0;
+		long noteCount = 0;
+
+		for(GenerationJobResult result : results) {
+			if(result.isSuccessful()) {
+				noteCount += result.getNoteCount();
+			}else {
+				failed++;
+				log.severe("Job " + result.getJob().getName() + " failed: " + result.getError());
+			}
+		}
+
+		double elapsedSeconds = Math.max(elapsedNanos, 1L) / 1e9;
+		log.info("Batch completed: " + results.size() + " jobs, " + (results.size() - failed) + " succeeded, " + failed + " failed, "
+				+ parallelism + " threads, " + String.format("%.3f", elapsedSeconds) + " s");
+		log.info("Throughput: " + String.format("%.2f", results.size() / elapsedSeconds) + " jobs/s, "
+				+ String.format("%.0f", noteCount / elapsedSeconds) + " notes/s");
+		log.info(ScaleMaskTable.getStatistics());
+		if(HarmonyAnalysisCache.getInstance() != null) {
+			log.info(HarmonyAnalysisCache.getInstance().toString());
+		}
+	}
+
+	private static File resolve(File baseDirectory, String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(baseDirectory, path);
+	}
+
+	private static String stripExtension(String filename) {
+		int idx = filename.lastIndexOf('.');
+		return idx > 0 ? filename.substring(0, idx) : filename;
+	}
+
+}
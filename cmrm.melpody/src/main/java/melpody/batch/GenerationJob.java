@@ -0,0 +1,246 @@
+package melpody.batch;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
+import converter.MidiInputOutputConverter;
+import converter.StandardMidiFileWriter;
+import exception.MelpodySelectionProcessException;
+import melpody.MelpodyMain;
+import melpody.log.JsonLinesSelectionTrace;
+import melpody.log.SelectionTrace;
+import melpody.metrics.Counter;
+import melpody.metrics.Metrics;
+import melpody.metrics.Phase;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyAnalysisCache;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+import melpody.midi.util.BeamSearchNoteSelector;
+import melpody.midi.util.OutputMidiNoteSelector;
+import melpody.midi.util.SelectionResult;
+import melpody.random.SplittableRandomSource;
+
+/**
+ * 
+ * @author Giorgio De Luca
+ *
+ * Class to define a single generation: the harmony and melody abstraction files in input and the output file.
+ * 
+ * The job runs the whole process (parse, harmony analysis, note selection, write) using only its own objects,
+ * so different jobs can run at the same time.
+ * 
+ * The random choices of the job depend only on the seed of the process and on the name of the job: the same seed
+ * produces the same output file, whatever is the order of execution of the jobs.
+ * 
+ * When the property BEAM_WIDTH is greater than 1 the melodies are created by a beam search and the best BEAM_RESULTS
+ * melodies are written in separate files (see {@link #getOutputFile(int)}): only the melodies completed, the files of
+ * the other ones are not written.
+ * 
+ * When the property TRACE_DIRECTORY is defined the events of the selection of a single melody are written in the file
+ * of the job in that directory (see {@link JsonLinesSelectionTrace}).
+ */
+public final class GenerationJob {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	private final String name;
+	private final File harmonyFile;
+	private final File melodyAbstractionFile;
+	private final File outputFile;
+	private final String gradePreset;
+	
+	public GenerationJob(String name, File harmonyFile, File melodyAbstractionFile, File outputFile) {
+		this(name, harmonyFile, melodyAbstractionFile, outputFile, null);
+	}
+	
+	/**
+	 * Creates a job with a specific preset of the probabilities of the grades
+	 * @param name the name of the job
+	 * @param harmonyFile the harmony file
+	 * @param melodyAbstractionFile the melody abstraction file
+	 * @param outputFile the output file
+	 * @param gradePreset the name of the preset, null to use the preset defined by the property GRADE_PRESET
+	 */
+	public GenerationJob(String name, File harmonyFile, File melodyAbstractionFile, File outputFile, String gradePreset) {
+		this.name = name;
+		this.harmonyFile = harmonyFile;
+		this.melodyAbstractionFile = melodyAbstractionFile;
+		this.outputFile = outputFile;
+		this.gradePreset = gradePreset;
+	}
+	
+	/**
+	 * Use this method to run the generation. Any error is reported in the result, it is never thrown: the directory of the output
+	 * file is created if it does not exist, when the melody
+	 * abstraction is not compatible with the harmony the error is a {@link MelpodySelectionProcessException} and the output file is not written.
+	 * @param properties the properties of the process
+	 * @param modalScaleSelector the set of modal scale accepted
+	 * @param scaleTypeSelector the set of types of scale accepted
+	 * @param outputWriter the writer used for the output file, it can be reused by the following job of the same thread
+	 * @return the result of the job
+	 */
+	public GenerationJobResult run(Properties properties, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector, StandardMidiFileWriter outputWriter) {
+		long startTime = System.nanoTime();
+		int noteCount = 0;
+		
+		try {
+			String parser = properties.getProperty(MidiInputOutputConverter.MIDI_PARSER_PROPERTY, MidiInputOutputConverter.MAPPED_PARSER);
+			
+			HarmonyMidiTrack harmonySeq = HarmonyAnalysisCache.loadHarmony(harmonyFile, parser, modalScaleSelector, scaleTypeSelector);
+			MelodyAbstraction melodyAbstraction = (MelodyAbstraction) MidiInputOutputConverter.mapMidi(melodyAbstractionFile.getPath(), MelodyAbstraction.class, parser);
+			noteCount = melodyAbstraction.getMidiInformation().size();
+			
+			int beamResults = BeamSearchNoteSelector.getBeamResults(properties);
+			
+			//Il primo writer e' quello del thread, gli altri servono solo alla ricerca a fascio
+			List<StandardMidiFileWriter> outputWriters = new ArrayList<StandardMidiFileWriter>(beamResults);
+			outputWriters.add(outputWriter);
+			while(outputWriters.size() < beamResults) {
+				outputWriters.add(new StandardMidiFileWriter());
+			}
+			
+			//Il preset viene letto una volta: un aggiornamento del file non cambia il job in corso
+			GradeModel gradeModel = gradePreset != null ? GradeModelRegistry.getModel(gradePreset) : GradeModelRegistry.getModel(properties);
+			long seed = SplittableRandomSource.getJobSeed(SplittableRandomSource.getSeed(properties), name);
+			
+			SelectionResult selection = createMelodies(name, seed, harmonySeq, melodyAbstraction, gradeModel, properties, modalScaleSelector, scaleTypeSelector, outputWriters);
+			
+			Metrics.Timer timer = Metrics.start(Phase.WRITE);
+			try {
+				File outputDirectory = outputFile.getAbsoluteFile().getParentFile();
+				if(outputDirectory != null) {
+					Files.createDirectories(outputDirectory.toPath());
+				}
+				outputWriter.writeTo(outputFile);
+				//Solo le melodie completate: i gruppi fermati non hanno note
+				for(int i = 1; i < selection.getMelodyCount(); i++) {
+					outputWriters.get(i).writeTo(getOutputFile(i + 1));
+				}
+				for(int i = selection.getMelodyCount(); i < outputWriters.size(); i++) {
+					log.warning("Job " + name + ": melody " + (i + 1) + " of " + outputWriters.size() + " not completed, " + getOutputFile(i + 1) + " not written");
+				}
+			}finally {
+				timer.close();
+			}
+			
+			Metrics.increment(Counter.JOBS);
+			return new GenerationJobResult(this, noteCount, System.nanoTime() - startTime, null);
+		}catch(Throwable e) {
+			//Anche un Error (es. StackOverflowError) ferma solo questo job, non il batch
+			Metrics.increment(Counter.JOBS);
+			Metrics.increment(Counter.FAILED_JOBS);
+			return new GenerationJobResult(this, noteCount, System.nanoTime() - startTime, e);
+		}
+	}
+
+	/**
+	 * Use this method to create the output melodies of an harmony and a melody abstraction already read, without files:
+	 * the writers are started and receive the notes of the melodies (one melody for each writer with the beam search, 
+	 * the first writer otherwise).
+	 * 
+	 * The selection uses only the objects of the call, so different threads can create melodies at the same time.
+	 * @param name the name of the generation, used by the log and by the trace
+	 * @param seed the seed of the random choices (not used by the beam search)
+	 * @param harmonySeq the harmony track
+	 * @param melodyAbstraction the melody abstraction track
+	 * @param gradeModel the preset of the probabilities of the grades
+	 * @param properties the properties of the process
+	 * @param modalScaleSelector the set of modal scale accepted
+	 * @param scaleTypeSelector the set of types of scale accepted
+	 * @param outputWriters the writers of the melodies, at least one
+	 * @return the result of the selection, always satisfied
+	 * @throws MelpodySelectionProcessException if the melody abstraction is not compatible with the harmony
+	 * @throws InvalidMidiDataException
+	 */
+	public static SelectionResult createMelodies(String name, long seed, HarmonyMidiTrack harmonySeq, MelodyAbstraction melodyAbstraction, GradeModel gradeModel, Properties properties,
+			ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector, List<StandardMidiFileWriter> outputWriters) throws MelpodySelectionProcessException, InvalidMidiDataException {
+		
+		//General MIDI sysex, track name and end of track (at the end of the melody abstraction)
+		for(StandardMidiFileWriter writer : outputWriters) {
+			writer.begin(melodyAbstraction.getEndOfTrack());
+		}
+		
+		//L'analisi (se non letta dalla cache) viene calcolata qui, fuori dal tempo della selezione
+		harmonySeq.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector);
+		
+		SelectionResult selection;
+		Metrics.Timer timer = Metrics.start(Phase.SELECTION);
+		try {
+			if(BeamSearchNoteSelector.getBeamWidth(properties) > 1) {
+				BeamSearchNoteSelector bsns = new BeamSearchNoteSelector(properties, BeamSearchNoteSelector.getBeamWidth(properties), gradeModel);
+				selection = bsns.createOutputTracks(melodyAbstraction, harmonySeq, outputWriters, modalScaleSelector, scaleTypeSelector);
+			}else {
+				log.info(() -> "Job " + name + " seed " + seed);
+				
+				OutputMidiNoteSelector omns = new OutputMidiNoteSelector(properties, new SplittableRandomSource(seed), gradeModel);
+				SelectionTrace trace = JsonLinesSelectionTrace.open(properties, name);
+				omns.setTrace(trace);
+				try {
+					selection = omns.createOutputTrack(melodyAbstraction, harmonySeq, outputWriters.get(0), modalScaleSelector, scaleTypeSelector);
+				}finally {
+					JsonLinesSelectionTrace.close(trace);
+				}
+			}
+		}finally {
+			timer.close();
+		}
+		SelectionResult result = selection;
+		log.info(() -> "Job " + name + ": " + result);
+		Metrics.add(Counter.NOTES, selection.getNoteCount());
+		Metrics.add(Counter.BACKTRACKS, selection.getBacktrackCount());
+		
+		//La melodia incompleta non viene scritta
+		if(!selection.isSatisfied()) {
+			throw new MelpodySelectionProcessException(selection.toString());
+		}
+		return selection;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public File getHarmonyFile() {
+		return harmonyFile;
+	}
+
+	public File getMelodyAbstractionFile() {
+		return melodyAbstractionFile;
+	}
+
+	public File getOutputFile() {
+		return outputFile;
+	}
+	
+	public String getGradePreset() {
+		return gradePreset;
+	}
+	
+	/**
+	 * Returns the output file of a melody created by the beam search: the best melody is written in the output file of the job,
+	 * the following ones in files with the same name and the position of the melody (e.g. OUTPROVA_2.mid)
+	 * @param position the position of the melody, starting from 1
+	 * @return the output file
+	 */
+	public File getOutputFile(int position) {
+		if(position <= 1) {
+			return outputFile;
+		}
+		
+		String filename = outputFile.getName();
+		int idx = filename.lastIndexOf('.');
+		String outputName = idx > 0 ? filename.substring(0, idx) + "_" + position + filename.substring(idx) : filename + "_" + position;
+		return new File(outputFile.getAbsoluteFile().getParentFile(), outputName);
+	}
+	
+}
@@ -0,0 +1,51 @@
+package melpody.batch;
+
+/**
+ * 
+ * @author Giorgio De Luca
+ *
+ * Class to define the result of a generation job
+ */
+public final class GenerationJobResult {
+
+	private final GenerationJob job;
+	private final int noteCount;
+	private final long elapsedNanos;
+	private final Throwable error;
+	
+	GenerationJobResult(GenerationJob job, int noteCount, long elapsedNanos, Throwable error) {
+		this.job = job;
+		this.noteCount = noteCount;
+		this.elapsedNanos = elapsedNanos;
+		this.error = error;
+	}
+
+	public GenerationJob getJob() {
+		return job;
+	}
+
+	/**
+	 * Returns the number of notes of the melody abstraction processed by the job
+	 * @return the number of notes
+	 */
+	public int getNoteCount() {
+		return noteCount;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Returns the error that stopped the job
+	 * @return the error (an exception or an error of the virtual machine, e.g. a StackOverflowError), null if the job completed successfully
+	 */
+	public Throwable getError() {
+		return error;
+	}
+	
+	public boolean isSuccessful() {
+		return error == null;
+	}
+	
+}
@@ -0,0 +1,127 @@
+package melpody.live;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to collect the distribution of a duration in nanoseconds (e.g. the latency of the real time selection) with a fixed memory.
+ *
+ * The values below 32 ns have their own bucket, the other values are grouped for each power of 2 in 16 buckets of the same size:
+ * the value of a percentile is the upper bound of its bucket, at most 1/16 (6.25%) above the real value.
+ * The values can be recorded by many threads while the percentiles are read, without locks and without creating objects.
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int LINEAR_BUCKETS = 32;
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//Esponente del primo gruppo di bucket: 2^5 = LINEAR_BUCKETS
+	private static final int FIRST_EXPONENT = 5;
+	private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Use this method to add a value
+	 * @param nanos the duration in nanoseconds, the negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0L);
+		counts.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax = max.get();
+		while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Use this method to remove all the values, e.g. at the end of the warm up
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0L);
+		}
+		count.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n > 0 ? (double) sum.get() / n : 0D;
+	}
+
+	/**
+	 * Returns the value below which a percentage of the values fall
+	 * @param percentile the percentage (e.g. 99 for the 99th percentile)
+	 * @return the upper bound of the bucket of the percentile, in nanoseconds (0 if no value has been recorded)
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if(n == 0) {
+			return 0L;
+		}
+
+		long rank = Math.max(1L, (long) Math.ceil(n * Math.min(percentile, 100D) / 100D));
+		long seen = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if(seen >= rank) {
+				return Math.min(getUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int getBucket(long value) {
+		if(value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getUpperBound(int bucket) {
+		if(bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+		long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (SUB_BUCKETS + subBucket) * width + width - 1;
+	}
+
+	/**
+	 * Returns the summary of the distribution in microseconds
+	 */
+	@Override
+	public String toString() {
+		return getCount() + " values, mean " + toMicros((long) getMean()) + " us, p50 " + toMicros(getPercentile(50D)) + " us, p99 " + toMicros(getPercentile(99D))
+				+ " us, p99.9 " + toMicros(getPercentile(99.9D)) + " us, max " + toMicros(getMax()) + " us";
+	}
+
+	private static String toMicros(long nanos) {
+		long tenths = (nanos + 50L) / 100L;
+		return (tenths / 10L) + "." + (tenths % 10L);
+	}
+
+}
@@ -0,0 +1,245 @@
+package melpody.live;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Transmitter;
+
+import classifier.GradeModelRegistry;
+import converter.MidiInputOutputConverter;
+import converter.StandardMidiFileWriter;
+import melpody.MelpodyMain;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyAnalysisCache;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+import melpody.midi.util.MidiTemporalSequenceEvent;
+import melpody.midi.util.RealTimeNoteSelector;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to run the real time selection ({@link RealTimeNoteSelector}).
+ *
+ * The method {@link #play(File)} connects the default midi input device (e.g. a keyboard) to the selector and the selector to the
+ * default synthesizer, until Enter is pressed.
+ *
+ * The method {@link #selfTest(File, File, int)} does not need any midi device: the notes of a melody abstraction file are sent to the
+ * selector at the tempo of the harmony and the output notes are received by a {@link LoopbackReceiver}. At the end the latency of the
+ * selection and the memory allocated by the selection thread are written in the log.
+ *
+ */
+public final class LiveSession {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	//Latenza massima accettata per il 99-esimo percentile
+	public static final long MAX_P99_NANOS = 1000000L;
+	private static final int WARM_UP_REPETITIONS = 200;
+	private static final long WARM_UP_TIMEOUT_NANOS = 100000000L;
+	//Margine in cui il thread che invia le note attende attivamente
+	private static final long SPIN_NANOS = 200000L;
+	private static final long NANOS_PER_MINUTE = 60000000000L;
+
+	private final Properties properties;
+	private final ModalScaleInitProcess modalScaleSelector;
+	private final ScaleTypeInitProcess scaleTypeSelector;
+
+	public LiveSession(Properties properties, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		this.properties = properties;
+		this.modalScaleSelector = modalScaleSelector;
+		this.scaleTypeSelector = scaleTypeSelector;
+	}
+
+	/**
+	 * Use this method to play the output melody with the default midi devices, until Enter is pressed
+	 * @param harmonyFile the harmony file
+	 * @throws MidiUnavailableException if there is no midi input device or synthesizer
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	public void play(File harmonyFile) throws MidiUnavailableException, InvalidMidiDataException, IOException {
+		RealTimeNoteSelector selector = createSelector(harmonyFile);
+
+		Synthesizer synthesizer = MidiSystem.getSynthesizer();
+		Transmitter input = MidiSystem.getTransmitter();
+		try {
+			synthesizer.open();
+			selector.setReceiver(synthesizer.getReceiver());
+			input.setReceiver(selector.getInputReceiver());
+
+			selector.start();
+			log.info("Live mode started: press Enter to stop");
+			while(System.in.read() != '\n') {
+				//Attendo la fine della riga
+			}
+		}finally {
+			input.close();
+			selector.close();
+			synthesizer.close();
+		}
+	}
+
+	/**
+	 * Use this method to measure the latency of the real time selection without midi devices
+	 * @param harmonyFile the harmony file
+	 * @param melodyAbstractionFile the melody abstraction file, played at the tempo defined by the property LIVE_TEMPO
+	 * @param repetitions the number of times the melody abstraction is played
+	 * @return true if the 99th percentile of the latency is below {@value #MAX_P99_NANOS} ns
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	public boolean selfTest(File harmonyFile, File melodyAbstractionFile, int repetitions) throws InvalidMidiDataException, IOException {
+		RealTimeNoteSelector selector = createSelector(harmonyFile);
+		LoopbackReceiver loopback = new LoopbackReceiver();
+		selector.setReceiver(loopback);
+
+		String parser = properties.getProperty(MidiInputOutputConverter.MIDI_PARSER_PROPERTY, MidiInputOutputConverter.MAPPED_PARSER);
+		MelodyAbstraction melodyAbstraction = (MelodyAbstraction) MidiInputOutputConverter.mapMidi(melodyAbstractionFile.getPath(), MelodyAbstraction.class, parser);
+		List<LiveEvent> events = getEvents(melodyAbstraction.getMidiInformation());
+		if(events.isEmpty()) {
+			log.warning("No notes in " + melodyAbstractionFile);
+			return false;
+		}
+
+		Receiver input = selector.getInputReceiver();
+		selector.start();
+
+		//Riscaldamento: ogni nota viene inviata quando la precedente e' stata selezionata
+		for(int i = 0; i < WARM_UP_REPETITIONS; i++) {
+			for(LiveEvent event : events) {
+				long selectedCount = selector.getLatency().getCount();
+				input.send(event.message, -1L);
+				long timeout = System.nanoTime() + WARM_UP_TIMEOUT_NANOS;
+				while(event.isNoteOn() && selector.getLatency().getCount() == selectedCount && System.nanoTime() < timeout) {
+					Thread.yield();
+				}
+			}
+		}
+		selector.getLatency().reset();
+
+		long noteCount = selector.getNoteCount();
+		long missedCount = selector.getMissedCount();
+		long allocatedBytes = getAllocatedBytes(selector.getWorker());
+
+		double nanosPerTick = NANOS_PER_MINUTE / (RealTimeNoteSelector.getTempo(properties) * StandardMidiFileWriter.RESOLUTION);
+		long repetitionTicks = events.get(events.size() - 1).tick + StandardMidiFileWriter.RESOLUTION;
+		long startTime = System.nanoTime();
+
+		for(int i = 0; i < repetitions; i++) {
+			for(LiveEvent event : events) {
+				waitUntil(startTime + (long) ((i * repetitionTicks + event.tick) * nanosPerTick));
+				input.send(event.message, -1L);
+			}
+		}
+		//Attendo la selezione delle ultime note
+		LockSupport.parkNanos(WARM_UP_TIMEOUT_NANOS);
+
+		allocatedBytes = allocatedBytes >= 0 ? getAllocatedBytes(selector.getWorker()) - allocatedBytes : -1L;
+		selector.close();
+
+		LatencyHistogram latency = selector.getLatency();
+		log.info("Live self-test: " + (selector.getNoteCount() - noteCount) + " notes played, " + (selector.getMissedCount() - missedCount) + " missed, "
+				+ selector.getDroppedCount() + " dropped, " + loopback.getNoteOnCount() + " notes received by the loopback");
+		log.info("Live self-test latency: " + latency);
+		log.info("Live self-test allocated bytes by the selection thread: " + (allocatedBytes >= 0 ? String.valueOf(allocatedBytes) : "not available"));
+
+		boolean passed = latency.getCount() > 0 && latency.getPercentile(99D) < MAX_P99_NANOS;
+		if(!passed) {
+			log.severe("Live self-test failed: p99 latency " + latency.getPercentile(99D) + " ns");
+		}
+		return passed;
+	}
+
+	private RealTimeNoteSelector createSelector(File harmonyFile) throws InvalidMidiDataException, IOException {
+		String parser = properties.getProperty(MidiInputOutputConverter.MIDI_PARSER_PROPERTY, MidiInputOutputConverter.MAPPED_PARSER);
+		HarmonyMidiTrack harmony = HarmonyAnalysisCache.loadHarmony(harmonyFile, parser, modalScaleSelector, scaleTypeSelector);
+
+		return new RealTimeNoteSelector(properties, harmony, GradeModelRegistry.getModel(properties), modalScaleSelector, scaleTypeSelector);
+	}
+
+	/**
+	 * This method creates the messages of the notes, ordered by instant of time (at the same instant the NOTE_OFF are sent first)
+	 */
+	private static List<LiveEvent> getEvents(MidiTemporalSequenceEvent notes) throws InvalidMidiDataException {
+		List<LiveEvent> events = new ArrayList<LiveEvent>(notes.size() * 2);
+
+		for(int i = 0; i < notes.size(); i++) {
+			if(notes.getEnd(i) == MidiTemporalSequenceEvent.NOT_RELEASED) {
+				continue;
+			}
+			events.add(new LiveEvent(notes.getStart(i), new ShortMessage(ShortMessage.NOTE_ON, 0, notes.getMidiKey(i), Math.max(notes.getVelocity(i), 1))));
+			events.add(new LiveEvent(notes.getEnd(i), new ShortMessage(ShortMessage.NOTE_OFF, 0, notes.getMidiKey(i), 0)));
+		}
+
+		Collections.sort(events, new Comparator<LiveEvent>() {
+			@Override
+			public int compare(LiveEvent e1, LiveEvent e2) {
+				if(e1.tick != e2.tick) {
+					return e1.tick < e2.tick ? -1 : 1;
+				}
+				return Boolean.compare(e1.isNoteOn(), e2.isNoteOn());
+			}
+		});
+		return events;
+	}
+
+	private static void waitUntil(long time) {
+		long remaining = time - System.nanoTime();
+		if(remaining > SPIN_NANOS) {
+			LockSupport.parkNanos(remaining - SPIN_NANOS);
+		}
+		while(System.nanoTime() < time) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns the memory allocated by a thread, -1 if the virtual machine cannot measure it
+	 */
+	private static long getAllocatedBytes(Thread thread) {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+			if(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+				return allocationBean.getThreadAllocatedBytes(thread.threadId());
+			}
+		}
+		return -1L;
+	}
+
+	/**
+	 * A message of the melody abstraction and its instant of time
+	 */
+	private static final class LiveEvent {
+
+		private final long tick;
+		private final ShortMessage message;
+
+		private LiveEvent(long tick, ShortMessage message) {
+			this.tick = tick;
+			this.message = message;
+		}
+
+		private boolean isNoteOn() {
+			return message.getCommand() == ShortMessage.NOTE_ON;
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package melpody.live;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to replace the synthesizer when no midi device is available (e.g. to measure the latency of the real time selection):
+ * the receiver counts the notes received and keeps the notes still sounding, without producing any sound.
+ *
+ * The message is never kept after the method send returns, so the sender can reuse the same message.
+ *
+ */
+public final class LoopbackReceiver implements Receiver {
+
+	private final int[] soundingNotes = new int[16 * 128];
+	private volatile long noteOnCount;
+	private volatile long noteOffCount;
+	private volatile int lastKey = -1;
+	private volatile boolean open = true;
+
+	@Override
+	public void send(MidiMessage message, long timeStamp) {
+		if(!open || !(message instanceof ShortMessage)) {
+			return;
+		}
+
+		ShortMessage sm = (ShortMessage) message;
+		int slot = sm.getChannel() * 128 + sm.getData1();
+		if(sm.getCommand() == ShortMessage.NOTE_ON && sm.getData2() > 0) {
+			soundingNotes[slot]++;
+			lastKey = sm.getData1();
+			noteOnCount++;
+		}else if(sm.getCommand() == ShortMessage.NOTE_OFF || sm.getCommand() == ShortMessage.NOTE_ON) {
+			if(soundingNotes[slot] > 0) {
+				soundingNotes[slot]--;
+			}
+			noteOffCount++;
+		}
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	public long getNoteOnCount() {
+		return noteOnCount;
+	}
+
+	public long getNoteOffCount() {
+		return noteOffCount;
+	}
+
+	/**
+	 * Returns the last key pressed
+	 * @return the midi key, -1 if no note has been received
+	 */
+	public int getLastKey() {
+		return lastKey;
+	}
+
+	/**
+	 * Returns the number of notes pressed and not yet released
+	 * @return the number of notes still sounding
+	 */
+	public int getSoundingCount() {
+		int sounding = 0;
+		for(int count : soundingNotes) {
+			sounding += count;
+		}
+		return sounding;
+	}
+
+}
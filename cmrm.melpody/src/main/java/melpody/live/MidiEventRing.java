@@ -0,0 +1,121 @@
+package melpody.live;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to pass the midi events received by a {@link javax.sound.midi.Receiver} to the thread of the real time selection,
+ * without locks and without creating objects.
+ *
+ * The events are kept in a circular buffer of fixed size: each event is the short message (status, first and second data byte)
+ * and the instant it was received (System.nanoTime). Each slot has a sequence number telling if it can be written or read, so many
+ * threads can add events (e.g. two controllers connected to the same receiver) while a single thread reads them.
+ * When the buffer is full the event is discarded.
+ *
+ */
+public final class MidiEventRing {
+
+	private final int mask;
+	private final int[] messages;
+	private final long[] times;
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong tail = new AtomicLong();
+	//Letto e scritto solo dal thread che consuma gli eventi
+	private long head;
+
+	//Values of the last event read
+	private int message;
+	private long time;
+
+	/**
+	 * Creates the buffer
+	 * @param capacity the number of events, rounded to the next power of 2
+	 */
+	public MidiEventRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		messages = new int[size];
+		times = new long[size];
+		sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Use this method to add an event, it can be called by many threads
+	 * @param status the status byte
+	 * @param data1 the first data byte
+	 * @param data2 the second data byte
+	 * @param receivedTime the instant the event was received (System.nanoTime)
+	 * @return true if the event has been added, false if the buffer is full
+	 */
+	public boolean offer(int status, int data1, int data2, long receivedTime) {
+		while(true) {
+			long position = tail.get();
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+
+			if(difference == 0) {
+				if(tail.compareAndSet(position, position + 1)) {
+					messages[slot] = (status & 0xFF) << 16 | (data1 & 0xFF) << 8 | (data2 & 0xFF);
+					times[slot] = receivedTime;
+					//Lo slot diventa leggibile solo dopo la scrittura dei valori: la scrittura volatile permette al
+					//produttore di controllare subito dopo se il consumatore e' fermo
+					sequences.set(slot, position + 1);
+					return true;
+				}
+			}else if(difference < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Use this method to read the next event, it must be called by a single thread. The values of the event are
+	 * available from {@link #getStatus()}, {@link #getData1()}, {@link #getData2()} and {@link #getReceivedTime()}
+	 * @return true if an event has been read, false if the buffer is empty
+	 */
+	public boolean poll() {
+		int slot = (int) head & mask;
+		if(sequences.get(slot) != head + 1) {
+			return false;
+		}
+
+		message = messages[slot];
+		time = times[slot];
+		//Lo slot puo' essere riscritto al giro successivo
+		sequences.lazySet(slot, head + mask + 1);
+		head++;
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	public int getStatus() {
+		return message >>> 16;
+	}
+
+	public int getData1() {
+		return (message >>> 8) & 0xFF;
+	}
+
+	public int getData2() {
+		return message & 0xFF;
+	}
+
+	public long getReceivedTime() {
+		return time;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+}
@@ -0,0 +1,137 @@
+package melpody.log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Handler that passes the records of the log to another handler (e.g. a FileHandler) from a dedicated thread.
+ *
+ * The records are kept in a bounded queue: the thread that writes in the log never waits for the I/O of the handler. When the
+ * queue is full the record is discarded and counted, the number of records discarded is written in the log as soon as the
+ * queue has room again. The records still in the queue are written when the handler is closed (e.g. at the end of the program,
+ * by the LogManager).
+ *
+ */
+public final class AsyncLogHandler extends Handler {
+
+	public static final int DEFAULT_CAPACITY = 8192;
+	private static final long CLOSE_TIMEOUT_MILLIS = 2000L;
+
+	private final Handler target;
+	private final BlockingQueue<LogRecord> queue;
+	private final Thread writer;
+	private final AtomicLong droppedCount = new AtomicLong();
+	//Record scartati gia' segnalati nel log, usato solo dal thread di scrittura
+	private long reportedDroppedCount;
+	private volatile boolean closed;
+
+	/**
+	 * Creates the handler and starts the thread that writes the records
+	 * @param target the handler that writes the records, used only by the thread of this handler
+	 * @param capacity the maximum number of records waiting to be written
+	 */
+	public AsyncLogHandler(Handler target, int capacity) {
+		this.target = target;
+		this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+		setLevel(target.getLevel());
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeRecords();
+			}
+		}, "melpody-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if(closed || !isLoggable(record)) {
+			return;
+		}
+		if(!queue.offer(record)) {
+			droppedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The records still in the queue are not waited for: only the records already passed to the target handler are flushed
+	 */
+	@Override
+	public void flush() {
+		target.flush();
+	}
+
+	/**
+	 * Use this method to write the records still in the queue and close the target handler
+	 */
+	@Override
+	public void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(CLOSE_TIMEOUT_MILLIS);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		LogRecord record;
+		while((record = queue.poll()) != null) {
+			target.publish(record);
+		}
+		reportDropped();
+		target.close();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	private void writeRecords() {
+		try {
+			while(!closed) {
+				LogRecord record = queue.poll(1L, TimeUnit.SECONDS);
+				if(record == null) {
+					continue;
+				}
+				do {
+					target.publish(record);
+				}while((record = queue.poll()) != null);
+
+				//La coda e' vuota: scrivo i record in attesa nel buffer del file
+				reportDropped();
+				target.flush();
+			}
+		}catch(InterruptedException e) {
+			//Chiusura dell'handler: i record rimasti vengono scritti da close()
+		}catch(RuntimeException e) {
+			reportError("Log writer stopped", e, ErrorManager.WRITE_FAILURE);
+		}
+	}
+
+	private void reportDropped() {
+		long dropped = droppedCount.get();
+		if(dropped > reportedDroppedCount) {
+			target.publish(new LogRecord(Level.WARNING, (dropped - reportedDroppedCount) + " log records discarded: the log queue was full"));
+			reportedDroppedCount = dropped;
+		}
+	}
+
+}
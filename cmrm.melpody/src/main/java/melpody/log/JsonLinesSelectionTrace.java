@@ -0,0 +1,177 @@
+package melpody.log;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import melpody.MelpodyMain;
+import melpody.midi.chord.PossibleScale;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Trace that writes each event as a line of JSON, e.g.
+ * {"event":"scaleSelected","note":0,"chordTick":0,"root":"C","type":"ACOUSTIC","mode":"IONIAN","candidates":86}
+ *
+ * The trace of a job is written in the directory defined by the property TRACE_DIRECTORY, in the file with the name of the job
+ * and extension {@value #EXTENSION}. Without the property no trace is created ({@link SelectionTrace#NONE}).
+ * When the file cannot be written the trace is disabled and the generation goes on.
+ *
+ */
+public final class JsonLinesSelectionTrace implements SelectionTrace, Closeable {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String DIRECTORY_PROPERTY = "TRACE_DIRECTORY";
+	public static final String EXTENSION = ".trace.jsonl";
+
+	private final Writer out;
+	private final StringBuilder line = new StringBuilder(128);
+	private boolean enabled = true;
+
+	public JsonLinesSelectionTrace(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Use this method to create the trace of a job, according to the property TRACE_DIRECTORY
+	 * @param properties the properties of the process
+	 * @param jobName the name of the job
+	 * @return the trace, {@link SelectionTrace#NONE} if the property is not defined or the file cannot be created
+	 */
+	public static SelectionTrace open(Properties properties, String jobName) {
+		String directory = properties.getProperty(DIRECTORY_PROPERTY);
+		if(directory == null || directory.trim().isEmpty()) {
+			return SelectionTrace.NONE;
+		}
+
+		File traceDirectory = new File(directory.trim());
+		try {
+			if(!traceDirectory.isDirectory() && !traceDirectory.mkdirs()) {
+				throw new IOException("Cannot create the directory " + traceDirectory);
+			}
+			File traceFile = new File(traceDirectory, jobName + EXTENSION);
+			return new JsonLinesSelectionTrace(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(traceFile), StandardCharsets.UTF_8)));
+		}catch(IOException e) {
+			log.warning("Trace of the job " + jobName + " not written: " + e.getMessage());
+			return SelectionTrace.NONE;
+		}
+	}
+
+	/**
+	 * Use this method to close a trace, if it has to be closed
+	 * @param trace the trace
+	 */
+	public static void close(SelectionTrace trace) {
+		if(trace instanceof Closeable) {
+			try {
+				((Closeable) trace).close();
+			}catch(IOException e) {
+				log.warning("Trace not completed: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void scaleSelected(int noteIndex, long chordTick, PossibleScale scale, int candidateCount) {
+		begin("scaleSelected", noteIndex);
+		line.append(",\"chordTick\":").append(chordTick);
+		appendScale(scale);
+		line.append(",\"candidates\":").append(candidateCount);
+		end();
+	}
+
+	@Override
+	public void scaleRejected(int noteIndex, long chordTick, PossibleScale scale) {
+		begin("scaleRejected", noteIndex);
+		line.append(",\"chordTick\":").append(chordTick);
+		appendScale(scale);
+		end();
+	}
+
+	@Override
+	public void noteSelected(int noteIndex, int abstractionKey, int outputKey, int candidateCount, boolean novelty) {
+		begin("noteSelected", noteIndex);
+		line.append(",\"abstractionKey\":").append(abstractionKey)
+			.append(",\"outputKey\":").append(outputKey)
+			.append(",\"candidates\":").append(candidateCount)
+			.append(",\"novelty\":").append(novelty);
+		end();
+	}
+
+	@Override
+	public void backtrack(int noteIndex, int backtrackCount) {
+		begin("backtrack", noteIndex);
+		line.append(",\"backtracks\":").append(backtrackCount);
+		end();
+	}
+
+	@Override
+	public void noteWritten(int noteIndex, long start, long end, int outputKey) {
+		begin("noteWritten", noteIndex);
+		line.append(",\"start\":").append(start)
+			.append(",\"end\":").append(end)
+			.append(",\"outputKey\":").append(outputKey);
+		end();
+	}
+
+	@Override
+	public void noteFailed(int noteIndex, long tick, String reason) {
+		begin("noteFailed", noteIndex);
+		line.append(",\"tick\":").append(tick).append(",\"reason\":\"");
+		for(int i = 0; i < reason.length(); i++) {
+			char c = reason.charAt(i);
+			if(c == '"' || c == '\\') {
+				line.append('\\');
+			}
+			line.append(c);
+		}
+		line.append('"');
+		end();
+	}
+
+	@Override
+	public void close() throws IOException {
+		enabled = false;
+		out.close();
+	}
+
+	private void begin(String event, int noteIndex) {
+		line.setLength(0);
+		line.append("{\"event\":\"").append(event).append("\",\"note\":").append(noteIndex);
+	}
+
+	private void appendScale(PossibleScale scale) {
+		line.append(",\"root\":\"").append(scale.getFundamentalNote())
+			.append("\",\"type\":\"").append(scale.getScaleType())
+			.append("\",\"mode\":\"").append(scale.getScale()).append('"');
+	}
+
+	private void end() {
+		if(!enabled) {
+			return;
+		}
+		line.append('}').append('\n');
+		try {
+			out.append(line);
+		}catch(IOException e) {
+			//La generazione continua senza traccia
+			enabled = false;
+			log.warning("Trace disabled: " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package melpody.log;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to format the records of the log as "[date time] [LEVEL  ] message".
+ *
+ * The formatter has no state: it can be used by several handlers and threads at the same time without synchronization.
+ *
+ */
+public final class MelpodyLogFormatter extends Formatter {
+
+	private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final int LEVEL_WIDTH = 7;
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	@Override
+	public String format(LogRecord lr) {
+		String level = lr.getLevel().getLocalizedName();
+		String message = lr.getMessage();
+
+		StringBuilder sb = new StringBuilder(32 + (message != null ? message.length() : 4));
+		sb.append('[');
+		DATE_TIME.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(lr.getMillis()), ZoneId.systemDefault()), sb);
+		sb.append("] [").append(level);
+		for(int i = level.length(); i < LEVEL_WIDTH; i++) {
+			sb.append(' ');
+		}
+		sb.append("] ").append(message).append(' ').append(LINE_SEPARATOR);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,101 @@
+package melpody.log;
+
+import melpody.midi.chord.PossibleScale;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Events of the selection of the output melody, for the diagnosis of a generation (e.g. why a scale has been discarded).
+ *
+ * The events receive only primitive values and objects already existing, so a call to a disabled trace ({@link #NONE}) does
+ * not create any object. A trace is used by a single selector, from a single thread.
+ *
+ */
+public interface SelectionTrace {
+
+	/**
+	 * Trace that discards all the events
+	 */
+	SelectionTrace NONE = new SelectionTrace() {
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+
+		@Override
+		public void scaleSelected(int noteIndex, long chordTick, PossibleScale scale, int candidateCount) {}
+
+		@Override
+		public void scaleRejected(int noteIndex, long chordTick, PossibleScale scale) {}
+
+		@Override
+		public void noteSelected(int noteIndex, int abstractionKey, int outputKey, int candidateCount, boolean novelty) {}
+
+		@Override
+		public void backtrack(int noteIndex, int backtrackCount) {}
+
+		@Override
+		public void noteWritten(int noteIndex, long start, long end, int outputKey) {}
+
+		@Override
+		public void noteFailed(int noteIndex, long tick, String reason) {}
+	};
+
+	/**
+	 * Returns true if the events are recorded: the caller can skip the computation of values used only by the trace
+	 */
+	boolean isEnabled();
+
+	/**
+	 * A scale has been selected for the chord of a note
+	 * @param noteIndex the position of the note in the melody abstraction
+	 * @param chordTick the instant of time of the chord
+	 * @param scale the scale selected
+	 * @param candidateCount the number of compatible scales among which the scale has been selected
+	 */
+	void scaleSelected(int noteIndex, long chordTick, PossibleScale scale, int candidateCount);
+
+	/**
+	 * The scale selected for the chord of a note cannot produce a note anymore and it has been discarded
+	 * @param noteIndex the position of the note in the melody abstraction
+	 * @param chordTick the instant of time of the chord
+	 * @param scale the scale discarded
+	 */
+	void scaleRejected(int noteIndex, long chordTick, PossibleScale scale);
+
+	/**
+	 * An output note has been selected (it can still be revised until it is written)
+	 * @param noteIndex the position of the note in the melody abstraction
+	 * @param abstractionKey the midi key of the note of the melody abstraction
+	 * @param outputKey the midi key of the output note
+	 * @param candidateCount the number of notes among which the note has been selected
+	 * @param novelty true if the note has been selected among the less stable grades
+	 */
+	void noteSelected(int noteIndex, int abstractionKey, int outputKey, int candidateCount, boolean novelty);
+
+	/**
+	 * A note has no compatible note: the choice of the previous note is revised
+	 * @param noteIndex the position of the note revised
+	 * @param backtrackCount the number of revisions made for the melody
+	 */
+	void backtrack(int noteIndex, int backtrackCount);
+
+	/**
+	 * An output note has been written in the track, it cannot be revised anymore
+	 * @param noteIndex the position of the note in the melody abstraction
+	 * @param start the instant of time of the "NOTE_ON" event
+	 * @param end the instant of time of the "NOTE_OFF" event
+	 * @param outputKey the midi key of the output note
+	 */
+	void noteWritten(int noteIndex, long start, long end, int outputKey);
+
+	/**
+	 * A note of the melody abstraction has no compatible note and it cannot be selected
+	 * @param noteIndex the position of the note in the melody abstraction
+	 * @param tick the instant of time of the end of the note
+	 * @param reason the reason
+	 */
+	void noteFailed(int noteIndex, long tick, String reason);
+
+}
@@ -0,0 +1,24 @@
+package melpody.metrics;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Events of a run counted by {@link Metrics}.
+ *
+ */
+public enum Counter {
+	//Generazioni eseguite e generazioni fallite
+	JOBS,
+	FAILED_JOBS,
+	//Note scritte nelle melodie di output
+	NOTES,
+	//Scale valutate per le note dell'astrazione (scale compatibili con l'accordo non ancora scartate)
+	CANDIDATE_SCALES,
+	//Revisioni delle scelte precedenti
+	BACKTRACKS,
+	//Note scelte con i gradi della novita' (soglia NOVELTY_THRESHOLD superata)
+	NOVELTY_ACTIVATIONS,
+	//Note dell'astrazione senza note della scala nell'intervallo: viene proposta la nota precedente
+	PREVIOUS_NOTE_FALLBACKS
+}
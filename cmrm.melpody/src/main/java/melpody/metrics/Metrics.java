@@ -0,0 +1,296 @@
+package melpody.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import melpody.MelpodyMain;
+import melpody.live.LatencyHistogram;
+import melpody.midi.scale.ScaleMaskTable;
+import melpody.midi.track.HarmonyAnalysisCache;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Instrumentation of the process: wall time and CPU time of each {@link Phase} (total and distribution of the wall time)
+ * and number of the events of each {@link Counter}, together with the hits and misses of the harmony cache and of the scale table.
+ *
+ * The instrumentation is active when the property METRICS_REPORT is defined: the values are visible through JMX
+ * ({@value #OBJECT_NAME}, see {@link MetricsMXBean}) while the process runs and the JSON report is written in the file of the
+ * property at the end of the run ({@link #writeReport()}).
+ * When it is not active each call only reads a flag: the counters are not updated and the clock is not read.
+ *
+ * The counters ({@link LongAdder}) and the distributions ({@link LatencyHistogram}) are updated by the threads of the jobs without locks.
+ *
+ */
+public final class Metrics {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String REPORT_PROPERTY = "METRICS_REPORT";
+	public static final String OBJECT_NAME = "melpody:type=Metrics";
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+
+	private static final LongAdder[] counters = createAdders(Counter.values().length);
+	private static final LongAdder[] phaseCounts = createAdders(Phase.values().length);
+	private static final LongAdder[] wallNanos = createAdders(Phase.values().length);
+	private static final LongAdder[] cpuNanos = createAdders(Phase.values().length);
+	private static final LatencyHistogram[] wallHistograms = new LatencyHistogram[Phase.values().length];
+
+	static {
+		for(int i = 0; i < wallHistograms.length; i++) {
+			wallHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+	private static volatile boolean enabled;
+	private static volatile File reportFile;
+
+	private Metrics() {
+	}
+
+	private static LongAdder[] createAdders(int size) {
+		LongAdder[] adders = new LongAdder[size];
+		for(int i = 0; i < size; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * Use this method to activate the instrumentation when the property METRICS_REPORT is defined and to register the MBean
+	 * @param properties the properties of the process
+	 */
+	public static synchronized void initialize(Properties properties) {
+		String report = properties.getProperty(REPORT_PROPERTY);
+		if(report == null || report.trim().isEmpty()) {
+			enabled = false;
+			reportFile = null;
+			return;
+		}
+
+		reportFile = new File(report.trim());
+		enabled = true;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!server.isRegistered(name)) {
+				server.registerMBean(new MetricsBean(), name);
+			}
+		}catch(JMException e) {
+			//Il report viene scritto comunque
+			log.warning("Metrics MBean not registered: " + e.getMessage());
+		}
+		log.info("Metrics active, report " + reportFile);
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void increment(Counter counter) {
+		if(enabled) {
+			counters[counter.ordinal()].increment();
+		}
+	}
+
+	public static void add(Counter counter, long value) {
+		if(enabled) {
+			counters[counter.ordinal()].add(value);
+		}
+	}
+
+	/**
+	 * Use this method to measure a phase: the phase is recorded when the timer is closed, in the finally block of the phase
+	 * (a try-with-resources block would not reference the timer)
+	 * @param phase the phase
+	 * @return the timer, a timer that records nothing if the instrumentation is not active
+	 */
+	public static Timer start(Phase phase) {
+		return enabled ? new Timer(phase) : Timer.DISABLED;
+	}
+
+	/**
+	 * Use this method to record a phase measured by the caller (e.g. when the instrumentation is activated during the phase)
+	 * @param phase the phase
+	 * @param wallTime the wall time in nanoseconds
+	 * @param cpuTime the CPU time of the thread in nanoseconds
+	 */
+	public static void record(Phase phase, long wallTime, long cpuTime) {
+		if(enabled) {
+			int i = phase.ordinal();
+			phaseCounts[i].increment();
+			wallNanos[i].add(wallTime);
+			cpuNanos[i].add(cpuTime);
+			wallHistograms[i].record(wallTime);
+		}
+	}
+
+	/**
+	 * Returns the CPU time of the current thread
+	 * @return the CPU time in nanoseconds, 0 if the JVM does not measure it
+	 */
+	public static long getThreadCpuTime() {
+		return cpuTimeSupported ? Math.max(threadBean.getCurrentThreadCpuTime(), 0L) : 0L;
+	}
+
+	public static long getCount(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	public static long getCount(Phase phase) {
+		return phaseCounts[phase.ordinal()].sum();
+	}
+
+	public static long getWallNanos(Phase phase) {
+		return wallNanos[phase.ordinal()].sum();
+	}
+
+	public static long getCpuNanos(Phase phase) {
+		return cpuNanos[phase.ordinal()].sum();
+	}
+
+	public static LatencyHistogram getWallHistogram(Phase phase) {
+		return wallHistograms[phase.ordinal()];
+	}
+
+	/**
+	 * Use this method to set all the values to 0 (e.g. at the end of the warm up of a process that runs many jobs)
+	 */
+	public static void reset() {
+		for(LongAdder adder : counters) {
+			adder.reset();
+		}
+		for(int i = 0; i < wallHistograms.length; i++) {
+			phaseCounts[i].reset();
+			wallNanos[i].reset();
+			cpuNanos[i].reset();
+			wallHistograms[i].reset();
+		}
+	}
+
+	/**
+	 * Returns the counters, with the hits and misses of the harmony cache and of the scale table
+	 * @return the values in order of {@link Counter}, then the caches
+	 */
+	public static Map<String, Long> getCounters() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for(Counter counter : Counter.values()) {
+			values.put(counter.name(), getCount(counter));
+		}
+		HarmonyAnalysisCache harmonyCache = HarmonyAnalysisCache.getInstance();
+		values.put("HARMONY_CACHE_HITS", harmonyCache != null ? harmonyCache.getHitCount() : 0L);
+		values.put("HARMONY_CACHE_MISSES", harmonyCache != null ? harmonyCache.getMissCount() : 0L);
+		values.put("SCALE_TABLE_HITS", ScaleMaskTable.getHitCount());
+		values.put("SCALE_TABLE_MISSES", ScaleMaskTable.getMissCount());
+		return values;
+	}
+
+	/**
+	 * Returns the report of the process, e.g.
+	 * {"counters":{"JOBS":1,...},"phases":{"PARSE":{"count":2,"wallMillis":3.512,"cpuMillis":3.104,"p50Micros":1580.0,...},...}}
+	 * @return the report in JSON
+	 */
+	public static String toJson() {
+		StringBuilder json = new StringBuilder(1024);
+		json.append("{\"counters\":{");
+		for(Map.Entry<String, Long> counter : getCounters().entrySet()) {
+			json.append('"').append(counter.getKey()).append("\":").append(counter.getValue()).append(',');
+		}
+		json.setCharAt(json.length() - 1, '}');
+
+		json.append(",\"phases\":{");
+		for(Phase phase : Phase.values()) {
+			LatencyHistogram histogram = getWallHistogram(phase);
+			json.append('"').append(phase.name()).append("\":{\"count\":").append(getCount(phase))
+				.append(",\"wallMillis\":").append(toMillis(getWallNanos(phase)))
+				.append(",\"cpuMillis\":").append(toMillis(getCpuNanos(phase)))
+				.append(",\"p50Micros\":").append(toMicros(histogram.getPercentile(50D)))
+				.append(",\"p99Micros\":").append(toMicros(histogram.getPercentile(99D)))
+				.append(",\"maxMicros\":").append(toMicros(histogram.getMax()))
+				.append("},");
+		}
+		json.setCharAt(json.length() - 1, '}');
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Use this method to write the report in the file of the property METRICS_REPORT, if the instrumentation is active
+	 */
+	public static void writeReport() {
+		File file = reportFile;
+		if(!enabled || file == null) {
+			return;
+		}
+
+		try {
+			File directory = file.getAbsoluteFile().getParentFile();
+			if(directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create the directory " + directory);
+			}
+			Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+			log.info("Metrics report written in " + file);
+		}catch(IOException e) {
+			log.log(Level.WARNING, "Metrics report not written: " + e.getMessage(), e);
+		}
+	}
+
+	private static String toMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String toMicros(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+	}
+
+	/**
+	 * Measure of a phase, from the creation of the timer to its closure
+	 */
+	public static final class Timer implements AutoCloseable {
+
+		private static final Timer DISABLED = new Timer();
+
+		private final Phase phase;
+		private final long startWall;
+		private final long startCpu;
+
+		private Timer() {
+			this.phase = null;
+			this.startWall = 0L;
+			this.startCpu = 0L;
+		}
+
+		private Timer(Phase phase) {
+			this.phase = phase;
+			this.startCpu = getThreadCpuTime();
+			this.startWall = System.nanoTime();
+		}
+
+		@Override
+		public void close() {
+			if(phase != null) {
+				long wallTime = System.nanoTime() - startWall;
+				record(phase, wallTime, getThreadCpuTime() - startCpu);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+package melpody.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * MBean of the values collected by {@link Metrics}.
+ *
+ */
+final class MetricsBean implements MetricsMXBean {
+
+	@Override
+	public boolean isEnabled() {
+		return Metrics.isEnabled();
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		return Metrics.getCounters();
+	}
+
+	@Override
+	public Map<String, String> getPhases() {
+		Map<String, String> phases = new LinkedHashMap<String, String>();
+		for(Phase phase : Phase.values()) {
+			phases.put(phase.name(), "wall " + Metrics.getWallNanos(phase) / 1000000L + " ms, cpu " + Metrics.getCpuNanos(phase) / 1000000L
+					+ " ms, " + Metrics.getWallHistogram(phase));
+		}
+		return phases;
+	}
+
+	@Override
+	public String getReport() {
+		return Metrics.toJson();
+	}
+
+	@Override
+	public void reset() {
+		Metrics.reset();
+	}
+
+}
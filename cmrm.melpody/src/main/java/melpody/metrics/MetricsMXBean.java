@@ -0,0 +1,36 @@
+package melpody.metrics;
+
+import java.util.Map;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Values of the instrumentation visible through JMX (e.g. jconsole), registered as {@value Metrics#OBJECT_NAME}.
+ *
+ */
+public interface MetricsMXBean {
+
+	boolean isEnabled();
+
+	/**
+	 * Returns the number of the events of each counter and the hits and misses of the caches
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * Returns the summary of each phase: measures, total wall and CPU time, distribution of the wall time
+	 */
+	Map<String, String> getPhases();
+
+	/**
+	 * Returns the report of the process in JSON, as written at the end of the run
+	 */
+	String getReport();
+
+	/**
+	 * Sets all the values to 0
+	 */
+	void reset();
+
+}
@@ -0,0 +1,21 @@
+package melpody.metrics;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Phases of a run whose wall time and CPU time are measured by {@link Metrics}.
+ *
+ */
+public enum Phase {
+	//Lettura delle proprieta', scale attive, tabelle e preset (una volta per processo)
+	SETUP,
+	//Lettura di un file midi (armonia o astrazione della melodia)
+	PARSE,
+	//Scale possibili di ogni accordo dell'armonia (non misurata quando l'analisi e' letta dalla cache)
+	ANALYSIS,
+	//Selezione delle note della melodia, con le revisioni delle scelte
+	SELECTION,
+	//Scrittura del file di output
+	WRITE
+}
@@ -1,64 +1,112 @@
 package melpody.midi.chord;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-import melpody.midi.note.MidiNote;
 import melpody.midi.note.Note;
 import melpody.midi.scale.ModalScale;
 import melpody.midi.scale.ScaleType;
 /**
- * 
+ *
  * @author Giorgio De Luca
  * Class to define a scale. It is defined by:
  * - a fundamental note
  * - a mode
  * - a type of scale
  * - a list of notes
+ *
+ * The instances are immutable and shared: there is only one instance for each scale,
+ * available from the {@link ScaleCatalogue}.
  */
-public class PossibleScale {
-
-	private Note fundamentalNote;
-	private ModalScale scale;
-	private ScaleType scaleType;
-	private List<MidiNote> noteList;
-	
-	public PossibleScale(Note fundamentalNote, List<MidiNote> noteList, ModalScale scale, ScaleType scaleType) {
+public final class PossibleScale {
+
+	private final int catalogueIndex;
+	private final Note fundamentalNote;
+	private final ModalScale scale;
+	private final ScaleType scaleType;
+	private final Note[] notes;
+	private final List<Note> noteList;
+	//Mask of the pitch classes of the scale (bit 0 = C, bit 11 = B)
+	private final int pitchClassMask;
+	//Index of the note in the scale for each pitch class, -1 if the pitch class is not in the scale
+	private final int[] pitchClassIndex;
+
+	PossibleScale(int catalogueIndex, Note fundamentalNote, Note[] notes, ModalScale scale, ScaleType scaleType) {
+		this.catalogueIndex = catalogueIndex;
 		this.fundamentalNote = fundamentalNote;
 		this.scale = scale;
 		this.scaleType = scaleType;
-		this.noteList = noteList;
+		this.notes = notes;
+		this.noteList = Collections.unmodifiableList(Arrays.asList(notes));
+
+		int mask = 0;
+		pitchClassIndex = new int[12];
+		Arrays.fill(pitchClassIndex, -1);
+		for(int i = 0; i < notes.length; i++) {
+			mask |= 1 << notes[i].getOffsetFromC();
+			pitchClassIndex[notes[i].getOffsetFromC()] = i;
+		}
+		this.pitchClassMask = mask;
 	}
 
-	public Note getFundamentalNote() {
-		return fundamentalNote;
+	public int getCatalogueIndex() {
+		return catalogueIndex;
 	}
 
-	public void setFundamentalNote(Note fundamentalNote) {
-		this.fundamentalNote = fundamentalNote;
+	public Note getFundamentalNote() {
+		return fundamentalNote;
 	}
 
 	public ModalScale getScale() {
 		return scale;
 	}
 
-	public void setScale(ModalScale scale) {
-		this.scale = scale;
+	public ScaleType getScaleType() {
+		return scaleType;
 	}
 
-	public List<MidiNote> getNoteList() {
+	/**
+	 * Returns the notes of the scale, starting from the fundamental note
+	 * @return the read only list of the notes
+	 */
+	public List<Note> getNoteList() {
 		return noteList;
 	}
 
-	public void setNoteList(List<MidiNote> noteList) {
-		this.noteList = noteList;
+	public int size() {
+		return notes.length;
 	}
 
-	public ScaleType getScaleType() {
-		return scaleType;
+	/**
+	 * Use this method to retrieve the note at a certain position of the scale (0 = fundamental note)
+	 * @param index the position of the note in the scale
+	 * @return the note
+	 */
+	public Note getNote(int index) {
+		return notes[index];
 	}
 
-	public void setScaleType(ScaleType scaleType) {
-		this.scaleType = scaleType;
+	/**
+	 * Use this method to retrieve the position of a note in the scale (0 = fundamental note)
+	 * @param note the note
+	 * @return the position of the note, -1 if the note does not belong to the scale
+	 */
+	public int getIndexOf(Note note) {
+		return pitchClassIndex[note.getOffsetFromC()];
+	}
+
+	public boolean contains(Note note) {
+		return (pitchClassMask & (1 << note.getOffsetFromC())) != 0;
 	}
-	
+
+	public int getPitchClassMask() {
+		return pitchClassMask;
+	}
+
+	@Override
+	public String toString() {
+		return fundamentalNote + ", " + scaleType + ", " + scale;
+	}
+
 }
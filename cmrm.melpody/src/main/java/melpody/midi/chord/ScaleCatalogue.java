@@ -0,0 +1,98 @@
+package melpody.midi.chord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import melpody.midi.note.Note;
+import melpody.midi.scale.ModalScale;
+import melpody.midi.scale.ScaleType;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to collect all the scales that can be defined combining a root note, a type of scale and a mode
+ * (12 x 5 x 7 scales). The catalogue is computed once, when the class is loaded, and it is never modified:
+ * the scales can be shared among all the processes.
+ *
+ */
+public final class ScaleCatalogue {
+
+	private static final int SCALE_TYPE_COUNT = ScaleType.values().length;
+	private static final int MODAL_SCALE_COUNT = ModalScale.values().length;
+
+	public static final int SIZE = Note.values().length * SCALE_TYPE_COUNT * MODAL_SCALE_COUNT;
+
+	private static final PossibleScale[] scales = new PossibleScale[SIZE];
+
+	static {
+		for(Note n : Note.values()) {
+			for(ScaleType st : ScaleType.values()) {
+				for(ModalScale ms : ModalScale.values()) {
+					int idx = getIndex(n, st, ms);
+					scales[idx] = new PossibleScale(idx, n, getAllNoteScaleMode(n, st, ms), ms, st);
+				}
+			}
+		}
+	}
+
+	private ScaleCatalogue() {}
+
+	/**
+	 * Use this method to retrieve the position of a scale in the catalogue
+	 * @param n the root note
+	 * @param st the type of scale
+	 * @param ms the mode of the scale
+	 * @return the position of the scale
+	 */
+	public static int getIndex(Note n, ScaleType st, ModalScale ms) {
+		return (n.ordinal() * SCALE_TYPE_COUNT + st.ordinal()) * MODAL_SCALE_COUNT + ms.ordinal();
+	}
+
+	/**
+	 * Use this method to retrieve the scale defined by a key value (note, type of scale, mode of the scale)
+	 * @param n the root note
+	 * @param st the type of scale
+	 * @param ms the mode of the scale
+	 * @return the shared instance of the scale
+	 */
+	public static PossibleScale getScale(Note n, ScaleType st, ModalScale ms) {
+		return scales[getIndex(n, st, ms)];
+	}
+
+	/**
+	 * Use this method to retrieve a scale from its position in the catalogue
+	 * @param index the position of the scale
+	 * @return the shared instance of the scale
+	 */
+	public static PossibleScale getScale(int index) {
+		return scales[index];
+	}
+
+	/**
+	 * This method computes the notes of a key value (note, type of scale, mode of the scale), without repetitions
+	 * @param n the note
+	 * @param st the type of scale
+	 * @param ms the mode of the scale
+	 * @return the notes in the scale defined by parameters, starting from the root note
+	 */
+	private static Note[] getAllNoteScaleMode(Note n, ScaleType st, ModalScale ms) {
+		List<Note> allNote = new ArrayList<Note>();
+		allNote.add(n);
+
+		int offset = n.getOffsetFromC();
+		int size = st.intervalNoteScale.size();
+		for(int i = 0; i < size; i++) {
+			int indexTrasposition = (i + ms.getProgressiveIndex()) % size;
+			offset = (offset + st.intervalNoteScale.get(indexTrasposition)) % 12;
+			Note noteToBeAdded = Note.getNote(offset);
+
+			if(!allNote.contains(noteToBeAdded)) {
+				allNote.add(noteToBeAdded);
+			}
+		}
+
+		return allNote.toArray(new Note[allNote.size()]);
+	}
+
+}
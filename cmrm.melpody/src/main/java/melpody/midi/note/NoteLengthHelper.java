@@ -18,24 +18,36 @@ public class NoteLengthHelper {
 			Long start = note.getTimestampEventStart();
 			Long end = note.getTimestampEventEnd();
 			
-			Long length = end - start;
-			
-			if(length.intValue() <= RESOLUTION_LENGTH / 4) {
-				note.setNoteLength(NoteLength.SIXTY_FOURTH_NOTE);
-			}else if(length.intValue() <= RESOLUTION_LENGTH / 2) {
-				note.setNoteLength(NoteLength.THIRTY_SECOND_NOTE);
-			}else if(length.intValue() <= RESOLUTION_LENGTH) {
-				note.setNoteLength(NoteLength.SIXTEENTH_NOTE);
-			}else if(length.intValue() <= RESOLUTION_LENGTH * 2) {
-				note.setNoteLength(NoteLength.EIGHTH_NOTE);
-			}else if(length.intValue() <= RESOLUTION_LENGTH * 4) {
-				note.setNoteLength(NoteLength.QUARTER_NOTE);
-			}else if(length.intValue() <= RESOLUTION_LENGTH * 8) {
-				note.setNoteLength(NoteLength.HALF_NOTE);
-			}else if(length.intValue() <= RESOLUTION_LENGTH * 16) {
-				note.setNoteLength(NoteLength.WHOLE_NOTE);
-			}
+			note.setNoteLength(getNoteLength(end - start));
+		}
+	}
+	
+	/**
+	 * Use this method to map a duration in time instants to the length of a note
+	 * @param length the duration of the note
+	 * @return the length of the note, null if the duration is longer than a whole note
+	 */
+	public static NoteLength getNoteLength(long length) {
+		
+		NoteLength noteLength = null;
+		
+		if(length <= RESOLUTION_LENGTH / 4) {
+			noteLength = NoteLength.SIXTY_FOURTH_NOTE;
+		}else if(length <= RESOLUTION_LENGTH / 2) {
+			noteLength = NoteLength.THIRTY_SECOND_NOTE;
+		}else if(length <= RESOLUTION_LENGTH) {
+			noteLength = NoteLength.SIXTEENTH_NOTE;
+		}else if(length <= RESOLUTION_LENGTH * 2) {
+			noteLength = NoteLength.EIGHTH_NOTE;
+		}else if(length <= RESOLUTION_LENGTH * 4) {
+			noteLength = NoteLength.QUARTER_NOTE;
+		}else if(length <= RESOLUTION_LENGTH * 8) {
+			noteLength = NoteLength.HALF_NOTE;
+		}else if(length <= RESOLUTION_LENGTH * 16) {
+			noteLength = NoteLength.WHOLE_NOTE;
 		}
+		
+		return noteLength;
 	}
 	
 }
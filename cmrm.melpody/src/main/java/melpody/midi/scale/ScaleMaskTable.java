@@ -0,0 +1,233 @@
+package melpody.midi.scale;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.chord.ScaleCatalogue;
+import melpody.midi.note.MidiNote;
+import melpody.midi.note.Note;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to define the table of all the scales (root note, type of scale, mode of the scale) allowed by the
+ * active types of scales and modal scales.
+ *
+ * Each scale is represented by a 12 bit mask of pitch classes (bit 0 = C, bit 11 = B), so the number of notes of a
+ * chord belonging to the scale is the number of bits in common between the mask of the scale and the mask of the chord.
+ * The scales are identified by their index in the table: roots in the order of {@link Note}, then types of scale
+ * and modes in the order of the active lists. Each index refers to the shared scale of the {@link ScaleCatalogue}.
+ *
+ * The best scales of a chord depend only on the mask of the chord: the table keeps the result for each of the 4096 masks
+ * the first time it is requested ({@link #getBestScales(int)}), so the same chord is never analysed twice by the jobs using the table.
+ * At most {@value #MAX_CONFIGURATIONS} tables are kept, the table least recently used is removed.
+ *
+ */
+public final class ScaleMaskTable {
+
+	public static final int MAX_CONFIGURATIONS = 16;
+	private static final int CHORD_MASK_COUNT = 1 << 12;
+
+	//Tabelle in ordine di utilizzo: la prima e' quella usata meno di recente
+	private static final Map<Integer, ScaleMaskTable> tableMap = new LinkedHashMap<Integer, ScaleMaskTable>(MAX_CONFIGURATIONS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ScaleMaskTable> eldest) {
+			if(size() > MAX_CONFIGURATIONS) {
+				evictionCount.increment();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private static final LongAdder hitCount = new LongAdder();
+	private static final LongAdder missCount = new LongAdder();
+	private static final LongAdder evictionCount = new LongAdder();
+
+	private final int configurationId;
+	private final int[] scaleMasks;
+	private final PossibleScale[] scales;
+	//Best scales for each chord mask, computed at the first request
+	private final AtomicReferenceArray<List<PossibleScale>> bestScales = new AtomicReferenceArray<List<PossibleScale>>(CHORD_MASK_COUNT);
+
+	private ScaleMaskTable(int configurationId, List<ScaleType> activeScaleType, List<ModalScale> activeModalScale) {
+		this.configurationId = configurationId;
+
+		int size = Note.values().length * activeScaleType.size() * activeModalScale.size();
+		scaleMasks = new int[size];
+		scales = new PossibleScale[size];
+
+		int idx = 0;
+		for(Note rootNote : Note.values()) {
+			for(ScaleType scaleType : activeScaleType) {
+				for(ModalScale modalScale : activeModalScale) {
+					scales[idx] = ScaleCatalogue.getScale(rootNote, scaleType, modalScale);
+					scaleMasks[idx] = scales[idx].getPitchClassMask();
+					idx++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Use this method to retrieve the table of the scales allowed by the selectors.
+	 * The table is computed once for each configuration of active modal scales and types of scale.
+	 * @param modalScaleSelector the possible modal scales for the process
+	 * @param scaleTypeSelector the possible types of scales for the process
+	 * @return the table of the scales
+	 */
+	public static ScaleMaskTable getInstance(ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		final List<ScaleType> activeScaleType = scaleTypeSelector.getActiveScaleType();
+		final List<ModalScale> activeModalScale = modalScaleSelector.getActiveModalScale();
+		int configurationId = getConfigurationId(activeScaleType, activeModalScale);
+
+		synchronized(tableMap) {
+			return tableMap.computeIfAbsent(configurationId, id -> new ScaleMaskTable(id, activeScaleType, activeModalScale));
+		}
+	}
+
+	/**
+	 * This method defines the identifier of a configuration: bits 0-6 are the active modal scales,
+	 * bits 7-11 the active types of scale
+	 */
+	private static int getConfigurationId(List<ScaleType> activeScaleType, List<ModalScale> activeModalScale) {
+		int configurationId = 0;
+		for(ModalScale ms : activeModalScale) {
+			configurationId |= 1 << ms.ordinal();
+		}
+		for(ScaleType st : activeScaleType) {
+			configurationId |= 1 << (ModalScale.values().length + st.ordinal());
+		}
+		return configurationId;
+	}
+
+	/**
+	 * Use this method to retrieve the mask of the pitch classes of a set of notes
+	 * @param midiNotes the notes
+	 * @return the 12 bit mask of the pitch classes
+	 */
+	public static int getPitchClassMask(List<MidiNote> midiNotes) {
+		int mask = 0;
+		for(int i = 0; i < midiNotes.size(); i++) {
+			mask |= 1 << midiNotes.get(i).getNote().getOffsetFromC();
+		}
+		return mask;
+	}
+
+	/**
+	 * Use this method to find the scales containing the maximum number of pitch classes of a chord.
+	 *
+	 * The method does not allocate memory: the indexes of the scales found are written in the array passed as parameter.
+	 * @param chordMask the 12 bit mask of the pitch classes of the chord
+	 * @param bestScaleIndexes the array filled with the indexes of the scales found, its length must be at least {@link #size()}
+	 * @return the number of scales found (the number of indexes written in the array)
+	 */
+	public int findBestScales(int chordMask, int[] bestScaleIndexes) {
+		int maxCorrespondenceCount = 0;
+		int found = 0;
+
+		for(int idx = 0; idx < scaleMasks.length; idx++) {
+			int correspondenceCount = Integer.bitCount(scaleMasks[idx] & chordMask);
+			if(correspondenceCount > maxCorrespondenceCount) {
+				maxCorrespondenceCount = correspondenceCount;
+				found = 0;
+			}
+			if(correspondenceCount == maxCorrespondenceCount && correspondenceCount > 0) {
+				bestScaleIndexes[found++] = idx;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Use this method to retrieve the scales containing the maximum number of pitch classes of a chord (see {@link #findBestScales(int, int[])}).
+	 *
+	 * The result is computed once for each mask and shared: the list is read only.
+	 * @param chordMask the 12 bit mask of the pitch classes of the chord
+	 * @return the read only list of the best scales, in order of index, null if the mask is 0
+	 */
+	public List<PossibleScale> getBestScales(int chordMask) {
+		int mask = chordMask & (CHORD_MASK_COUNT - 1);
+		if(mask == 0) {
+			return null;
+		}
+
+		List<PossibleScale> chordScales = bestScales.get(mask);
+		if(chordScales != null) {
+			hitCount.increment();
+			return chordScales;
+		}
+
+		missCount.increment();
+		int[] bestScaleIndexes = new int[scaleMasks.length];
+		int found = findBestScales(mask, bestScaleIndexes);
+
+		List<PossibleScale> foundScales = new ArrayList<PossibleScale>(found);
+		for(int i = 0; i < found; i++) {
+			foundScales.add(scales[bestScaleIndexes[i]]);
+		}
+		//Due thread possono calcolare la stessa maschera: il risultato e' identico, resta il primo
+		bestScales.compareAndSet(mask, null, Collections.unmodifiableList(foundScales));
+		return bestScales.get(mask);
+	}
+
+	/**
+	 * Returns the number of requests of {@link #getBestScales(int)} already computed, for all the tables
+	 */
+	public static long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * Returns the number of requests of {@link #getBestScales(int)} computed for the first time, for all the tables
+	 */
+	public static long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * Returns the number of tables removed because more than {@value #MAX_CONFIGURATIONS} configurations have been used
+	 */
+	public static long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * Returns a summary of the use of the best scales of the tables
+	 */
+	public static String getStatistics() {
+		return "Scale table: " + getHitCount() + " hits, " + getMissCount() + " misses, " + getEvictionCount() + " evictions";
+	}
+
+	public int size() {
+		return scaleMasks.length;
+	}
+
+	public int getConfigurationId() {
+		return configurationId;
+	}
+
+	public int getScaleMask(int scaleIndex) {
+		return scaleMasks[scaleIndex];
+	}
+
+	/**
+	 * Use this method to retrieve the scale at a certain position of the table
+	 * @param scaleIndex the position of the scale in the table
+	 * @return the shared instance of the scale
+	 */
+	public PossibleScale getPossibleScale(int scaleIndex) {
+		return scales[scaleIndex];
+	}
+
+}
@@ -0,0 +1,77 @@
+package melpody.midi.track;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.util.SegmentIndex;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to hold the result of the scale analysis of an harmony track.
+ * The analysis is computed once per harmony track and it is never modified afterwards,
+ * so it can be shared by every note of the melody abstraction (and by different runs on the same harmony).
+ * Each instant of time of the map starts a segment: the segment of a note is found by the {@link SegmentIndex} of the analysis.
+ *
+ */
+public final class HarmonyAnalysis {
+
+	//Map time instant - possible scales, read only
+	private final Map<Long, List<PossibleScale>> scalesMap;
+	//Segments in order of instant of time and their possible scales
+	private final SegmentIndex segmentIndex;
+	private final List<List<PossibleScale>> segmentScales;
+
+	HarmonyAnalysis(Map<Long, List<PossibleScale>> scalesMap) {
+		Map<Long, List<PossibleScale>> readOnlyMap = new TreeMap<Long, List<PossibleScale>>();
+
+		for(Map.Entry<Long, List<PossibleScale>> entry : scalesMap.entrySet()) {
+			readOnlyMap.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<PossibleScale>(entry.getValue())));
+		}
+
+		this.scalesMap = Collections.unmodifiableMap(readOnlyMap);
+		this.segmentIndex = new SegmentIndex(readOnlyMap.keySet());
+		this.segmentScales = new ArrayList<List<PossibleScale>>(readOnlyMap.values());
+	}
+
+	/**
+	 * Use this method to retrieve the map where the id is the instant of time of the harmony event and
+	 * the value is the list of the possible scales at that instant. The map and its lists are read only.
+	 * @return the map time instant - possible scales
+	 */
+	public Map<Long, List<PossibleScale>> getScalesMap() {
+		return scalesMap;
+	}
+
+	/**
+	 * Use this method to retrieve the possible scales defined at the specific instant of time of an harmony event
+	 * @param tick the instant of time of the harmony event
+	 * @return the read only list of possible scales, null if no scale is defined at that instant
+	 */
+	public List<PossibleScale> getPossibleScales(Long tick) {
+		return scalesMap.get(tick);
+	}
+
+	/**
+	 * Returns the index of the segments of the analysis: the segment of an instant of time is the last instant of the map not after it
+	 * @return the index of the segments
+	 */
+	public SegmentIndex getSegmentIndex() {
+		return segmentIndex;
+	}
+
+	/**
+	 * Use this method to retrieve the possible scales of a segment
+	 * @param segment the position of the segment in the {@link #getSegmentIndex()}
+	 * @return the read only list of possible scales, null if the segment is {@link SegmentIndex#NO_SEGMENT}
+	 */
+	public List<PossibleScale> getSegmentScales(int segment) {
+		return segment != SegmentIndex.NO_SEGMENT ? segmentScales.get(segment) : null;
+	}
+
+}
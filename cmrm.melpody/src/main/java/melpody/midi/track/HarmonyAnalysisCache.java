@@ -0,0 +1,433 @@
+package melpody.midi.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import converter.MidiInputOutputConverter;
+import converter.StandardMidiFileParser;
+import melpody.MelpodyMain;
+import melpody.metrics.Metrics;
+import melpody.metrics.Phase;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.chord.ScaleCatalogue;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleMaskTable;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.util.MidiTemporalSequenceEvent;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to keep on disk the analysis of the harmony files, so an harmony file used again (e.g. with many melody abstractions,
+ * or in the following runs) is neither parsed nor analysed again.
+ *
+ * Each entry is a file of the directory defined by the property HARMONY_CACHE_DIRECTORY, identified by the SHA-256 hash of the bytes
+ * of the harmony file and by the configuration of the active modal scales and types of scale ({@link ScaleMaskTable#getConfigurationId()}).
+ * The entry contains the notes of the harmony, the instants of the events and, for each segment of the analysis, the indexes of
+ * the candidate scales in the {@link ScaleCatalogue}. The entries are read mapped in memory: an entry not valid (other version of
+ * the format, truncated or corrupted) is deleted and the harmony file is parsed again.
+ *
+ * When the size of the directory exceeds HARMONY_CACHE_MAX_MB megabytes, the entries least recently used are deleted.
+ * Without the property HARMONY_CACHE_DIRECTORY the harmony files are always parsed and analysed.
+ *
+ */
+public final class HarmonyAnalysisCache {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String DIRECTORY_PROPERTY = "HARMONY_CACHE_DIRECTORY";
+	public static final String MAX_SIZE_PROPERTY = "HARMONY_CACHE_MAX_MB";
+	public static final String ENTRY_EXTENSION = ".mha";
+	private static final String DEFAULT_MAX_SIZE = "64";
+
+	//Intestazione delle voci: "MHAC" e versione del formato (2: senza la maschera delle note premute dei segmenti)
+	private static final int MAGIC = 0x4D484143;
+	private static final int VERSION = 2;
+	private static final int HASH_LENGTH = 32;
+	//Byte di una nota, di un istante e di un segmento senza scale
+	private static final int NOTE_BYTES = 8 + 8 + 1 + 1;
+	private static final int TICK_BYTES = 8;
+	private static final int SEGMENT_BYTES = 8 + 2;
+	private static final int SCALE_BYTES = 2;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static volatile HarmonyAnalysisCache instance;
+
+	private final File directory;
+	private final long maxSize;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates a cache
+	 * @param directory the directory of the entries, created if it does not exist
+	 * @param maxSize the maximum size of the entries in bytes
+	 */
+	public HarmonyAnalysisCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Use this method to activate the cache of the directory defined by the property HARMONY_CACHE_DIRECTORY.
+	 * Without the property the cache is not used
+	 * @param properties the properties of the process
+	 */
+	public static synchronized void initialize(Properties properties) {
+		String directoryName = properties.getProperty(DIRECTORY_PROPERTY);
+		if(directoryName == null || directoryName.trim().isEmpty()) {
+			instance = null;
+			return;
+		}
+
+		File cacheDirectory = new File(directoryName.trim());
+		if(!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+			log.warning("Harmony cache directory " + cacheDirectory + " cannot be created: cache not used");
+			instance = null;
+			return;
+		}
+
+		long maxSizeMb = Long.parseLong(properties.getProperty(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE).trim());
+		instance = new HarmonyAnalysisCache(cacheDirectory, maxSizeMb * 1024L * 1024L);
+		log.info("Harmony cache " + cacheDirectory + ", max " + maxSizeMb + " MB");
+	}
+
+	/**
+	 * Returns the cache activated by {@link #initialize(Properties)}
+	 * @return the cache, null if the cache is not used
+	 */
+	public static HarmonyAnalysisCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Use this method to read an harmony file with its analysis, from the cache activated by {@link #initialize(Properties)} if any
+	 * @param harmonyFile the harmony file
+	 * @param parser the parser of the file (see {@link MidiInputOutputConverter#MIDI_PARSER_PROPERTY})
+	 * @param modalScaleSelector the possible modal scales for the process
+	 * @param scaleTypeSelector the possible types of scales for the process
+	 * @return the harmony track, with the analysis already computed for the selectors
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	public static HarmonyMidiTrack loadHarmony(File harmonyFile, String parser, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException, IOException {
+		HarmonyAnalysisCache cache = instance;
+		if(cache != null) {
+			return cache.getHarmony(harmonyFile, parser, modalScaleSelector, scaleTypeSelector);
+		}
+		return (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi(harmonyFile.getPath(), HarmonyMidiTrack.class, parser);
+	}
+
+	/**
+	 * Use this method to read the bytes of an harmony file (e.g. received by the generation service) with its analysis, 
+	 * from the cache activated by {@link #initialize(Properties)} if any
+	 * @param harmonyBytes the bytes of the harmony file, from the current position to the limit
+	 * @param modalScaleSelector the possible modal scales for the process
+	 * @param scaleTypeSelector the possible types of scales for the process
+	 * @return the harmony track, with the analysis already computed for the selectors
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	public static HarmonyMidiTrack loadHarmony(ByteBuffer harmonyBytes, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException, IOException {
+		HarmonyAnalysisCache cache = instance;
+		if(cache != null) {
+			return cache.getHarmony(harmonyBytes, null, MidiInputOutputConverter.MAPPED_PARSER, modalScaleSelector, scaleTypeSelector);
+		}
+
+		HarmonyMidiTrack harmony = (HarmonyMidiTrack) MidiTrackFactory.getCorrectType(HarmonyMidiTrack.class);
+		Metrics.Timer timer = Metrics.start(Phase.PARSE);
+		try {
+			StandardMidiFileParser.parse(harmonyBytes, harmony);
+		}finally {
+			timer.close();
+		}
+		harmony.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector);
+		return harmony;
+	}
+
+	/**
+	 * Use this method to read an harmony file with its analysis: if the cache contains the analysis of the same bytes with the same
+	 * configuration the file is not parsed, otherwise the file is parsed and analysed and the entry is added to the cache
+	 * @param harmonyFile the harmony file
+	 * @param parser the parser of the file, used only if the entry is not in the cache
+	 * @param modalScaleSelector the possible modal scales for the process
+	 * @param scaleTypeSelector the possible types of scales for the process
+	 * @return the harmony track, with the analysis already computed for the selectors
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	public HarmonyMidiTrack getHarmony(File harmonyFile, String parser, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException, IOException {
+		try(FileChannel channel = FileChannel.open(harmonyFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer harmonyBytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return getHarmony(harmonyBytes, harmonyFile, parser, modalScaleSelector, scaleTypeSelector);
+		}
+	}
+
+	/**
+	 * This method reads the harmony from the cache or parses and analyses the bytes, adding the entry to the cache
+	 * @param harmonyFile the file of the bytes, used only by the JAVAX_SOUND parser and by the log (null if the bytes have no file)
+	 */
+	private HarmonyMidiTrack getHarmony(ByteBuffer harmonyBytes, File harmonyFile, String parser, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException, IOException {
+		int configurationId = ScaleMaskTable.getInstance(modalScaleSelector, scaleTypeSelector).getConfigurationId();
+		byte[] hash = getHash(harmonyBytes);
+		File entryFile = new File(directory, toHex(hash) + "-" + Integer.toHexString(configurationId) + ENTRY_EXTENSION);
+		Object source = harmonyFile != null ? harmonyFile : entryFile.getName();
+
+		HarmonyMidiTrack harmony = readEntry(entryFile, hash, configurationId, modalScaleSelector, scaleTypeSelector);
+		if(harmony != null) {
+			hitCount.incrementAndGet();
+			log.fine(() -> "Harmony cache hit " + source);
+			return harmony;
+		}
+
+		missCount.incrementAndGet();
+		log.fine(() -> "Harmony cache miss " + source);
+		if(harmonyFile != null && MidiInputOutputConverter.JAVAX_SOUND_PARSER.equalsIgnoreCase(parser)) {
+			harmony = (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi(harmonyFile.getPath(), HarmonyMidiTrack.class, parser);
+		}else {
+			harmony = (HarmonyMidiTrack) MidiTrackFactory.getCorrectType(HarmonyMidiTrack.class);
+			Metrics.Timer timer = Metrics.start(Phase.PARSE);
+			try {
+				StandardMidiFileParser.parse(harmonyBytes, harmony);
+			}finally {
+				timer.close();
+			}
+		}
+
+		HarmonyAnalysis analysis = harmony.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector);
+		try {
+			writeEntry(entryFile, hash, configurationId, harmony, analysis);
+			evict();
+		}catch(IOException e) {
+			//La cache non e' indispensabile: l'armonia analizzata viene usata comunque
+			log.log(Level.WARNING, "Harmony cache entry " + entryFile + " not written: " + e.getMessage(), e);
+		}
+		return harmony;
+	}
+
+	/**
+	 * This method reads an entry of the cache
+	 * @return the harmony track, null if the entry does not exist or it is not valid
+	 */
+	private HarmonyMidiTrack readEntry(File entryFile, byte[] hash, int configurationId, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		if(!entryFile.isFile()) {
+			return null;
+		}
+
+		try(FileChannel channel = FileChannel.open(entryFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			byte[] entryHash = new byte[HASH_LENGTH];
+			if(data.getInt() != MAGIC || data.getInt() != VERSION) {
+				throw new IOException("unknown format");
+			}
+			data.get(entryHash);
+			if(!Arrays.equals(hash, entryHash) || data.getInt() != configurationId) {
+				throw new IOException("different harmony or configuration");
+			}
+
+			HarmonyMidiTrack harmony = (HarmonyMidiTrack) MidiTrackFactory.getCorrectType(HarmonyMidiTrack.class);
+			harmony.setEndOfTrack(data.getLong());
+
+			int noteCount = getCount(data, NOTE_BYTES);
+			MidiTemporalSequenceEvent notes = new MidiTemporalSequenceEvent(noteCount);
+			for(int i = 0; i < noteCount; i++) {
+				long startTick = data.getLong();
+				long endTick = data.getLong();
+				int midiKey = data.get() & 0x7F;
+				int velocity = data.get() & 0x7F;
+				notes.addNote(midiKey, velocity, startTick, endTick);
+			}
+			notes.sortByStartTick();
+
+			Set<Long> eventTimeList = harmony.getEventTimeList();
+			int eventCount = getCount(data, TICK_BYTES);
+			for(int i = 0; i < eventCount; i++) {
+				eventTimeList.add(data.getLong());
+			}
+			harmony.setMidiInformation(notes);
+
+			Map<Long, List<PossibleScale>> scalesMap = new TreeMap<Long, List<PossibleScale>>();
+			int segmentCount = getCount(data, SEGMENT_BYTES);
+			for(int i = 0; i < segmentCount; i++) {
+				long tick = data.getLong();
+				int scaleCount = data.getShort() & 0xFFFF;
+				if(scaleCount > data.remaining() / SCALE_BYTES) {
+					throw new IOException("truncated entry");
+				}
+				List<PossibleScale> scales = new ArrayList<PossibleScale>(scaleCount);
+				for(int j = 0; j < scaleCount; j++) {
+					scales.add(ScaleCatalogue.getScale(data.getShort() & 0xFFFF));
+				}
+				scalesMap.put(tick, scales);
+			}
+
+			harmony.setHarmonyAnalysis(new HarmonyAnalysis(scalesMap), modalScaleSelector, scaleTypeSelector);
+			//Data di modifica = ultimo uso, per l'ordine di eliminazione
+			entryFile.setLastModified(System.currentTimeMillis());
+			return harmony;
+		}catch(IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+			log.warning("Harmony cache entry " + entryFile + " not valid: " + e);
+			entryFile.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * This method reads the number of elements of a section of an entry: an entry corrupted could declare more elements than
+	 * the bytes left, so the number is checked before the elements are allocated
+	 * @param elementBytes the minimum number of bytes of an element
+	 */
+	private static int getCount(ByteBuffer data, int elementBytes) throws IOException {
+		int count = data.getInt();
+		if(count < 0 || count > data.remaining() / elementBytes) {
+			throw new IOException("truncated entry: " + count + " elements declared, " + data.remaining() + " bytes left");
+		}
+		return count;
+	}
+
+	/**
+	 * This method writes an entry of the cache in a temporary file, then the file is renamed: an entry is never read while it is written
+	 */
+	private void writeEntry(File entryFile, byte[] hash, int configurationId, HarmonyMidiTrack harmony, HarmonyAnalysis analysis) throws IOException {
+		MidiTemporalSequenceEvent notes = harmony.getMidiInformation();
+		Map<Long, List<PossibleScale>> scalesMap = analysis.getScalesMap();
+
+		int size = 4 + 4 + HASH_LENGTH + 4 + 8 + 4 + notes.size() * NOTE_BYTES + 4 + harmony.getEventTimeList().size() * TICK_BYTES + 4;
+		for(List<PossibleScale> scales : scalesMap.values()) {
+			size += SEGMENT_BYTES + scales.size() * SCALE_BYTES;
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(size);
+		data.putInt(MAGIC).putInt(VERSION).put(hash).putInt(configurationId);
+		data.putLong(harmony.getEndOfTrack());
+
+		data.putInt(notes.size());
+		for(int i = 0; i < notes.size(); i++) {
+			data.putLong(notes.getStart(i)).putLong(notes.getEnd(i));
+			data.put((byte) notes.getMidiKey(i)).put((byte) notes.getVelocity(i));
+		}
+
+		data.putInt(harmony.getEventTimeList().size());
+		for(Long tick : harmony.getEventTimeList()) {
+			data.putLong(tick);
+		}
+
+		data.putInt(scalesMap.size());
+		for(Map.Entry<Long, List<PossibleScale>> entry : scalesMap.entrySet()) {
+			data.putLong(entry.getKey());
+			data.putShort((short) entry.getValue().size());
+			for(PossibleScale ps : entry.getValue()) {
+				data.putShort((short) ps.getCatalogueIndex());
+			}
+		}
+		data.flip();
+
+		Path temporaryFile = Files.createTempFile(directory.toPath(), "entry", ".tmp");
+		try {
+			try(FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+				while(data.hasRemaining()) {
+					channel.write(data);
+				}
+			}
+			Files.move(temporaryFile, entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	/**
+	 * This method deletes the entries least recently used until the size of the entries is not greater than the maximum size
+	 */
+	private synchronized void evict() {
+		File[] entries = directory.listFiles((dir, name) -> name.endsWith(ENTRY_EXTENSION));
+		if(entries == null) {
+			return;
+		}
+
+		long totalSize = 0L;
+		for(File entry : entries) {
+			totalSize += entry.length();
+		}
+		if(totalSize <= maxSize) {
+			return;
+		}
+
+		Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+		for(int i = 0; i < entries.length && totalSize > maxSize; i++) {
+			long entrySize = entries[i].length();
+			if(entries[i].delete()) {
+				totalSize -= entrySize;
+				evictionCount.incrementAndGet();
+				log.fine("Harmony cache entry evicted " + entries[i].getName());
+			}
+		}
+	}
+
+	private static byte[] getHash(ByteBuffer bytes) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(bytes.duplicate());
+			return digest.digest();
+		}catch(NoSuchAlgorithmException e) {
+			//SHA-256 e' disponibile in ogni Java SE
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+		}
+		return new String(hex);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Harmony cache " + directory + ": " + getHitCount() + " hits, " + getMissCount() + " misses, " + getEvictionCount() + " evictions";
+	}
+
+}
@@ -1,23 +1,26 @@
 package melpody.midi.track;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import melpody.MelpodyMain;
+import melpody.metrics.Metrics;
+import melpody.metrics.Phase;
 import melpody.midi.chord.PossibleScale;
+import melpody.midi.chord.ScaleCatalogue;
 import melpody.midi.note.MidiNote;
 import melpody.midi.note.Note;
 import melpody.midi.scale.ModalScale;
 import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleMaskTable;
 import melpody.midi.scale.ScaleType;
 import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.util.MidiTemporalSequenceEvent;
+import melpody.midi.util.NoteIntervalIndex;
 
 /**
  * 
@@ -30,10 +33,55 @@ public class HarmonyMidiTrack extends AbstractMidiTrack {
 	
 	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
 	
+	//Analysis of the scales, computed once for the selectors used
+	private HarmonyAnalysis harmonyAnalysis;
+	private ModalScaleInitProcess analysisModalScaleSelector;
+	private ScaleTypeInitProcess analysisScaleTypeSelector;
+	//Index of the notes on their time interval
+	private NoteIntervalIndex noteIntervalIndex;
+	
 	protected HarmonyMidiTrack() {
 		super();
 	}
 	
+	/**
+	 * Use this method to retrieve the analysis of the possible scales of the whole harmony.
+	 * 
+	 * The analysis is computed only the first time the method is called with a given couple of selectors, 
+	 * the following calls return the same immutable object. 
+	 * @param modalScaleSelector the possible modal scales for the process 
+	 * @param scaleTypeSelector the possible types of scales for the process
+	 * @return the immutable analysis of the harmony
+	 */
+	public synchronized HarmonyAnalysis getHarmonyAnalysis(ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		if(harmonyAnalysis == null 
+				|| analysisModalScaleSelector != modalScaleSelector 
+				|| analysisScaleTypeSelector != scaleTypeSelector) {
+			Metrics.Timer timer = Metrics.start(Phase.ANALYSIS);
+			try {
+				harmonyAnalysis = new HarmonyAnalysis(getScalesMap(modalScaleSelector, scaleTypeSelector));
+			}finally {
+				timer.close();
+			}
+			analysisModalScaleSelector = modalScaleSelector;
+			analysisScaleTypeSelector = scaleTypeSelector;
+		}
+		
+		return harmonyAnalysis;
+	}
+	
+	/**
+	 * Use this method to assign an analysis already computed for the selectors (e.g. read from the {@link HarmonyAnalysisCache})
+	 * @param analysis the analysis of the harmony
+	 * @param modalScaleSelector the possible modal scales of the analysis
+	 * @param scaleTypeSelector the possible types of scales of the analysis
+	 */
+	synchronized void setHarmonyAnalysis(HarmonyAnalysis analysis, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		harmonyAnalysis = analysis;
+		analysisModalScaleSelector = modalScaleSelector;
+		analysisScaleTypeSelector = scaleTypeSelector;
+	}
+	
 	/**
 	 * Use this method to explore the possible scales that can be used on the harmony defined in a certain
 	 * instant of time.
@@ -50,16 +98,16 @@ public class HarmonyMidiTrack extends AbstractMidiTrack {
 	public Map<Long, List<PossibleScale>> getScalesMap(ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector){
 		Map<Long, List<PossibleScale>> chordsMap = new TreeMap<Long, List<PossibleScale>>();
 		
+		ScaleMaskTable scaleMaskTable = ScaleMaskTable.getInstance(modalScaleSelector, scaleTypeSelector);
+		
 		Long previousTick = null;
 		
 		for(Long tick : eventTimeList) {
-			List<PossibleScale> scale = getPossibleScaleFromTick(tick, modalScaleSelector, scaleTypeSelector);
+			List<PossibleScale> scale = getPossibleScaleFromTick(tick, scaleMaskTable);
 			if(scale != null) {
 				chordsMap.put(tick, scale);
 				previousTick = tick;
-			}else if(previousTick != null){
-				scale = getPossibleScaleFromTick(previousTick, modalScaleSelector, scaleTypeSelector);
-			}else {
+			}else if(previousTick == null){
 				log.log(Level.SEVERE, "Unexpected error");
 			}
 		}
@@ -73,141 +121,76 @@ public class HarmonyMidiTrack extends AbstractMidiTrack {
 	 * @return the list of note pressed
 	 */
 	public List<MidiNote> getPressedNoteAtTick(Long tick){
-		
-		List<MidiNote> notePressedAtTick = new ArrayList<MidiNote>();
-		
-		for(MidiNote mn : midiInformation.getMidiNotes()) {
-			if(mn.getTimestampEventStart() <= tick && mn.getTimestampEventEnd() >= tick) {
-				notePressedAtTick.add(mn);
-			}else if(!notePressedAtTick.isEmpty() && mn.getTimestampEventStart() <= tick && mn.getTimestampEventEnd() >= tick){
-				break;
-			}
+		return getNoteIntervalIndex().getNotesAtTick(tick);
+	}
+	
+	/**
+	 * Use this method to retrieve which are the notes sounding for at least one instant of time in a range
+	 * @param fromTick the first instant of time of the range
+	 * @param toTick the last instant of time of the range
+	 * @return the list of note sounding in the range
+	 */
+	public List<MidiNote> getPressedNoteBetweenTicks(long fromTick, long toTick){
+		return getNoteIntervalIndex().getNotesInRange(fromTick, toTick);
+	}
+	
+	@Override
+	public void setMidiInformation(MidiTemporalSequenceEvent midiInformation) {
+		super.setMidiInformation(midiInformation);
+		noteIntervalIndex = midiInformation != null ? new NoteIntervalIndex(midiInformation) : null;
+	}
+	
+	/**
+	 * Returns the index of the notes of the track, built when the notes are assigned to the track
+	 * @return the index of the notes
+	 */
+	private NoteIntervalIndex getNoteIntervalIndex() {
+		if(noteIntervalIndex == null) {
+			noteIntervalIndex = new NoteIntervalIndex(midiInformation);
 		}
-		
-		return notePressedAtTick;
+		return noteIntervalIndex;
+	}
+	
+	/**
+	 * Use this method to retrieve the mask of the pitch classes (bit 0 = C, bit 11 = B) of the notes "pressed" at a certain instant of time
+	 * @param tick the instant of time
+	 * @return the 12 bit mask of the pitch classes pressed, 0 if no note is pressed
+	 */
+	public int getPressedPitchClassMaskAtTick(long tick) {
+		int mask = 0;
+		for(int noteIndex : getNoteIntervalIndex().getNoteIndexesAtTick(tick)) {
+			mask |= 1 << (midiInformation.getMidiKey(noteIndex) % 12);
+		}
+		return mask;
 	}
 	
 	/**
 	 * Given a certain instant of time, the method defines which are the best possible scales, evaluating the 
 	 * pressed notes of the harmony in the same instant of time. 
 	 * @param tick the instant of time
-	 * @param scaleTypeSelector the possible types of scales for the process
-	 * @param modalScaleSelector the possible modal scales for the process 
+	 * @param scaleMaskTable the table of the scales allowed for the process
 	 * @return the list of possible scales
 	 */
-	private List<PossibleScale> getPossibleScaleFromTick(Long tick, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+	private List<PossibleScale> getPossibleScaleFromTick(Long tick, ScaleMaskTable scaleMaskTable) {
 		//Prendo le note che sono suonate al tick passato come parametro
-		List<MidiNote> notePressedAtTick = getPressedNoteAtTick(tick);
+		int chordMask = getPressedPitchClassMaskAtTick(tick);
 		
 		//Faccio un controllo con tutte le scale possibili e creo l'accordo che meglio si presta alle note suonate
-		return findBestChord(notePressedAtTick, modalScaleSelector, scaleTypeSelector);
+		return findBestChord(chordMask, scaleMaskTable);
 	}
 
 	/**
 	 * This method finds all the possible scale containing the notes passed as parameter.
 	 * 
-	 * The selection of the scale is ruled by the maximum number of notes "found" respect to the number of notes passed as parameter.
+	 * The selection of the scale is ruled by the maximum number of pitch classes "found" respect to the pitch classes of the notes passed as parameter.
+	 * The result of each chord is computed once by the table and shared by all the harmonies.
 	 * 
-	 * @param notePressedAtTick the notes to be found
-	 * @param scaleTypeSelector the possible types of scales for the process
-	 * @param modalScaleSelector the possible modal scales for the process 
-	 * @return the list of possible scale containing the maximum number of parameter's notes found among all possible scales
+	 * @param chordMask the 12 bit mask of the pitch classes to be found
+	 * @param scaleMaskTable the table of the scales allowed for the process
+	 * @return the read only list of possible scale containing the maximum number of parameter's notes found among all possible scales
 	 */
-	private List<PossibleScale> findBestChord(List<MidiNote> notePressedAtTick, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
-		List<PossibleScale> chord = null;
-		
-		
-		if(notePressedAtTick != null && !notePressedAtTick.isEmpty()) {
-			Map<Note, Map<ScaleType, Map<ModalScale, List<Note>>>> processMap = new HashMap<Note, Map<ScaleType, Map<ModalScale, List<Note>>>>(); 
-
-			int maxCorrespondenceCount = 0;
-			
-			for(Note rootNote : Note.values()) {
-				//considero la nota come root della scala e confronto le restanti note con l'ipotetica scala di riferimento, in tutti i suoi modi
-				Map<ScaleType, Map<ModalScale, List<Note>>> scaleMap = new HashMap<ScaleType, Map<ModalScale, List<Note>>>();
-				processMap.put(rootNote, scaleMap);
-				
-				for(ScaleType scaleType : scaleTypeSelector.getActiveScaleType()) {
-					
-					Map<ModalScale, List<Note>> modalScaleMap = new HashMap<ModalScale, List<Note>>();
-					scaleMap.put(scaleType, modalScaleMap);
-					
-					for(ModalScale modalScale : modalScaleSelector.getActiveModalScale()) {
-						List<Note> noteCheckList = new ArrayList<Note>();
-						modalScaleMap.put(modalScale, noteCheckList);
-						
-						//check delle note presenti sulla scala
-						List<Integer> intervalList = scaleType.intervalNoteScale;
-						List<Integer> modalIntervalList = new ArrayList<Integer>(intervalList.size());
-						
-						for(int i = 0; i < intervalList.size(); i++) {
-							int indexTrasposition = (i + modalScale.getProgressiveIndex()) % intervalList.size();
-							modalIntervalList.add(intervalList.get(indexTrasposition));
-						}
-						
-						for(int j = 0; j < notePressedAtTick.size(); j++) {
-							MidiNote checkNote = notePressedAtTick.get(j);
-							
-							int offsetNoteCheck = checkNote.getNote().getOffsetFromC();
-							//Controllo ogni possibile nota della scala se corrisponde alla nota premuta
-							int count = 0;
-							for(Integer step : modalIntervalList) {
-								count += step;
-								
-								int stepOffset = (rootNote.getOffsetFromC() + count) % 12;
-								
-								//Appartiene alla scala
-								if(stepOffset == offsetNoteCheck) {
-									noteCheckList.add(checkNote.getNote());
-									if(maxCorrespondenceCount < noteCheckList.size()) {
-										maxCorrespondenceCount = noteCheckList.size();
-									}
-									break;
-								}
-							}
-						}
-					}
-				}
-			}
-			
-			if(!processMap.isEmpty()) {
-				
-				Set<Note> noteSet = new HashSet<Note>(processMap.keySet());
-				for(Note n : noteSet) {
-					Set<ScaleType> scaleTypeSet = new HashSet<ScaleType>(processMap.get(n).keySet());
-					for(ScaleType st : scaleTypeSet) {
-						Set<ModalScale> modalScaleSet = new HashSet<ModalScale>(processMap.get(n).get(st).keySet());
-						for(ModalScale ms : modalScaleSet) {
-							if(processMap.get(n).get(st).get(ms).size() < maxCorrespondenceCount) {
-								processMap.get(n).get(st).remove(ms);
-							}
-						}
-						
-						if(processMap.get(n).get(st).size() == 0) {
-							processMap.get(n).remove(st);
-						}
-					}
-					if(processMap.get(n).size() == 0) {
-						processMap.remove(n);
-					}
-				}
-				
-				chord = new ArrayList<PossibleScale>();
-				
-				noteSet = new HashSet<Note>(processMap.keySet());
-				for(Note n : noteSet) {
-					Set<ScaleType> scaleTypeSet = new HashSet<ScaleType>(processMap.get(n).keySet());
-					for(ScaleType st : scaleTypeSet) {
-						Set<ModalScale> modalScaleSet = new HashSet<ModalScale>(processMap.get(n).get(st).keySet());
-						for(ModalScale ms : modalScaleSet) {
-							chord.add(new PossibleScale(n, getAllNoteScaleMode(n, st, ms), ms, st));
-						}
-					}
-				}
-			}
-		}
-		
-		return chord;
+	private List<PossibleScale> findBestChord(int chordMask, ScaleMaskTable scaleMaskTable) {
+		return scaleMaskTable.getBestScales(chordMask);
 	}
 
 	/**
@@ -218,26 +201,13 @@ public class HarmonyMidiTrack extends AbstractMidiTrack {
 	 * @return the list of notes in the scale defined by parameters
 	 */
 	public static List<MidiNote> getAllNoteScaleMode(Note n, ScaleType st, ModalScale ms) {
-		List<MidiNote> allNote = new ArrayList<MidiNote>();
-		MidiNote previousNote = new MidiNote();
-		previousNote.setNote(n);
-		allNote.add(previousNote);
-		List<Integer> modalIntervalList = new ArrayList<Integer>(st.intervalNoteScale.size());
+		List<Note> scaleNotes = ScaleCatalogue.getScale(n, st, ms).getNoteList();
+		List<MidiNote> allNote = new ArrayList<MidiNote>(scaleNotes.size());
 		
-		for(int i = 0; i < st.intervalNoteScale.size(); i++) {
-			int indexTrasposition = (i + ms.getProgressiveIndex()) % (st.intervalNoteScale.size());
-			modalIntervalList.add(st.intervalNoteScale.get(indexTrasposition));
-		}
-		
-		for(Integer step : modalIntervalList) {
-			Note noteToBeAdded = Note.getNote((previousNote.getNote().getOffsetFromC() + step) % 12);
+		for(Note noteToBeAdded : scaleNotes) {
 			MidiNote midiToBeAdded = new MidiNote();
 			midiToBeAdded.setNote(noteToBeAdded);
-			
-			if(!allNote.contains(midiToBeAdded)) {
-				allNote.add(midiToBeAdded);
-			}
-			previousNote = midiToBeAdded;
+			allNote.add(midiToBeAdded);
 		}
 		
 		return allNote;
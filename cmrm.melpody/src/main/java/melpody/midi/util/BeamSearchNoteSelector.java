@@ -0,0 +1,592 @@
+package melpody.midi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
+import classifier.NoteRank;
+import converter.OutputTrackWriter;
+import melpody.MelpodyMain;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.note.MidiNote;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyAnalysis;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class used to create many output melodies based on the harmony and melody abstraction sequences, keeping the best ones.
+ *
+ * For each note of the melody abstraction the best partial melodies (the beam) are extended with all the notes compatible with the
+ * harmony, the scale of the chord and the melody abstraction. The partial melodies are scored on:
+ * - stability: the probability of the grade of the note according to the preset of the grades ({@link GradeModel}), for the length of the note;
+ * - contour fidelity: the direction and the size of the interval compared with the melody abstraction;
+ * - novelty ratio: the distance between the ratio of tension notes and the ratio expected from the novelty threshold.
+ * The scales of a chord are preferred with the same rules of {@link OutputMidiNoteSelector} (scales of the kind of the chord, then
+ * scales with the same root, then the other scales): a partial melody with a less preferred scale is kept only if the preferred
+ * ones are not enough. The scale of a chord is kept by the following notes of the same chord of the same melody.
+ *
+ * The beam is divided in a group for each melody written (BEAM_RESULTS): the notes equal to the notes chosen by the previous
+ * groups at the same position are penalised, so each melody is the best one among the melodies different from the previous ones.
+ * The first melody is never penalised.
+ *
+ * When no partial melody of a group can be extended, the group revises its choices as {@link OutputMidiNoteSelector} does: the
+ * partial melodies discarded for the previous note replace the beam (at most the last {@value OutputMidiNoteSelector#BACKTRACK_WINDOW}
+ * notes, for a maximum number of times defined by the property MAX_BACKTRACKS). A group that cannot be extended anymore is stopped,
+ * the selection fails only when all the groups are stopped.
+ *
+ */
+public final class BeamSearchNoteSelector {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String BEAM_WIDTH_PROPERTY = "BEAM_WIDTH";
+	public static final String BEAM_RESULTS_PROPERTY = "BEAM_RESULTS";
+
+	//Partial melodies (of all the groups) extended in parallel from this number, when the pool has more than a thread
+	static final int PARALLEL_THRESHOLD = 2;
+	//Penalty of a note equal to the note of a previous group, in units of the score of a note (stability + contour, at most 2)
+	static final double DIVERSITY_WEIGHT = 0.5D;
+
+	private final int beamWidth;
+	private final double noveltyRatio;
+	private final boolean sameRoot;
+	private final int maxBacktracks;
+	private final GradeModel gradeModel;
+
+	/**
+	 * Creates a selector configured by the properties of a specific process
+	 * @param properties the properties of the process
+	 */
+	public BeamSearchNoteSelector(Properties properties) {
+		this(properties, getBeamWidth(properties), GradeModelRegistry.getModel(properties));
+	}
+
+	/**
+	 * Creates a selector configured by the properties of a specific process, with a specific number of partial melodies
+	 * @param properties the properties of the process
+	 * @param beamWidth the number of partial melodies kept for each note
+	 * @param gradeModel the preset of the probabilities of the grades, used to score the notes
+	 */
+	public BeamSearchNoteSelector(Properties properties, int beamWidth, GradeModel gradeModel) {
+		this.gradeModel = gradeModel;
+		this.beamWidth = Math.max(beamWidth, 1);
+		this.noveltyRatio = 1D - Double.parseDouble(properties.getProperty("NOVELTY_THRESHOLD"));
+		this.sameRoot = Boolean.parseBoolean(properties.getProperty("SAME_ROOT"));
+		this.maxBacktracks = OutputMidiNoteSelector.getMaxBacktracks(properties);
+	}
+
+	/**
+	 * Returns the number of partial melodies defined by the property BEAM_WIDTH (1 if not defined)
+	 * @param properties the properties of the process
+	 * @return the width of the beam
+	 */
+	public static int getBeamWidth(Properties properties) {
+		return Integer.parseInt(properties.getProperty(BEAM_WIDTH_PROPERTY, "1").trim());
+	}
+
+	/**
+	 * Returns the number of melodies to be written defined by the property BEAM_RESULTS (1 if not defined), at most the width of the beam
+	 * @param properties the properties of the process
+	 * @return the number of output melodies
+	 */
+	public static int getBeamResults(Properties properties) {
+		return Math.max(1, Math.min(Integer.parseInt(properties.getProperty(BEAM_RESULTS_PROPERTY, "1").trim()), getBeamWidth(properties)));
+	}
+
+	/**
+	 * Use this method to create the best output melodies: the beam is divided in a group for each track (at most the width of the beam),
+	 * each group creates a melody different from the melodies of the previous groups. The melodies are written by score, the best one
+	 * in the first track: if a group cannot complete its melody the last tracks are left empty, the number of melodies written
+	 * is in the result
+	 *
+	 * @param melodyAbstraction the melody abstraction
+	 * @param harmony the harmony
+	 * @param tracks the writers of the output tracks
+	 * @param modalScaleSelector the set of modal scale accepted
+	 * @param scaleTypeSelector the set of types of scale accepted
+	 * @return the result of the selection, unsatisfiable if no melody can be completed
+	 * @throws InvalidMidiDataException
+	 */
+	public SelectionResult createOutputTracks(MelodyAbstraction melodyAbstraction, HarmonyMidiTrack harmony, List<? extends OutputTrackWriter> tracks, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException {
+
+		//Le note sono ordinate per inizio: i segmenti vengono cercati in avanti dal segmento della nota precedente
+		SegmentIndex chordIndex = new SegmentIndex(harmony.getEventTimeList());
+		SegmentIndex.Cursor chordCursor = chordIndex.cursor();
+		HarmonyAnalysis harmonyAnalysis = harmony.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector);
+		SegmentIndex.Cursor scaleCursor = harmonyAnalysis.getSegmentIndex().cursor();
+		MidiTemporalSequenceEvent melodyAbstractionNotes = melodyAbstraction.getMidiInformation();
+
+		//Un gruppo per ogni melodia scritta, la larghezza del fascio e' divisa tra i gruppi
+		int groupCount = Math.max(1, Math.min(tracks.size(), beamWidth));
+		List<BeamGroup> groups = new ArrayList<BeamGroup>(groupCount);
+		for(int g = 0; g < groupCount; g++) {
+			groups.add(new BeamGroup(g, beamWidth / groupCount + (g < beamWidth % groupCount ? 1 : 0)));
+		}
+
+		//Notes that can still be revised, shared by the groups
+		BeamStep[] steps = new BeamStep[OutputMidiNoteSelector.BACKTRACK_WINDOW + 1];
+		MidiNote previousAbMelNote = null;
+
+		for(int idx = 0; idx < melodyAbstractionNotes.size(); idx++) {
+			long nowTick = melodyAbstractionNotes.getEnd(idx);
+			MidiNote abMelNote = melodyAbstractionNotes.getMidiNote(idx);
+			List<MidiNote> noteHarmony = harmony.getPressedNoteAtTick(nowTick);
+
+			//Chord of the note: the last harmony event not after the end of the note, the first event if the note ends before it
+			int chordSegment = chordCursor.floor(nowTick);
+			Long tickMapChord = chordIndex.size() == 0 ? null : chordIndex.getStart(Math.max(chordSegment, 0));
+
+			List<PossibleScale> possibileScaleList = nowTick != MidiTemporalSequenceEvent.NOT_RELEASED ? harmonyAnalysis.getSegmentScales(scaleCursor.floor(nowTick)) : null;
+
+			//Nessuna scelta precedente puo' rendere compatibile questa nota
+			if(noteHarmony.isEmpty() || possibileScaleList == null || possibileScaleList.isEmpty()) {
+				String reason = noteHarmony.isEmpty() ? "no harmony notes pressed" : "no possible scales for the harmony";
+				log.severe("No possible scales/notes relationship found according to melody abstraction and harmony at tick " + nowTick + ": " + reason);
+				return SelectionResult.unsatisfiable(0, getBacktrackCount(groups), idx, nowTick, reason);
+			}
+
+			steps[idx % steps.length] = new BeamStep(idx, abMelNote, previousAbMelNote, noteHarmony, tickMapChord, possibileScaleList);
+
+			advance(groups, idx, steps);
+
+			boolean extended = false;
+			for(BeamGroup group : groups) {
+				extended |= group.failedReason == null;
+			}
+
+			if(!extended) {
+				BeamGroup last = groups.get(groups.size() - 1);
+				log.severe("No possible scales/notes relationship found according to melody abstraction and harmony at tick " + last.failedTick + ": " + last.failedReason);
+				return SelectionResult.unsatisfiable(0, getBacktrackCount(groups), last.failedNoteIndex, last.failedTick, last.failedReason);
+			}
+
+			previousAbMelNote = abMelNote;
+		}
+
+		//La migliore melodia di ogni gruppo, dal punteggio piu' alto (senza penalita')
+		List<BeamNode> melodies = new ArrayList<BeamNode>(groups.size());
+		for(BeamGroup group : groups) {
+			if(group.failedReason == null) {
+				melodies.add(group.beam.get(0));
+			}
+		}
+		Collections.sort(melodies, Comparator.comparingDouble((BeamNode n) -> n.getScore(noveltyRatio)).reversed());
+
+		int written = 0;
+		for(BeamNode node : melodies) {
+			log.info("Melody " + (written + 1) + " score " + node.getScore(noveltyRatio) + " (stability " + node.stabilitySum / node.length
+					+ ", contour " + node.contourSum / node.length + ", tension ratio " + (double) node.tensionCount / node.length
+					+ ", notes equal to the notes of other melodies " + node.sharedCount + ")");
+
+			BeamNode[] melody = new BeamNode[node.length];
+			for(BeamNode n = node; n != null; n = n.parent) {
+				melody[n.length - 1] = n;
+			}
+			for(BeamNode n : melody) {
+				tracks.get(written).writeNote(n.outputNote, n.step.abMelNote.getTimestampEventStart(), n.step.abMelNote.getTimestampEventEnd());
+			}
+			written++;
+		}
+
+		log.info(written + " melodies written, beam width " + beamWidth);
+
+		return SelectionResult.satisfied(melodyAbstractionNotes.size(), getBacktrackCount(groups), written);
+	}
+
+	/**
+	 * This method extends the partial melodies of the groups up to the note idx, revising the choices of the previous notes if the
+	 * partial melodies cannot be extended. When the choices of a group cannot be revised anymore the group is stopped.
+	 *
+	 * The groups move a note at a time: the partial melodies of all the groups are extended together (in parallel), then each group,
+	 * in order, penalises the notes chosen by the previous groups and keeps its best extensions
+	 */
+	private void advance(List<BeamGroup> groups, int idx, BeamStep[] steps) {
+		List<BeamGroup> active = new ArrayList<BeamGroup>(groups.size());
+
+		while(true) {
+			active.clear();
+			for(BeamGroup group : groups) {
+				if(group.failedReason == null && group.length <= idx) {
+					active.add(group);
+				}
+			}
+			if(active.isEmpty()) {
+				return;
+			}
+
+			List<List<BeamNode>> extensions = expand(active, steps);
+
+			for(int i = 0; i < active.size(); i++) {
+				BeamGroup group = active.get(i);
+				BeamStep step = steps[group.length % steps.length];
+				List<BeamNode> candidates = rank(extensions.get(i), getSharedKeys(group, step.index, groups));
+
+				if(!candidates.isEmpty()) {
+					group.push(candidates);
+				}else if(!backtrack(group, idx)) {
+					String reason = group.backtrackCount >= maxBacktracks ? "no partial melody can be extended after " + group.backtrackCount + " backtracks"
+							: "no partial melody can be extended, the previous notes cannot be revised";
+					log.warning("Melody group " + (group.index + 1) + " stopped at tick " + step.abMelNote.getTimestampEventEnd() + ": " + reason);
+					group.fail(step, reason);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method replaces the beam of the last note that has partial melodies not yet used: the following best ones.
+	 * @return false if the choices cannot be revised (first note, window or maximum number of backtracks reached)
+	 */
+	private boolean backtrack(BeamGroup group, int idx) {
+		while(group.length > 0 && idx - (group.length - 1) <= OutputMidiNoteSelector.BACKTRACK_WINDOW && group.backtrackCount < maxBacktracks) {
+			BeamLevel level = group.levels[(group.length - 1) % group.levels.length];
+
+			if(level.next < level.candidates.size()) {
+				int end = Math.min(level.next + group.width, level.candidates.size());
+				group.beam = new ArrayList<BeamNode>(level.candidates.subList(level.next, end));
+				level.next = end;
+				group.backtrackCount++;
+				return true;
+			}
+
+			//Nessuna alternativa per questa nota: si rivede la nota precedente
+			group.length--;
+		}
+		return false;
+	}
+
+	/**
+	 * This method counts, for each midi key, the previous groups that chose the key for the note: the notes of the partial
+	 * melodies of the previous groups at the same position
+	 */
+	private static int[] getSharedKeys(BeamGroup group, int noteIndex, List<BeamGroup> groups) {
+		int[] sharedKeys = new int[MidiTemporalSequenceEvent.KEY_COUNT];
+
+		for(int g = 0; g < group.index; g++) {
+			BeamGroup previousGroup = groups.get(g);
+			if(previousGroup.failedReason != null || previousGroup.length <= noteIndex) {
+				continue;
+			}
+
+			boolean[] chosen = new boolean[MidiTemporalSequenceEvent.KEY_COUNT];
+			for(BeamNode node : previousGroup.beam) {
+				BeamNode n = node;
+				while(n.length - 1 > noteIndex) {
+					n = n.parent;
+				}
+				int key = n.outputNote.getMidiKeyId();
+				if(key >= 0 && key < chosen.length && !chosen[key]) {
+					chosen[key] = true;
+					sharedKeys[key]++;
+				}
+			}
+		}
+
+		return sharedKeys;
+	}
+
+	/**
+	 * This method extends each partial melody of the beams of the groups, for the next note of each group. The partial melodies are
+	 * extended in parallel, a task for each one, when they are at least {@value #PARALLEL_THRESHOLD} and the pool has more than a thread.
+	 * The extensions of a group follow the order of its beam, so the result does not depend on the threads.
+	 */
+	private List<List<BeamNode>> expand(List<BeamGroup> active, BeamStep[] steps) {
+		List<List<BeamNode>> extensions = new ArrayList<List<BeamNode>>(active.size());
+
+		int parentCount = 0;
+		for(BeamGroup group : active) {
+			parentCount += group.beam.size();
+		}
+
+		int parallelism = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool().getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+		if(parentCount < PARALLEL_THRESHOLD || parallelism < 2) {
+			for(BeamGroup group : active) {
+				BeamStep step = steps[group.length % steps.length];
+				List<BeamNode> groupExtensions = new ArrayList<BeamNode>();
+				for(BeamNode parent : group.beam) {
+					extend(parent, step, groupExtensions);
+				}
+				extensions.add(groupExtensions);
+			}
+			return extensions;
+		}
+
+		List<RecursiveTask<List<BeamNode>>> tasks = new ArrayList<RecursiveTask<List<BeamNode>>>(parentCount);
+		for(BeamGroup group : active) {
+			BeamStep step = steps[group.length % steps.length];
+			for(BeamNode parent : group.beam) {
+				tasks.add(new RecursiveTask<List<BeamNode>>() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected List<BeamNode> compute() {
+						return extend(parent, step, new ArrayList<BeamNode>());
+					}
+				});
+			}
+		}
+
+		if(ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(tasks);
+		}else {
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		}
+
+		int task = 0;
+		for(BeamGroup group : active) {
+			List<BeamNode> groupExtensions = new ArrayList<BeamNode>();
+			for(int p = 0; p < group.beam.size(); p++) {
+				groupExtensions.addAll(tasks.get(task++).join());
+			}
+			extensions.add(groupExtensions);
+		}
+		return extensions;
+	}
+
+	/**
+	 * This method penalises the extensions of a group equal to the notes of the previous groups and sorts them: the scales
+	 * preferred for the chord first, then the best score
+	 */
+	private List<BeamNode> rank(List<BeamNode> candidates, int[] sharedKeys) {
+		for(BeamNode node : candidates) {
+			int key = node.outputNote.getMidiKeyId();
+			node.share(key >= 0 && key < sharedKeys.length ? sharedKeys[key] : 0, noveltyRatio);
+		}
+
+		//Ordinamento stabile: a parita' di categoria e punteggio vale l'ordine di creazione
+		Collections.sort(candidates, Comparator.comparingInt((BeamNode n) -> n.category).thenComparing(Comparator.comparingDouble((BeamNode n) -> n.rank).reversed()));
+
+		return candidates;
+	}
+
+	/**
+	 * This method adds the extensions of a partial melody: a note for each key compatible with the scale of the chord
+	 * (or with each possible scale of the chord if the scale is not yet selected), the best one for each key and scale.
+	 * The extensions are not yet penalised: the penalty is the same for the notes of the same key
+	 */
+	private List<BeamNode> extend(BeamNode parent, BeamStep step, List<BeamNode> extensions) {
+		MidiNote previousNote = parent != null ? parent.outputNote : null;
+
+		List<PossibleScale> scales;
+		if(parent != null && parent.step.chordTick != null && parent.step.chordTick.equals(step.chordTick)) {
+			scales = Collections.singletonList(parent.scale);
+		}else {
+			scales = step.possibleScales;
+		}
+
+		for(PossibleScale possibileScale : scales) {
+			int indexChordNoteInScale = possibileScale.getIndexOf(step.fundamentalChordNote.getNote());
+			if(indexChordNoteInScale < 0) {
+				continue;
+			}
+
+			int category = OutputMidiNoteSelector.getScaleCategory(possibileScale, step.chordThirds, step.fundamentalChordNote.getNote(), sameRoot);
+			List<MidiNote> possibleNoteList = OutputMidiNoteSelector.getPossibleNoteListFromMelodyAbstraction(possibileScale, previousNote, step.abMelNote, step.previousAbMelNote);
+			int firstOfScale = extensions.size();
+
+			for(MidiNote mn : possibleNoteList) {
+				int grade = NoteRank.getGrade(possibileScale, indexChordNoteInScale, mn.getNote());
+				double stability = gradeModel.getStabilityScore(grade, step.abMelNote.getNoteLength());
+				if(stability <= 0D) {
+					continue;
+				}
+
+				int key = mn.getMidiKeyId();
+				BeamNode node = new BeamNode(parent, step, possibileScale, category, mn, stability, getContourFidelity(previousNote, mn, step), gradeModel.isTensionGrade(grade), noveltyRatio);
+
+				//Per ogni tasto e scala tengo solo l'estensione migliore
+				boolean replaced = false;
+				for(int i = firstOfScale; i < extensions.size() && !replaced; i++) {
+					if(extensions.get(i).outputNote.getMidiKeyId() == key) {
+						if(extensions.get(i).rank < node.rank) {
+							extensions.set(i, node);
+						}
+						replaced = true;
+					}
+				}
+				if(!replaced) {
+					extensions.add(node);
+				}
+			}
+		}
+
+		return extensions;
+	}
+
+	private static int getBacktrackCount(List<BeamGroup> groups) {
+		int backtrackCount = 0;
+		for(BeamGroup group : groups) {
+			backtrackCount += group.backtrackCount;
+		}
+		return backtrackCount;
+	}
+
+	/**
+	 * Returns the fidelity of the interval between the previous note and the note to the interval of the melody abstraction:
+	 * half of the score for the same direction, half for the same size of the interval
+	 */
+	private static double getContourFidelity(MidiNote previousNote, MidiNote note, BeamStep step) {
+		if(previousNote == null || step.previousAbMelNote == null) {
+			return 1D;
+		}
+
+		int abstractionInterval = step.abMelNote.getMidiKeyId() - step.previousAbMelNote.getMidiKeyId();
+		int interval = note.getMidiKeyId() - previousNote.getMidiKeyId();
+
+		double direction = Integer.signum(abstractionInterval) == Integer.signum(interval) ? 0.5D : 0D;
+		return direction + 0.5D / (1 + Math.abs(interval - abstractionInterval));
+	}
+
+	/**
+	 * Context of a note of the melody abstraction, shared by all the partial melodies
+	 */
+	private static final class BeamStep {
+
+		private final int index;
+		private final MidiNote abMelNote;
+		private final MidiNote previousAbMelNote;
+		private final Long chordTick;
+		private final List<PossibleScale> possibleScales;
+		private final MidiNote fundamentalChordNote;
+		//Terze dell'accordo, per le categorie delle scale
+		private final int chordThirds;
+
+		private BeamStep(int index, MidiNote abMelNote, MidiNote previousAbMelNote, List<MidiNote> noteHarmony, Long chordTick, List<PossibleScale> possibleScales) {
+			this.index = index;
+			this.abMelNote = abMelNote;
+			this.previousAbMelNote = previousAbMelNote;
+			this.chordTick = chordTick;
+			this.possibleScales = possibleScales;
+			this.fundamentalChordNote = OutputMidiNoteSelector.getLowerFundamentalNote(noteHarmony);
+			this.chordThirds = OutputMidiNoteSelector.getChordThirds(noteHarmony);
+		}
+	}
+
+	/**
+	 * Partial melodies of a group and the partial melodies discarded for the last notes, used to revise the choices
+	 */
+	private static final class BeamGroup {
+
+		private final int index;
+		private final int width;
+		private final BeamLevel[] levels = new BeamLevel[OutputMidiNoteSelector.BACKTRACK_WINDOW + 1];
+
+		//Partial melodies of the last note (a single empty melody before the first note)
+		private List<BeamNode> beam = Collections.singletonList(null);
+		private int length;
+		private int backtrackCount;
+
+		private int failedNoteIndex = -1;
+		private Long failedTick;
+		private String failedReason;
+
+		private BeamGroup(int index, int width) {
+			this.index = index;
+			this.width = width;
+		}
+
+		/**
+		 * The best candidates are the partial melodies of the following note, the other ones are kept for the backtracking
+		 */
+		private void push(List<BeamNode> candidates) {
+			BeamLevel level = new BeamLevel(candidates, Math.min(width, candidates.size()));
+			levels[length % levels.length] = level;
+			beam = new ArrayList<BeamNode>(candidates.subList(0, level.next));
+			length++;
+		}
+
+		private void fail(BeamStep step, String reason) {
+			failedNoteIndex = step.index;
+			failedTick = step.abMelNote.getTimestampEventEnd();
+			failedReason = reason;
+			//Le melodie del gruppo non servono piu'
+			beam = Collections.emptyList();
+			Arrays.fill(levels, null);
+		}
+	}
+
+	/**
+	 * Extensions of the partial melodies for a note, sorted: the first ones not yet used replace the beam when the choices are revised
+	 */
+	private static final class BeamLevel {
+
+		private final List<BeamNode> candidates;
+		private int next;
+
+		private BeamLevel(List<BeamNode> candidates, int next) {
+			this.candidates = candidates;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Last note of a partial melody: the previous notes are shared with the other partial melodies through the parent
+	 */
+	private static final class BeamNode {
+
+		private final BeamNode parent;
+		private final BeamStep step;
+		private final PossibleScale scale;
+		//Categoria della scala rispetto all'accordo della nota (0 = preferita)
+		private final int category;
+		private final MidiNote outputNote;
+		private final int length;
+		private final double stabilitySum;
+		private final double contourSum;
+		private final int tensionCount;
+		//Notes equal to the notes of the previous groups
+		private int sharedCount;
+		//Score with the penalty of the notes equal to the previous groups, used to sort the partial melodies
+		private double rank;
+
+		private BeamNode(BeamNode parent, BeamStep step, PossibleScale scale, int category, MidiNote outputNote, double stability, double contour, boolean tension, double noveltyRatio) {
+			this.parent = parent;
+			this.step = step;
+			this.scale = scale;
+			this.category = category;
+			this.outputNote = outputNote;
+			this.length = step.index + 1;
+			this.stabilitySum = (parent != null ? parent.stabilitySum : 0D) + stability;
+			this.contourSum = (parent != null ? parent.contourSum : 0D) + contour;
+			this.tensionCount = (parent != null ? parent.tensionCount : 0) + (tension ? 1 : 0);
+			share(0, noveltyRatio);
+		}
+
+		/**
+		 * Sets the penalty of the note: the number of previous groups that chose the same key
+		 */
+		private void share(int shared, double noveltyRatio) {
+			this.sharedCount = (parent != null ? parent.sharedCount : 0) + shared;
+			this.rank = getScore(noveltyRatio) - DIVERSITY_WEIGHT * sharedCount / length;
+		}
+
+		private double getScore(double noveltyRatio) {
+			return (stabilitySum + contourSum) / length - Math.abs((double) tensionCount / length - noveltyRatio);
+		}
+	}
+
+}
@@ -1,24 +1,199 @@
 package melpody.midi.util;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
 import melpody.midi.note.MidiNote;
+import melpody.midi.note.Note;
+import melpody.midi.note.NoteLength;
 import melpody.midi.note.NoteLengthHelper;
 /**
- * 
+ *
  * @author Giorgio De Luca
  * Class to collect all the notes of a midi file
  *
+ * The notes are stored by columns of primitive values (start instant, end instant, midi key, velocity and
+ * length of the note): a note is identified by its index. The {@link MidiNote} objects are created only
+ * when requested, as views of the values of a note.
+ *
+ * While the file is parsed, the notes not yet released are kept in a table with a slot for each channel and key:
+ * each slot is a queue of note indexes, so the note released by a "NOTE_OFF" event is found in constant time
+ * (the first note pressed on the same channel and key is released first).
  */
 public class MidiTemporalSequenceEvent {
-	
-	private ArrayList<MidiNote> midiNotes;
-	
+
+	public static final int CHANNEL_COUNT = 16;
+	public static final int KEY_COUNT = 128;
+	//End instant of a note not yet released
+	public static final long NOT_RELEASED = -1L;
+
+	private static final int NO_NOTE = -1;
+	private static final byte NO_LENGTH = -1;
+	private static final NoteLength[] NOTE_LENGTHS = NoteLength.values();
+
+	private int size;
+	private long[] start;
+	private long[] end;
+	private byte[] key;
+	private byte[] velocity;
+	private byte[] lengthCode;
+
+	//First and last note not yet released for each slot channel-key, -1 (NO_NOTE) when no note is pending
+	private int[] openNoteHead;
+	private int[] openNoteTail;
+	//Next note not yet released in the same slot, for each note
+	private int[] nextOpenNote;
+
 	public MidiTemporalSequenceEvent() {
-		midiNotes = new ArrayList<MidiNote>(); 
+		this(64);
+	}
+
+	public MidiTemporalSequenceEvent(int initialCapacity) {
+		int capacity = Math.max(initialCapacity, 1);
+		start = new long[capacity];
+		end = new long[capacity];
+		key = new byte[capacity];
+		velocity = new byte[capacity];
+		lengthCode = new byte[capacity];
+	}
+
+	/**
+	 * Use this method to add a note pressed on a specific channel and key
+	 * @param channel the midi channel (0-15)
+	 * @param midiKey the midi key (0-127)
+	 * @param noteVelocity the velocity of the note
+	 * @param noteTick the time instant
+	 * @return the index of the note
+	 */
+	public int noteOn(int channel, int midiKey, int noteVelocity, long noteTick) {
+		if(size == start.length) {
+			grow(size * 2);
+		}
+		if(openNoteHead == null) {
+			initializeOpenNoteTable();
+		}
+
+		int noteIndex = size++;
+		start[noteIndex] = noteTick;
+		end[noteIndex] = NOT_RELEASED;
+		key[noteIndex] = (byte) midiKey;
+		velocity[noteIndex] = (byte) noteVelocity;
+		lengthCode[noteIndex] = NO_LENGTH;
+		nextOpenNote[noteIndex] = NO_NOTE;
+
+		int slot = getSlot(channel, midiKey);
+		if(openNoteTail[slot] == NO_NOTE) {
+			openNoteHead[slot] = noteIndex;
+		}else {
+			nextOpenNote[openNoteTail[slot]] = noteIndex;
+		}
+		openNoteTail[slot] = noteIndex;
+
+		return noteIndex;
+	}
+
+	/**
+	 * Use this method to set the end of the first note not yet released on a specific channel and key
+	 * @param channel the midi channel (0-15)
+	 * @param midiKey the midi key (0-127)
+	 * @param noteTick the time instant
+	 * @return the index of the note released, -1 if there are no notes pressed on the channel and key
+	 */
+	public int noteOff(int channel, int midiKey, long noteTick) {
+		if(openNoteHead == null) {
+			return NO_NOTE;
+		}
+
+		int slot = getSlot(channel, midiKey);
+		int noteIndex = openNoteHead[slot];
+
+		if(noteIndex == NO_NOTE) {
+			return NO_NOTE;
+		}
+
+		openNoteHead[slot] = nextOpenNote[noteIndex];
+		if(openNoteHead[slot] == NO_NOTE) {
+			openNoteTail[slot] = NO_NOTE;
+		}
+
+		end[noteIndex] = noteTick;
+		NoteLength noteLength = NoteLengthHelper.getNoteLength(noteTick - start[noteIndex]);
+		lengthCode[noteIndex] = noteLength != null ? (byte) noteLength.ordinal() : NO_LENGTH;
+
+		return noteIndex;
+	}
+
+	/**
+	 * Use this method to add a note with its end instant (e.g. a note read from the cache of the harmony analysis).
+	 * The notes must be added by start instant, after the last note added {@link #sortByStartTick()} must be called
+	 * @param midiKey the midi key (0-127)
+	 * @param noteVelocity the velocity of the note
+	 * @param startTick the start instant
+	 * @param endTick the end instant, {@link #NOT_RELEASED} if the note is not released
+	 * @return the index of the note
+	 */
+	public int addNote(int midiKey, int noteVelocity, long startTick, long endTick) {
+		if(size == start.length) {
+			grow(size * 2);
+		}
+
+		int noteIndex = size++;
+		start[noteIndex] = startTick;
+		end[noteIndex] = endTick;
+		key[noteIndex] = (byte) midiKey;
+		velocity[noteIndex] = (byte) noteVelocity;
+		NoteLength noteLength = endTick != NOT_RELEASED ? NoteLengthHelper.getNoteLength(endTick - startTick) : null;
+		lengthCode[noteIndex] = noteLength != null ? (byte) noteLength.ordinal() : NO_LENGTH;
+
+		return noteIndex;
+	}
+
+	/**
+	 * Use this method to sort the notes by start instant (notes with the same start instant keep the order of insertion)
+	 * and to release the memory used to trace the notes not yet released. It is called once all the events are read:
+	 * the notes still pressed remain not released.
+	 */
+	public void sortByStartTick() {
+		openNoteHead = null;
+		openNoteTail = null;
+		nextOpenNote = null;
+
+		boolean sorted = true;
+		for(int i = 1; i < size && sorted; i++) {
+			sorted = start[i - 1] <= start[i];
+		}
+
+		if(!sorted) {
+			int[] order = new int[size];
+			for(int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			mergeSort(order, new int[size], 0, size);
+
+			long[] sortedStart = new long[size];
+			long[] sortedEnd = new long[size];
+			byte[] sortedKey = new byte[size];
+			byte[] sortedVelocity = new byte[size];
+			byte[] sortedLengthCode = new byte[size];
+			for(int i = 0; i < size; i++) {
+				sortedStart[i] = start[order[i]];
+				sortedEnd[i] = end[order[i]];
+				sortedKey[i] = key[order[i]];
+				sortedVelocity[i] = velocity[order[i]];
+				sortedLengthCode[i] = lengthCode[order[i]];
+			}
+			start = sortedStart;
+			end = sortedEnd;
+			key = sortedKey;
+			velocity = sortedVelocity;
+			lengthCode = sortedLengthCode;
+		}else {
+			//Almeno un elemento: una sequenza vuota deve poter ricevere altre note
+			grow(Math.max(size, 1));
+		}
 	}
-	
+
 	/**
 	 * Use this method to set the end of a previous note
 	 * @param mn the midi note
@@ -28,44 +203,165 @@ public class MidiTemporalSequenceEvent {
 	public MidiNote setNoteOff(MidiNote mn, long noteTick) {
 		MidiNote returnOffNote = null;
 		if(mn != null) {
-			List<MidiNote> notReleasedNotes = getMidiNoteNotYetReleased();
-			
-			for(MidiNote nrn : notReleasedNotes) {
-				if(nrn.getNote().equals(mn.getNote()) && nrn.getOctave() == mn.getOctave()) {
-					nrn.setTimestampEventEnd(noteTick);
-					NoteLengthHelper.setNoteLengthToMidiNote(nrn);
-					returnOffNote = nrn;
-					break;
-				}
+			int noteIndex = noteOff(0, mn.getMidiKeyId() + 12, noteTick);
+			if(noteIndex != NO_NOTE) {
+				returnOffNote = getMidiNote(noteIndex);
 			}
 		}
-		
+
 		return returnOffNote;
 	}
-	
+
 	/**
-	 * This method returns the notes not yet released (timestamp end == null)
-	 * @return the notes not yet released
+	 * Use this method to add a note pressed, the note is assigned to the first channel
+	 * @param midiNote the midi note
 	 */
-	private List<MidiNote> getMidiNoteNotYetReleased(){
-		
-		List<MidiNote> notReleasedNote = new ArrayList<MidiNote>();
-		
-		for(MidiNote mn : midiNotes) {
-			if(mn.getTimestampEventEnd() == null && mn.getNoteLength() == null) {
-				notReleasedNote.add(mn);
+	public void add(MidiNote midiNote) {
+		noteOn(0, midiNote.getMidiKeyId() + 12, midiNote.getVelocity(), midiNote.getTimestampEventStart());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getStart(int noteIndex) {
+		return start[noteIndex];
+	}
+
+	/**
+	 * Returns the end instant of a note
+	 * @param noteIndex the index of the note
+	 * @return the end instant, {@link #NOT_RELEASED} if the note is not released
+	 */
+	public long getEnd(int noteIndex) {
+		return end[noteIndex];
+	}
+
+	public int getMidiKey(int noteIndex) {
+		return key[noteIndex];
+	}
+
+	public int getVelocity(int noteIndex) {
+		return velocity[noteIndex];
+	}
+
+	/**
+	 * Returns the code of the length of a note (the ordinal of {@link NoteLength})
+	 * @param noteIndex the index of the note
+	 * @return the code of the length, -1 if the length is not defined
+	 */
+	public int getLengthCode(int noteIndex) {
+		return lengthCode[noteIndex];
+	}
+
+	public NoteLength getNoteLength(int noteIndex) {
+		return lengthCode[noteIndex] != NO_LENGTH ? NOTE_LENGTHS[lengthCode[noteIndex]] : null;
+	}
+
+	/**
+	 * Use this method to create the midi note with the values of a note
+	 * @param noteIndex the index of the note
+	 * @return a new midi note
+	 */
+	public MidiNote getMidiNote(int noteIndex) {
+		return createMidiNote(key[noteIndex], velocity[noteIndex], start[noteIndex], end[noteIndex], getNoteLength(noteIndex));
+	}
+
+	/**
+	 * Use this method to create the midi note of a note not belonging to a sequence (e.g. a note received as a stream of events)
+	 * @param midiKey the midi key (0-127)
+	 * @param noteVelocity the velocity of the note
+	 * @param startTick the start instant
+	 * @param endTick the end instant, {@link #NOT_RELEASED} if the note is not released
+	 * @return a new midi note
+	 */
+	public static MidiNote createMidiNote(int midiKey, int noteVelocity, long startTick, long endTick) {
+		return createMidiNote(midiKey, noteVelocity, startTick, endTick, endTick != NOT_RELEASED ? NoteLengthHelper.getNoteLength(endTick - startTick) : null);
+	}
+
+	private static MidiNote createMidiNote(int midiKey, int noteVelocity, long startTick, long endTick, NoteLength noteLength) {
+		MidiNote midiNote = new MidiNote();
+		midiNote.setNote(Note.getNote(midiKey % 12));
+		midiNote.setOctave((midiKey / 12) - 1);
+		midiNote.setVelocity(noteVelocity);
+		midiNote.setTimestampEventStart(startTick);
+		midiNote.setTimestampEventEnd(endTick != NOT_RELEASED ? endTick : null);
+		midiNote.setNoteLength(noteLength);
+
+		return midiNote;
+	}
+
+	/**
+	 * Returns the notes as a read only list of midi notes: each note is created when it is read from the list
+	 * @return the list of notes
+	 */
+	public List<MidiNote> getMidiNotes(){
+		return new AbstractList<MidiNote>() {
+
+			@Override
+			public MidiNote get(int index) {
+				if(index < 0 || index >= size) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+				}
+				return getMidiNote(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
 			}
+		};
+	}
+
+	private void grow(int capacity) {
+		start = Arrays.copyOf(start, capacity);
+		end = Arrays.copyOf(end, capacity);
+		key = Arrays.copyOf(key, capacity);
+		velocity = Arrays.copyOf(velocity, capacity);
+		lengthCode = Arrays.copyOf(lengthCode, capacity);
+		if(nextOpenNote != null) {
+			nextOpenNote = Arrays.copyOf(nextOpenNote, capacity);
 		}
-		
-		return notReleasedNote;
 	}
 
-	public void add(MidiNote midiNote) {
-		midiNotes.add(midiNote);
+	private void initializeOpenNoteTable() {
+		openNoteHead = new int[CHANNEL_COUNT * KEY_COUNT];
+		openNoteTail = new int[CHANNEL_COUNT * KEY_COUNT];
+		nextOpenNote = new int[start.length];
+		Arrays.fill(openNoteHead, NO_NOTE);
+		Arrays.fill(openNoteTail, NO_NOTE);
 	}
-	
-	public List<MidiNote> getMidiNotes(){
-		return midiNotes;
+
+	/**
+	 * Stable sort of the note indexes by start instant
+	 */
+	private void mergeSort(int[] order, int[] buffer, int from, int to) {
+		if(to - from < 2) {
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		mergeSort(order, buffer, from, mid);
+		mergeSort(order, buffer, mid, to);
+
+		if(start[order[mid - 1]] <= start[order[mid]]) {
+			return;
+		}
+
+		System.arraycopy(order, from, buffer, from, to - from);
+		int left = from;
+		int right = mid;
+		for(int i = from; i < to; i++) {
+			if(right >= to || (left < mid && start[buffer[left]] <= start[buffer[right]])) {
+				order[i] = buffer[left++];
+			}else {
+				order[i] = buffer[right++];
+			}
+		}
 	}
-	
+
+	private static int getSlot(int channel, int midiKey) {
+		return (channel & (CHANNEL_COUNT - 1)) * KEY_COUNT + (midiKey & (KEY_COUNT - 1));
+	}
+
 }
@@ -0,0 +1,186 @@
+package melpody.midi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import melpody.midi.note.MidiNote;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to index the notes of a sequence on their time interval [start, end].
+ *
+ * The notes are sorted by start instant and organized as an implicit balanced tree, where each node
+ * knows the maximum end instant of its subtree: the subtrees that cannot contain a note sounding in the
+ * requested interval are never visited.
+ * The index is built once and it is read only, the notes returned keep the order of the sequence.
+ *
+ */
+public final class NoteIntervalIndex {
+
+	private final MidiTemporalSequenceEvent sequence;
+	//Index of the note in the sequence, sorted by start instant
+	private final int[] noteIndex;
+	private final long[] start;
+	private final long[] end;
+	//Maximum end instant of the subtree having the element as root
+	private final long[] maxEnd;
+
+	public NoteIntervalIndex(MidiTemporalSequenceEvent sequence) {
+		this.sequence = sequence;
+
+		int size = sequence.size();
+		noteIndex = new int[size];
+		start = new long[size];
+		end = new long[size];
+		maxEnd = new long[size];
+
+		boolean sorted = true;
+		for(int i = 0; i < size; i++) {
+			noteIndex[i] = i;
+			start[i] = sequence.getStart(i);
+			//Note not released: it is considered pressed until the end of the track
+			end[i] = sequence.getEnd(i) != MidiTemporalSequenceEvent.NOT_RELEASED ? sequence.getEnd(i) : Long.MAX_VALUE;
+			sorted = sorted && (i == 0 || start[i - 1] <= start[i]);
+		}
+
+		if(!sorted) {
+			long[][] intervals = new long[size][];
+			for(int i = 0; i < size; i++) {
+				intervals[i] = new long[] {start[i], end[i], i};
+			}
+
+			Arrays.sort(intervals, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[2], b[2]));
+
+			for(int i = 0; i < size; i++) {
+				start[i] = intervals[i][0];
+				end[i] = intervals[i][1];
+				noteIndex[i] = (int) intervals[i][2];
+			}
+		}
+
+		buildMaxEnd(0, size);
+	}
+
+	/**
+	 * Use this method to retrieve the notes pressed at a certain instant of time (start <= tick <= end)
+	 * @param tick the instant of time
+	 * @return the list of notes pressed, in the order of the sequence
+	 */
+	public List<MidiNote> getNotesAtTick(long tick) {
+		return getNotesInRange(tick, tick);
+	}
+
+	/**
+	 * Use this method to retrieve the notes sounding for at least one instant between two instants of time (start <= to and end >= from)
+	 * @param from the first instant of time of the range
+	 * @param to the last instant of time of the range
+	 * @return the list of notes sounding in the range, in the order of the sequence
+	 */
+	public List<MidiNote> getNotesInRange(long from, long to) {
+		int[] found = getNoteIndexesInRange(from, to);
+		List<MidiNote> returnList = new ArrayList<MidiNote>(found.length);
+		for(int idx : found) {
+			returnList.add(sequence.getMidiNote(idx));
+		}
+
+		return returnList;
+	}
+
+	/**
+	 * Use this method to retrieve the indexes of the notes pressed at a certain instant of time (start <= tick <= end)
+	 * @param tick the instant of time
+	 * @return the indexes of the notes in the sequence, in ascending order
+	 */
+	public int[] getNoteIndexesAtTick(long tick) {
+		return getNoteIndexesInRange(tick, tick);
+	}
+
+	/**
+	 * Use this method to retrieve the indexes of the notes sounding for at least one instant between two instants of time
+	 * @param from the first instant of time of the range
+	 * @param to the last instant of time of the range
+	 * @return the indexes of the notes in the sequence, in ascending order
+	 */
+	public int[] getNoteIndexesInRange(long from, long to) {
+		if(from > to || noteIndex.length == 0) {
+			return new int[0];
+		}
+
+		IndexCollector collector = new IndexCollector();
+		collect(0, noteIndex.length, from, to, collector);
+
+		return collector.toSortedArray();
+	}
+
+	public int size() {
+		return noteIndex.length;
+	}
+
+	/**
+	 * This method computes the maximum end instant for the subtree defined by the range [lo, hi)
+	 * @param lo first element of the range
+	 * @param hi element after the last of the range
+	 * @return the maximum end instant of the range
+	 */
+	private long buildMaxEnd(int lo, int hi) {
+		if(lo >= hi) {
+			return Long.MIN_VALUE;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		long max = Math.max(end[mid], Math.max(buildMaxEnd(lo, mid), buildMaxEnd(mid + 1, hi)));
+		maxEnd[mid] = max;
+
+		return max;
+	}
+
+	/**
+	 * This method visits the subtree defined by the range [lo, hi) collecting the notes sounding in [from, to]
+	 */
+	private void collect(int lo, int hi, long from, long to, IndexCollector collector) {
+		if(lo >= hi) {
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		if(maxEnd[mid] < from) {
+			return;
+		}
+
+		collect(lo, mid, from, to, collector);
+
+		//Le note a destra iniziano tutte dopo l'istante finale del range
+		if(start[mid] <= to) {
+			if(end[mid] >= from) {
+				collector.add(noteIndex[mid]);
+			}
+			collect(mid + 1, hi, from, to, collector);
+		}
+	}
+
+	/**
+	 * Growable buffer of indexes used during a query
+	 */
+	private static final class IndexCollector {
+
+		private int[] values = new int[8];
+		private int size = 0;
+
+		void add(int value) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int[] toSortedArray() {
+			int[] returnArray = Arrays.copyOf(values, size);
+			Arrays.sort(returnArray);
+			return returnArray;
+		}
+	}
+
+}
@@ -2,24 +2,34 @@ package melpody.midi.util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.Track;
 
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
 import classifier.NoteRank;
-import converter.MidiInputOutputConverter;
-import exception.MelpodySelectionProcessException;
+import converter.OutputTrackWriter;
 import melpody.MelpodyMain;
+import melpody.log.SelectionTrace;
+import melpody.metrics.Counter;
+import melpody.metrics.Metrics;
 import melpody.midi.chord.PossibleScale;
 import melpody.midi.note.MidiNote;
 import melpody.midi.note.Note;
+import melpody.random.RandomSource;
+import melpody.random.SplittableRandomSource;
 import melpody.midi.scale.ModalScaleInitProcess;
 import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyAnalysis;
 import melpody.midi.track.HarmonyMidiTrack;
 import melpody.midi.track.MelodyAbstraction;
 
@@ -33,111 +43,210 @@ import melpody.midi.track.MelodyAbstraction;
 public final class OutputMidiNoteSelector {
 
 	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+	
+	//Number of notes not yet written, whose choices can be revised
+	static final int BACKTRACK_WINDOW = 32;
+	
+	//Thirds of a chord and categories of the scales, in order of preference
+	static final int MAJOR_THIRD = 1;
+	static final int MINOR_THIRD = 2;
+	static final int MAJOR_SCALE = 0;
+	static final int MINOR_SCALE = 1;
+	static final int SAME_ROOT_SCALE = 2;
+	static final int OTHER_SCALE = 3;
+	private static final String DEFAULT_MAX_BACKTRACKS = "1000";
+	
 	private double noveltyThreshold;
+	private boolean sameRoot;
+	//Source of all the random choices of the selector (scales, novelty, notes)
+	private RandomSource random;
+	private int maxBacktracks;
+	//Probabilita' dei gradi, fissate per tutta la melodia
+	private GradeModel gradeModel;
+	//Eventi diagnostici della selezione, nessun costo se disabilitati
+	private SelectionTrace trace = SelectionTrace.NONE;
 	
 	public OutputMidiNoteSelector() {
-		this.noveltyThreshold = new Double(MelpodyMain.properties.getProperty("NOVELTY_THRESHOLD"));
+		this(MelpodyMain.properties);
+	}
+	
+	/**
+	 * Creates a selector configured by the properties of a specific process, the random choices use the seed of the process
+	 * @param properties the properties of the process
+	 */
+	public OutputMidiNoteSelector(Properties properties) {
+		this(properties, new SplittableRandomSource(SplittableRandomSource.getSeed(properties)));
+	}
+	
+	/**
+	 * Creates a selector configured by the properties of a specific process, with the preset of the grades defined by the property GRADE_PRESET
+	 * @param properties the properties of the process
+	 * @param random the source of the random choices, used only by this selector
+	 */
+	public OutputMidiNoteSelector(Properties properties, RandomSource random) {
+		this(properties, random, GradeModelRegistry.getModel(properties));
+	}
+	
+	/**
+	 * Creates a selector configured by the properties of a specific process
+	 * @param properties the properties of the process
+	 * @param random the source of the random choices, used only by this selector
+	 * @param gradeModel the preset of the probabilities of the grades
+	 */
+	public OutputMidiNoteSelector(Properties properties, RandomSource random, GradeModel gradeModel) {
+		this.gradeModel = gradeModel;
+		this.noveltyThreshold = Double.parseDouble(properties.getProperty("NOVELTY_THRESHOLD"));
+		this.sameRoot = Boolean.parseBoolean(properties.getProperty("SAME_ROOT"));
+		this.random = random;
+		this.maxBacktracks = getMaxBacktracks(properties);
+	}
+	
+	/**
+	 * Returns the maximum number of revisions of the choices of a melody defined by the property MAX_BACKTRACKS
+	 * @param properties the properties of the process
+	 * @return the number of revisions, {@value #DEFAULT_MAX_BACKTRACKS} if not defined
+	 */
+	static int getMaxBacktracks(Properties properties) {
+		return Integer.parseInt(properties.getProperty("MAX_BACKTRACKS", DEFAULT_MAX_BACKTRACKS).trim());
+	}
+	
+	/**
+	 * Use this method to record the events of the selection (see {@link SelectionTrace})
+	 * @param trace the trace, {@link SelectionTrace#NONE} to disable it
+	 */
+	public void setTrace(SelectionTrace trace) {
+		this.trace = trace != null ? trace : SelectionTrace.NONE;
 	}
 	
 	/**
 	 * Use this method to create the output melody passing as parameter the harmony and the melody abstraction files 
-	 * and the track of the sequence for the output file
+	 * and the track of the sequence for the output file.
+	 * 
+	 * For each note of the melody abstraction only the scales that can produce a note (the root of the chord belongs to the scale
+	 * and a note in the range of the melody abstraction has a ranked grade) are candidates. When no candidate is left, the choices of
+	 * the previous notes are revised (at most the last {@value #BACKTRACK_WINDOW} notes, for a maximum number of times defined by the
+	 * property MAX_BACKTRACKS): the notes are written in the track only when they cannot be revised anymore.
 	 * 
 	 * @param melodyAbstraction the melody abstraction 
 	 * @param harmony the harmony
-	 * @param track the track of the output sequence
+	 * @param track the writer of the output track
 	 * @param modalScaleSelector the set of modal scale accepted
 	 * @param scaleTypeSelector the set of types of scale accepted
+	 * @return the result of the selection, unsatisfiable if a note of the melody abstraction has no compatible note
 	 * @throws InvalidMidiDataException 
 	 */
-	public void createOutputTrack(MelodyAbstraction melodyAbstraction, HarmonyMidiTrack harmony, Track track, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException {
+	public SelectionResult createOutputTrack(MelodyAbstraction melodyAbstraction, HarmonyMidiTrack harmony, OutputTrackWriter track, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException {
 		
-		log.fine("Novelty value threshold " + noveltyThreshold);
-
-		MidiNote previousNoteGenerated = null;
-		MidiNote previousNoteAbMel = null;
+		log.fine(() -> "Novelty value threshold " + noveltyThreshold);
 
-		Long previousTick = null;
-		List<MidiNote> noteOutputList = new ArrayList<MidiNote>();
+		//Le note sono ordinate per inizio: i segmenti vengono cercati in avanti dal segmento della nota precedente
+		SegmentIndex chordIndex = new SegmentIndex(harmony.getEventTimeList());
+		SegmentIndex.Cursor chordCursor = chordIndex.cursor();
 		
-		List<Long> tickSet = new ArrayList<Long>(harmony.getEventTimeList());
+		HarmonyAnalysis harmonyAnalysis = harmony.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector);
+		SegmentIndex.Cursor scaleCursor = harmonyAnalysis.getSegmentIndex().cursor();
 		
-		Map<Long, PossibleScale> chordScaleMap = new TreeMap<Long, PossibleScale>();
+		MidiTemporalSequenceEvent melodyAbstractionNotes = melodyAbstraction.getMidiInformation();
 		
-		List<MidiNote> melodyAbstractionNotes = melodyAbstraction.getMidiInformation().getMidiNotes();
+		//Le note scritte vengono elencate nel log solo se il livello INFO e' attivo
+		StringBuilder text = log.isLoggable(Level.INFO) ? new StringBuilder() : null;
+		SelectionWindow window = new SelectionWindow(track, BACKTRACK_WINDOW, text);
 		
 		for(int idx = 0; idx < melodyAbstractionNotes.size(); idx++) {
-			log.fine("Note numer " + idx);
-			MidiNote abMelNote = melodyAbstractionNotes.get(idx);
-			long nowTick = abMelNote.getTimestampEventEnd();
-			Long tickMapChord = tickSet.get(0);
-			List<MidiNote> noteHarmony = harmony.getPressedNoteAtTick(nowTick);
-			if(noteHarmony.isEmpty() && previousTick != null) {
-				noteHarmony = harmony.getPressedNoteAtTick(previousTick);
-				nowTick = previousTick;
-				log.fine("Note not found: checkpoint note used");
+			if(log.isLoggable(Level.FINE)) {
+				log.fine("Note numer " + idx);
 			}
+			long nowTick = melodyAbstractionNotes.getEnd(idx);
+			//View of the note, used by the selection of the output note
+			MidiNote abMelNote = melodyAbstractionNotes.getMidiNote(idx);
+			List<MidiNote> noteHarmony = harmony.getPressedNoteAtTick(nowTick);
 			
-			for(Long tickChord : tickSet) {
-				if(tickChord <= nowTick) {
-					tickMapChord = tickChord;
-				}
+			//Chord of the note: the last harmony event not after the end of the note, the first event if the note ends before it
+			int chordSegment = chordCursor.floor(nowTick);
+			Long tickMapChord = chordIndex.size() == 0 ? null : chordIndex.getStart(Math.max(chordSegment, 0));
+			
+			List<PossibleScale> possibileScaleList = nowTick != MidiTemporalSequenceEvent.NOT_RELEASED ? harmonyAnalysis.getSegmentScales(scaleCursor.floor(nowTick)) : null;
+			
+			if(!window.offer(abMelNote, noteHarmony, tickMapChord, possibileScaleList)) {
+				return window.getResult();
+			}
+		}
+		
+		SelectionResult result = window.close();
+		if(text != null) {
+			log.info("Note written in output: " + text);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Use this method to select the notes one at a time, as the notes of the melody abstraction are received:
+	 * see {@link SelectionWindow}
+	 * @param track the writer of the output track
+	 * @param backtrackWindow the number of notes whose choices can be revised (0 = each note is written as soon as it is selected)
+	 * @return the empty window
+	 */
+	SelectionWindow openWindow(OutputTrackWriter track, int backtrackWindow) {
+		return new SelectionWindow(track, backtrackWindow, null);
+	}
+	
+	/**
+	 * This method selects the scale (if not already selected for the chord) and the output note of a note of the melody abstraction.
+	 * The scale already selected is kept as long as it can produce a note, then it is discarded (if selected by this note) and the
+	 * scale is chosen among the remaining compatible scales
+	 * @param step the note of the melody abstraction
+	 * @param previousStep the previous note of the melody abstraction, null for the first note
+	 * @param chordScaleMap the map time-scale selected for the chord
+	 * @return true if a note has been selected, false if there are no compatible scales or notes
+	 */
+	private boolean selectStep(SelectionStep step, SelectionStep previousStep, Map<Long, PossibleScale> chordScaleMap) {
+		MidiNote previousNoteGenerated = previousStep != null ? previousStep.outputNote : null;
+		MidiNote previousNoteAbMel = previousStep != null ? previousStep.abMelNote : null;
+		
+		PossibleScale possibileScale = chordScaleMap.get(step.chordTick);
+		
+		if(possibileScale != null) {
+			MidiNote outputNote = getOutputNote(possibileScale, step, previousNoteGenerated, previousNoteAbMel);
+			if(outputNote != null) {
+				step.outputNote = outputNote;
+				return true;
 			}
-			boolean exceptionRaised;
 			
-			Map<Long, List<PossibleScale>> timePossibileScaleMap = harmony.getScalesMap(modalScaleSelector, scaleTypeSelector);
+			//Scala scelta da una nota precedente dello stesso accordo
+			if(!step.scaleSelected) {
+				return false;
+			}
 			
-			do {
-				List<PossibleScale> possibileScaleList = null;
-				exceptionRaised = false;
-				PossibleScale possibileScale = chordScaleMap.get(tickMapChord);
-				if(possibileScale == null) {
-					possibileScaleList = getPossibleScaleFromInputNote(abMelNote, timePossibileScaleMap);
-					if(possibileScaleList != null && !possibileScaleList.isEmpty()) {
-						possibileScale = getPossibleScaleFromNotes(noteHarmony, possibileScaleList);
-						log.info("Scale selected " + possibileScale.getFundamentalNote() + ", " + possibileScale.getScaleType() + ", " + possibileScale.getScale());
-						chordScaleMap.put(tickMapChord, possibileScale);
-					}
-				}
-				
-				if(possibileScale != null) {
-					try {	
-						MidiNote outputNote = getOutputNote(possibileScale, abMelNote, noteHarmony, previousNoteGenerated, previousNoteAbMel);
-						
-						track = MidiInputOutputConverter
-								.createNote(outputNote, track, abMelNote.getTimestampEventStart(), 
-										abMelNote.getTimestampEventEnd());
-						previousNoteGenerated = outputNote;
-						previousNoteAbMel = abMelNote;
-						
-						noteOutputList.add(previousNoteGenerated);
-					}catch(MelpodySelectionProcessException e) {
-						log.log(Level.SEVERE, e.getMessage(), e);
-						log.info("Removing scale " + possibileScale.getFundamentalNote() + ", " + possibileScale.getScaleType() + ", " + possibileScale.getScale() );
-						chordScaleMap.remove(tickMapChord);
-						log.info("Scale removed from possible scale list = " + removeScaleFromPossibleScaleList(abMelNote, timePossibileScaleMap, possibileScale));
-						exceptionRaised = true;
-					}
-				}else {
-					log.severe("No possible scales/notes relationship found according to melody abstraction and harmony");
-					System.exit(-1);
-				}
-			}while(exceptionRaised);
+			PossibleScale rejectedScale = possibileScale;
+			log.info(() -> "Removing scale " + rejectedScale.getFundamentalNote() + ", " + rejectedScale.getScaleType() + ", " + rejectedScale.getScale());
+			trace.scaleRejected(step.noteIndex, step.chordTick, possibileScale);
+			step.rejectScale(possibileScale, chordScaleMap);
 		}
 		
-		String text = "";
-		for(MidiNote mn : noteOutputList) {
-			text = text + mn.getNote().getNote() + ",";
+		List<PossibleScale> feasibleScaleList = new ArrayList<PossibleScale>();
+		for(PossibleScale ps : step.possibleScales) {
+			if(!step.rejectedScales.contains(ps)) {
+				Metrics.increment(Counter.CANDIDATE_SCALES);
+				if(isFeasible(ps, step, previousNoteGenerated, previousNoteAbMel)) {
+					feasibleScaleList.add(ps);
+				}
+			}
 		}
-		log.info("Note written in output: " + text );
-
 		
-		log.info("Scale selected:");
-		int i = 0;
-		for(Long tick : chordScaleMap.keySet()) {
-			i++;
-			log.info("Scale " + i + " " + chordScaleMap.get(tick).getFundamentalNote() + ", " + chordScaleMap.get(tick).getScaleType() +", " + chordScaleMap.get(tick).getScale());
+		if(feasibleScaleList.isEmpty()) {
+			return false;
 		}
+		
+		PossibleScale selectedScale = getPossibleScaleFromNotes(step.noteHarmony, feasibleScaleList);
+		log.info(() -> "Scale selected " + selectedScale.getFundamentalNote() + ", " + selectedScale.getScaleType() + ", " + selectedScale.getScale());
+		trace.scaleSelected(step.noteIndex, step.chordTick, selectedScale, feasibleScaleList.size());
+		possibileScale = selectedScale;
+		chordScaleMap.put(step.chordTick, possibileScale);
+		step.scaleSelected = true;
+		
+		step.outputNote = getOutputNote(possibileScale, step, previousNoteGenerated, previousNoteAbMel);
+		return step.outputNote != null;
 	}
 	
 	/**
@@ -149,120 +258,227 @@ public final class OutputMidiNoteSelector {
 	private PossibleScale getPossibleScaleFromNotes(List<MidiNote> noteHarmony, List<PossibleScale> possibileScaleList) {
 		
 		MidiNote fundamentalChordNote = getLowerFundamentalNote(noteHarmony);
-		
-		boolean isMajorChord = false;
-		boolean isMinorChord = false;
-		MidiNote previousNote = fundamentalChordNote;
-		for(MidiNote mn : noteHarmony) {
-			if(previousNote.getNote().equals(fundamentalChordNote.getNote())) {
-				int difference = (Math.max(mn.getMidiKeyId(), previousNote.getMidiKeyId()) - Math.min(mn.getMidiKeyId(), previousNote.getMidiKeyId())) % 12;
-				if((difference % 12) == 4) {
-					isMajorChord = true;
-				}else if((difference % 12) == 3) {
-					isMinorChord = true;
-				}
-			}
-			previousNote = mn;
-		}
-		
-		boolean thirdNotPresent = !isMajorChord && !isMinorChord;
+		int chordThirds = getChordThirds(noteHarmony);
 		
 		List<PossibleScale> possibleScalesMaj = new ArrayList<PossibleScale>(); 
 		List<PossibleScale> possibleScalesMin = new ArrayList<PossibleScale>();
 		List<PossibleScale> possibleScalesSameRoot = new ArrayList<PossibleScale>();
 
 		for(PossibleScale ps : possibileScaleList) {
-			if(isMajorChord && ps.getScale().isMajor() 
-					&& (!(new Boolean(MelpodyMain.properties.getProperty("SAME_ROOT"))) || ps.getFundamentalNote().equals(fundamentalChordNote.getNote()))
-					) {
+			int category = getScaleCategory(ps, chordThirds, fundamentalChordNote.getNote());
+			if(category == MAJOR_SCALE) {
 				possibleScalesMaj.add(ps);
-			}else if(isMinorChord && !ps.getScale().isMajor() 
-					&&(!(new Boolean(MelpodyMain.properties.getProperty("SAME_ROOT"))) || ps.getFundamentalNote().equals(fundamentalChordNote.getNote()))
-					) {
+			}else if(category == MINOR_SCALE) {
 				possibleScalesMin.add(ps);
-			}else if(thirdNotPresent 
-					&& ps.getFundamentalNote().equals(fundamentalChordNote.getNote())
-					) {
+			}else if(category == SAME_ROOT_SCALE) {
 				possibleScalesSameRoot.add(ps);
 			}
 		}
 		
 		PossibleScale returnScale = null;
 		
-		if(isMajorChord && !possibleScalesMaj.isEmpty()) {
-			returnScale = possibleScalesMaj.get(Math.min((int)(Math.round(Math.random() * possibleScalesMaj.size())), possibleScalesMaj.size() - 1));
-		}else if(isMinorChord && !possibleScalesMin.isEmpty()) {
-			returnScale = possibleScalesMin.get(Math.min((int)(Math.round(Math.random() * possibleScalesMin.size())), possibleScalesMin.size() - 1));
-		}else if(thirdNotPresent && !possibleScalesSameRoot.isEmpty()){
-			returnScale = possibleScalesSameRoot.get(Math.min((int)(Math.round(Math.random() * possibleScalesSameRoot.size())), possibleScalesSameRoot.size() - 1));
+		if(!possibleScalesMaj.isEmpty()) {
+			returnScale = possibleScalesMaj.get(getRandomIndex(possibleScalesMaj.size()));
+		}else if(!possibleScalesMin.isEmpty()) {
+			returnScale = possibleScalesMin.get(getRandomIndex(possibleScalesMin.size()));
+		}else if(!possibleScalesSameRoot.isEmpty()){
+			returnScale = possibleScalesSameRoot.get(getRandomIndex(possibleScalesSameRoot.size()));
 		}else {
 			log.warning("Impossible to find the compatible scale with type and mode of the scale: the 3rd of the chord is missing or the modal scales selected are few");
-			log.warning("Fundamental : " + fundamentalChordNote);
-			int index = (int) Math.round((Math.random() * (possibileScaleList.size())));
-			returnScale = possibileScaleList.get(Math.min(index, possibileScaleList.size() - 1));
+			log.warning(() -> "Fundamental : " + fundamentalChordNote);
+			returnScale = possibileScaleList.get(getRandomIndex(possibileScaleList.size()));
 		}
 		
 		return returnScale;
 	}
+	
+	/**
+	 * This method returns a random position in a list of scales, the same way for every list
+	 */
+	int getRandomIndex(int size) {
+		return Math.min((int)(Math.round(random.nextDouble() * size)), size - 1);
+	}
+	
+	/**
+	 * Use this method to find the thirds of a chord: a major third (or minor third) between the fundamental note and the following note
+	 * @param noteHarmony the harmony notes
+	 * @return the mask of the thirds found: {@link #MAJOR_THIRD}, {@link #MINOR_THIRD}, both or none
+	 */
+	static int getChordThirds(List<MidiNote> noteHarmony) {
+		MidiNote fundamentalChordNote = getLowerFundamentalNote(noteHarmony);
+		
+		int chordThirds = 0;
+		MidiNote previousNote = fundamentalChordNote;
+		for(MidiNote mn : noteHarmony) {
+			if(previousNote.getNote().equals(fundamentalChordNote.getNote())) {
+				int difference = (Math.max(mn.getMidiKeyId(), previousNote.getMidiKeyId()) - Math.min(mn.getMidiKeyId(), previousNote.getMidiKeyId())) % 12;
+				if((difference % 12) == 4) {
+					chordThirds |= MAJOR_THIRD;
+				}else if((difference % 12) == 3) {
+					chordThirds |= MINOR_THIRD;
+				}
+			}
+			previousNote = mn;
+		}
+		
+		return chordThirds;
+	}
+	
+	/**
+	 * Use this method to classify a scale with respect to a chord: the scales of the same kind of the chord (major or minor), 
+	 * with the same root if the property SAME_ROOT is active, are preferred; without thirds the scales with the same root are preferred
+	 * @param ps the scale
+	 * @param chordThirds the thirds of the chord (see {@link #getChordThirds(List)})
+	 * @param fundamentalNote the fundamental note of the chord
+	 * @return the category: {@link #MAJOR_SCALE}, {@link #MINOR_SCALE}, {@link #SAME_ROOT_SCALE} or {@link #OTHER_SCALE} (not preferred)
+	 */
+	int getScaleCategory(PossibleScale ps, int chordThirds, Note fundamentalNote) {
+		return getScaleCategory(ps, chordThirds, fundamentalNote, sameRoot);
+	}
+	
+	/**
+	 * Use this method to classify a scale with respect to a chord, with a specific value of the property SAME_ROOT
+	 * (see {@link #getScaleCategory(PossibleScale, int, Note)})
+	 * @param ps the scale
+	 * @param chordThirds the thirds of the chord (see {@link #getChordThirds(List)})
+	 * @param fundamentalNote the fundamental note of the chord
+	 * @param sameRoot true if the scales of the same kind of the chord must have its root
+	 * @return the category: {@link #MAJOR_SCALE}, {@link #MINOR_SCALE}, {@link #SAME_ROOT_SCALE} or {@link #OTHER_SCALE} (not preferred)
+	 */
+	static int getScaleCategory(PossibleScale ps, int chordThirds, Note fundamentalNote, boolean sameRoot) {
+		boolean isMajorChord = (chordThirds & MAJOR_THIRD) != 0;
+		boolean isMinorChord = (chordThirds & MINOR_THIRD) != 0;
+		
+		if(isMajorChord && ps.getScale().isMajor() 
+				&& (!sameRoot || ps.getFundamentalNote().equals(fundamentalNote))
+				) {
+			return MAJOR_SCALE;
+		}else if(isMinorChord && !ps.getScale().isMajor() 
+				&&(!sameRoot || ps.getFundamentalNote().equals(fundamentalNote))
+				) {
+			return MINOR_SCALE;
+		}else if(chordThirds == 0 
+				&& ps.getFundamentalNote().equals(fundamentalNote)
+				) {
+			return SAME_ROOT_SCALE;
+		}
+		return OTHER_SCALE;
+	}
+
+	/**
+	 * Returns true if the scale can produce a note for the note of the melody abstraction: the root of the chord belongs to the scale
+	 * and a note of the scale in the range defined by the melody abstraction has a ranked grade
+	 * @param possibileScale the candidate scale
+	 * @param step the note of the melody abstraction
+	 * @param previousNote the last generated note
+	 * @param previousNoteAbMel the previous note of the melody abstraction
+	 * @return true if the scale is compatible
+	 */
+	private boolean isFeasible(PossibleScale possibileScale, SelectionStep step, MidiNote previousNote, MidiNote previousNoteAbMel) {
+		int indexChordNoteInScale = possibileScale.getIndexOf(getLowerFundamentalNote(step.noteHarmony).getNote());
+		
+		return indexChordNoteInScale >= 0 
+				&& NoteRank.hasRankedGrade(gradeModel, indexChordNoteInScale, getCandidateNoteList(possibileScale, step, previousNote, previousNoteAbMel), possibileScale);
+	}
 
 	/**
 	 * Returns the midi note to be written in output
 	 *   
 	 * @param possibileScale the compatible scale
-	 * @param abMelNote the note of melody abstraction
-	 * @param chordNotes the notes of the harmony
-	 * @param melodyAbstraction the melody abstraction
+	 * @param step the note of the melody abstraction, with the notes of the harmony and the notes already rejected
 	 * @param previousNote the last generated note
-	 * @param currentNote current index note of the melody abstraction
-	 * @return note to be written in output
-	 * @throws MelpodySelectionProcessException 
+	 * @param previousNoteAbMel the previous note of the melody abstraction
+	 * @return note to be written in output, null if the scale cannot produce a note
 	 */
-	private MidiNote getOutputNote(PossibleScale possibileScale, MidiNote abMelNote, List<MidiNote> chordNotes, MidiNote previousNote, MidiNote previousNoteAbMel) throws MelpodySelectionProcessException {
+	private MidiNote getOutputNote(PossibleScale possibileScale, SelectionStep step, MidiNote previousNote, MidiNote previousNoteAbMel) {
 		
 		MidiNote returnNote = null;
-		double noveltyValue = Math.random();
+		List<MidiNote> chordNotes = step.noteHarmony;
 
 		MidiNote fundamentalChordNote = getLowerFundamentalNote(chordNotes);
 		
-		int indexChordNoteInScale = -1;
-			
 		//Trovo l'indice della nota fondamentale
-		for(int i = 0; i < possibileScale.getNoteList().size(); i++) {
-			MidiNote note = possibileScale.getNoteList().get(i);
-			if(note.getNote().equals(fundamentalChordNote.getNote())) {
-				indexChordNoteInScale = i;
-				break;
-			}
-		}
+		int indexChordNoteInScale = possibileScale.getIndexOf(fundamentalChordNote.getNote());
 		
 		if(indexChordNoteInScale >= 0) {
 			//Mi calcolo le note accettabli dalla scala scelta rispetto all'astrazione della melodia
-			List<MidiNote> possibleNoteList = getPossibleNoteListFromMelodyAbstraction(possibileScale, previousNote, abMelNote, previousNoteAbMel);
-
-			log.fine("Scale selected: " + possibileScale.getFundamentalNote() + ", " + possibileScale.getScaleType() +", " + possibileScale.getScale());
+			List<MidiNote> possibleNoteList = getCandidateNoteList(possibileScale, step, previousNote, previousNoteAbMel);
 			
-			String text = "";
-			for(MidiNote n : possibileScale.getNoteList()) {
-				text = text + n.getNote() + ",";
+			if(!NoteRank.hasRankedGrade(gradeModel, indexChordNoteInScale, possibleNoteList, possibileScale)) {
+				return null;
 			}
 			
-			log.fine(text);
-			
-			log.fine("Chords note");
-			text = "";
-			for(MidiNote n : chordNotes) {
-				text = text + n.getNote() + ",";
+			double noveltyValue = random.nextDouble();
+
+			if(log.isLoggable(Level.INFO)) {
+				logCandidates(possibileScale, possibleNoteList, chordNotes, indexChordNoteInScale);
 			}
 			
-			log.fine(text);
-			
-			log.fine("Index offset: " + indexChordNoteInScale);
+			boolean novelty = noveltyValue >= noveltyThreshold;
+			if(novelty) {
+				Metrics.increment(Counter.NOVELTY_ACTIVATIONS);
+			}
 			returnNote = NoteRank.getNoteFromParameterAndRanking
-					(abMelNote.getNoteLength(), noveltyValue >= noveltyThreshold, indexChordNoteInScale, possibleNoteList, possibileScale.getNoteList());
+					(gradeModel, step.abMelNote.getNoteLength(), novelty, indexChordNoteInScale, possibleNoteList, possibileScale, random);
+			
+			if(returnNote != null && trace.isEnabled()) {
+				trace.noteSelected(step.noteIndex, step.abMelNote.getMidiKeyId(), returnNote.getMidiKeyId(), possibleNoteList.size(), novelty);
+			}
 		}
 		
 		return returnNote;
 	}
+	
+	/**
+	 * This method writes in the log the scale, the candidate notes and the notes of the chord of a selection
+	 */
+	private static void logCandidates(PossibleScale possibileScale, List<MidiNote> possibleNoteList, List<MidiNote> chordNotes, int indexChordNoteInScale) {
+		log.fine(() -> "Scale selected: " + possibileScale.getFundamentalNote() + ", " + possibileScale.getScaleType() +", " + possibileScale.getScale());
+		
+		StringBuilder text = new StringBuilder();
+		for(MidiNote m : possibleNoteList) {
+			text.append(m.getNote()).append(',');
+		}
+		log.info("Possible note list: " + text);
+		
+		if(!log.isLoggable(Level.FINE)) {
+			return;
+		}
+		
+		text.setLength(0);
+		for(Note n : possibileScale.getNoteList()) {
+			text.append(n).append(',');
+		}
+		log.fine(text.toString());
+		
+		log.fine("Chords note");
+		text.setLength(0);
+		for(MidiNote n : chordNotes) {
+			text.append(n.getNote()).append(',');
+		}
+		log.fine(text.toString());
+		
+		log.fine("Index offset: " + indexChordNoteInScale);
+	}
+	
+	/**
+	 * This method returns the notes of the scale compatible with the melody abstraction, without the notes already rejected for the step
+	 */
+	private List<MidiNote> getCandidateNoteList(PossibleScale possibileScale, SelectionStep step, MidiNote previousNote, MidiNote previousNoteAbMel) {
+		List<MidiNote> possibleNoteList = getPossibleNoteListFromMelodyAbstraction(possibileScale, previousNote, step.abMelNote, previousNoteAbMel);
+		
+		if(!step.rejectedKeys.isEmpty()) {
+			List<MidiNote> candidateNoteList = new ArrayList<MidiNote>(possibleNoteList.size());
+			for(MidiNote mn : possibleNoteList) {
+				if(!step.rejectedKeys.contains(mn.getMidiKeyId())) {
+					candidateNoteList.add(mn);
+				}
+			}
+			possibleNoteList = candidateNoteList;
+		}
+		
+		return possibleNoteList;
+	}
 
 	/**
 	 * This method defines which are the notes belonging to a specific scale (root note, type of scale, mode of the scale) 
@@ -275,7 +491,7 @@ public final class OutputMidiNoteSelector {
 	 * @param previousNoteAbMel the previous note of the melody abstraction
 	 * @return the list of notes in the range defined by the melody abstraction
 	 */
-	private List<MidiNote> getPossibleNoteListFromMelodyAbstraction(PossibleScale possibileScale, MidiNote previousMidiNote, MidiNote abMelNote, MidiNote previousNoteAbMel) {
+	static List<MidiNote> getPossibleNoteListFromMelodyAbstraction(PossibleScale possibileScale, MidiNote previousMidiNote, MidiNote abMelNote, MidiNote previousNoteAbMel) {
 
 		List<MidiNote> possibleNotesList = new ArrayList<MidiNote>();
 		List<MidiNote> tempList = new ArrayList<MidiNote>();
@@ -289,7 +505,7 @@ public final class OutputMidiNoteSelector {
 			int rangeDifference = nowMidiKeyMA - prevMidiKeyMA;
 			int maxRange = previousMidiNote.getMidiKeyId() + rangeDifference;
 			
-			log.fine("Delta Range: " + rangeDifference + ", Max MIDI ID: " + maxRange);
+			log.fine(() -> "Delta Range: " + rangeDifference + ", Max MIDI ID: " + maxRange);
 
 			if(maxRange != 0) {
 				
@@ -301,6 +517,11 @@ public final class OutputMidiNoteSelector {
 					upperBound = previousMidiNote.getMidiKeyId() - 1;
 				}
 				
+				//Una melodia lunga puo' uscire dalla tastiera: il range e' limitato ai tasti midi validi
+				//(il tasto midi scritto e' di un'ottava sopra l'id della nota)
+				lowerBound = Math.max(lowerBound, 0);
+				upperBound = Math.min(upperBound, MidiTemporalSequenceEvent.KEY_COUNT - 1 - 12);
+				
 				for(int midiKeyId = lowerBound; midiKeyId <= upperBound; midiKeyId++) {
 					MidiNote possibileMidiNote = new MidiNote();
 					
@@ -311,9 +532,9 @@ public final class OutputMidiNoteSelector {
 				
 				Collections.reverse(tempList);
 				
-				for(MidiNote n : possibileScale.getNoteList()) {
+				for(Note n : possibileScale.getNoteList()) {
 					for(MidiNote mn : tempList) {
-						if(mn.getNote().equals(n.getNote())) {
+						if(mn.getNote().equals(n)) {
 							mn.setNoteLength(abMelNote.getNoteLength());
 							mn.setTimestampEventStart(abMelNote.getTimestampEventStart());
 							mn.setTimestampEventEnd(abMelNote.getTimestampEventEnd());
@@ -325,30 +546,27 @@ public final class OutputMidiNoteSelector {
 			}
 			
 			if(possibleNotesList.isEmpty()) {
-				log.warning("Default note inserted - previous note");
+				log.fine("Default note inserted - previous note");
+				Metrics.increment(Counter.PREVIOUS_NOTE_FALLBACKS);
 
 				possibleNotesList.add(previousMidiNote);
 			}
 
 			
-			String text = "";
-			for(MidiNote m : possibleNotesList) {
-				text = text + m.getNote() + ",";
-			}
-			
-			log.info("Possible note list: " + text);
-			
 			//Prima esecuzione
 		}else {
 			
-			for(MidiNote n : possibileScale.getNoteList()) {
-				n.setOctave(abMelNote.getOctave());
-				n.setNoteLength(abMelNote.getNoteLength());
-				n.setTimestampEventEnd(abMelNote.getTimestampEventEnd());
-				n.setTimestampEventStart(abMelNote.getTimestampEventStart());
-				n.setVelocity(abMelNote.getVelocity());
+			//Le note della scala sono condivise: creo nuove note nell'ottava dell'astrazione
+			for(Note n : possibileScale.getNoteList()) {
+				MidiNote possibileMidiNote = new MidiNote();
+				possibileMidiNote.setNote(n);
+				possibileMidiNote.setOctave(abMelNote.getOctave());
+				possibileMidiNote.setNoteLength(abMelNote.getNoteLength());
+				possibileMidiNote.setTimestampEventEnd(abMelNote.getTimestampEventEnd());
+				possibileMidiNote.setTimestampEventStart(abMelNote.getTimestampEventStart());
+				possibileMidiNote.setVelocity(abMelNote.getVelocity());
 				
-				possibleNotesList.add(n);
+				possibleNotesList.add(possibileMidiNote);
 			}
 		}
 		
@@ -356,71 +574,275 @@ public final class OutputMidiNoteSelector {
 	}
 
 	/**
-	 * This method returns the list of possible scales usable in a specific time instant
-	 * @param mn the note, containing the information about the time instant
-	 * @param chordMap the map time-list of scales
-	 * @return the list of possible scales
+	 * Given a set of notes, the method returns the lower note
+	 * @param midiNotes the set of notes
+	 * @return the lower note
 	 */
-	private List<PossibleScale> getPossibleScaleFromInputNote(MidiNote mn, Map<Long, List<PossibleScale>> chordMap) {
+	static MidiNote getLowerFundamentalNote(List<MidiNote> midiNotes) {
 		
-		Long lastEventCloseNote = null;
+		MidiNote lower = null;
 		
-		if(mn.getTimestampEventEnd() != null) {
-			for(Long eventTimestamp : chordMap.keySet()) {
-				if(mn.getTimestampEventEnd().compareTo(eventTimestamp) >= 0) {
-					if(lastEventCloseNote == null || lastEventCloseNote.compareTo(eventTimestamp) < 0) {
-						lastEventCloseNote = eventTimestamp;
-					}
-				}
+		for(MidiNote mn : midiNotes) {
+			if(lower == null 
+					|| mn.getOctave() < lower.getOctave() 
+					|| (mn.getOctave() == lower.getOctave() 
+						&& mn.getNote().getOffsetFromC() < lower.getNote().getOffsetFromC())) {
+				lower = mn;
 			}
 		}
 		
-		return lastEventCloseNote != null ? chordMap.get(lastEventCloseNote) : null;
+		return lower;
 	}
 	
 	/**
-	 * This method removes the scale in the list of possible scale available for the instant time defined by the melody abstraction note
-	 * @param mn the note, containing the information about the time instant
-	 * @param chordMap the map time-list of scales
-	 * @param scale the scale to be deleted
-	 * @return the list of possible scales
+	 * Notes of the melody abstraction whose choices can still be revised.
+	 * 
+	 * The notes are received one at a time: each note is selected as soon as it is received and it is written in the track when
+	 * it leaves the window, so the memory used does not depend on the length of the melody (only the scales of the chords of the
+	 * notes not yet written are kept). When a note cannot be selected, the notes already selected are written, the note is
+	 * discarded and the window can receive the following notes, starting from the last note written.
 	 */
-	private boolean removeScaleFromPossibleScaleList(MidiNote mn, Map<Long, List<PossibleScale>> chordMap, PossibleScale scale) {
+	final class SelectionWindow {
 		
-		Long lastEventCloseNote = null;
+		private final OutputTrackWriter track;
+		private final int size;
+		private final SelectionStep[] steps;
+		private final StringBuilder text;
+		//Scala scelta per ogni accordo, solo per gli accordi delle note non ancora scritte
+		private final TreeMap<Long, PossibleScale> chordScaleMap = new TreeMap<Long, PossibleScale>();
 		
-		if(mn.getTimestampEventEnd() != null) {
-			for(Long eventTimestamp : chordMap.keySet()) {
-				if(mn.getTimestampEventEnd().compareTo(eventTimestamp) >= 0) {
-					if(lastEventCloseNote == null || lastEventCloseNote.compareTo(eventTimestamp) < 0) {
-						lastEventCloseNote = eventTimestamp;
+		//Index of the next note received, of the note being selected and of the first note not yet written
+		private int count;
+		private int idx;
+		private int writtenCount;
+		private int noteCount;
+		private int backtrackCount;
+		private int scaleCount;
+		private SelectionStep lastWrittenStep;
+		
+		//First note that could not be selected
+		private int failedNoteIndex = -1;
+		private Long failedTick;
+		private String failedReason;
+		
+		private SelectionWindow(OutputTrackWriter track, int size, StringBuilder text) {
+			this.track = track;
+			this.size = Math.max(size, 0);
+			this.steps = new SelectionStep[this.size + 1];
+			this.text = text;
+		}
+		
+		/**
+		 * Use this method to select the output note of a note of the melody abstraction, revising the choices of the notes
+		 * of the window if needed. The notes that leave the window are written in the track.
+		 * @param abMelNote the note of the melody abstraction
+		 * @param noteHarmony the notes of the harmony pressed at the end of the note
+		 * @param chordTick the instant of time of the chord of the note
+		 * @param possibleScales the possible scales of the chord
+		 * @return true if the note has been selected, false if the note has no compatible note
+		 * @throws InvalidMidiDataException
+		 */
+		boolean offer(MidiNote abMelNote, List<MidiNote> noteHarmony, Long chordTick, List<PossibleScale> possibleScales) throws InvalidMidiDataException {
+			//Nessuna scelta precedente puo' rendere compatibile questa nota
+			if(noteHarmony.isEmpty() || possibleScales == null || possibleScales.isEmpty()) {
+				String reason = noteHarmony.isEmpty() ? "no harmony notes pressed" : "no possible scales for the harmony";
+				log.severe("No possible scales/notes relationship found according to melody abstraction and harmony at tick " + abMelNote.getTimestampEventEnd() + ": " + reason);
+				trace.noteFailed(count, abMelNote.getTimestampEventEnd(), reason);
+				count++;
+				return fail(count - 1, abMelNote.getTimestampEventEnd(), reason);
+			}
+			
+			steps[count % steps.length] = new SelectionStep(count, abMelNote, noteHarmony, chordTick, possibleScales);
+			count++;
+			
+			while(idx < count) {
+				SelectionStep step = steps[idx % steps.length];
+				SelectionStep previousStep = idx > writtenCount ? steps[(idx - 1) % steps.length] : lastWrittenStep;
+				
+				if(selectStep(step, previousStep, chordScaleMap)) {
+					idx++;
+					
+					//Le note fuori dalla finestra non possono piu' essere riviste
+					while(writtenCount < idx - size) {
+						write();
+					}
+				}else {
+					step.undo(chordScaleMap);
+					step.reset();
+					
+					if(idx == writtenCount || backtrackCount >= maxBacktracks) {
+						String reason = idx == writtenCount ? "no compatible scale or note, the previous notes cannot be revised" : "no compatible scale or note after " + backtrackCount + " backtracks";
+						log.severe("No possible scales/notes relationship found according to melody abstraction and harmony at tick " + step.abMelNote.getTimestampEventEnd() + ": " + reason);
+						trace.noteFailed(idx, step.abMelNote.getTimestampEventEnd(), reason);
+						return fail(idx, step.abMelNote.getTimestampEventEnd(), reason);
+					}
+					
+					backtrackCount++;
+					idx--;
+					if(log.isLoggable(Level.INFO)) {
+						log.info("No compatible note for note " + (idx + 1) + ": revising note " + idx);
 					}
+					trace.backtrack(idx, backtrackCount);
+					steps[idx % steps.length].rejectOutputNote();
 				}
 			}
+			
+			return true;
 		}
 		
-		return lastEventCloseNote != null ? chordMap.get(lastEventCloseNote).remove(scale) : false;
+		/**
+		 * Use this method to write the notes of the window, when no other note will be received
+		 * @return the result of the selection
+		 * @throws InvalidMidiDataException
+		 */
+		SelectionResult close() throws InvalidMidiDataException {
+			while(writtenCount < idx) {
+				write();
+			}
+			return getResult();
+		}
+		
+		/**
+		 * Returns the result of the selection of the notes received: unsatisfiable if a note could not be selected
+		 * @return the result of the selection
+		 */
+		SelectionResult getResult() {
+			if(failedNoteIndex >= 0) {
+				return SelectionResult.unsatisfiable(noteCount, backtrackCount, failedNoteIndex, failedTick, failedReason);
+			}
+			return SelectionResult.satisfied(noteCount, backtrackCount);
+		}
+		
+		int getPendingCount() {
+			return count - writtenCount;
+		}
+		
+		/**
+		 * This method writes the notes selected before the note that could not be selected and discards the notes from that note
+		 */
+		private boolean fail(int noteIndex, Long tick, String reason) throws InvalidMidiDataException {
+			while(writtenCount < idx) {
+				write();
+			}
+			for(int i = idx; i < count; i++) {
+				steps[i % steps.length] = null;
+			}
+			idx = count;
+			writtenCount = count;
+			
+			if(failedNoteIndex < 0) {
+				failedNoteIndex = noteIndex;
+				failedTick = tick;
+				failedReason = reason;
+			}
+			return false;
+		}
+		
+		/**
+		 * This method writes the first note of the window
+		 */
+		private void write() throws InvalidMidiDataException {
+			SelectionStep step = steps[writtenCount % steps.length];
+			
+			log.fine(() -> "Writing " + step.outputNote);
+			track.writeNote(step.outputNote, step.abMelNote.getTimestampEventStart(), step.abMelNote.getTimestampEventEnd());
+			trace.noteWritten(step.noteIndex, step.abMelNote.getTimestampEventStart(), step.abMelNote.getTimestampEventEnd(), step.outputNote.getMidiKeyId());
+			if(text != null) {
+				text.append(step.outputNote.getNote().getNote()).append(',');
+			}
+			
+			if(step.scaleSelected) {
+				PossibleScale scale = chordScaleMap.get(step.chordTick);
+				scaleCount++;
+				if(log.isLoggable(Level.INFO)) {
+					log.info("Scale " + scaleCount + " " + scale.getFundamentalNote() + ", " + scale.getScaleType() +", " + scale.getScale());
+				}
+			}
+			
+			//Le scale degli accordi precedenti alla nota scritta e alle note ancora nella finestra non servono piu'
+			//(con note sovrapposte una nota della finestra puo' avere un accordo precedente a quello della nota scritta)
+			Long oldestChordTick = step.chordTick;
+			for(int i = writtenCount + 1; i < count; i++) {
+				SelectionStep pendingStep = steps[i % steps.length];
+				if(pendingStep != null && pendingStep.chordTick < oldestChordTick) {
+					oldestChordTick = pendingStep.chordTick;
+				}
+			}
+			chordScaleMap.headMap(oldestChordTick).clear();
+			
+			steps[writtenCount % steps.length] = null;
+			lastWrittenStep = step;
+			writtenCount++;
+			noteCount++;
+		}
 	}
 	
 	/**
-	 * Given a set of notes, the method returns the lower note
-	 * @param midiNotes the set of notes
-	 * @return the lower note
+	 * Choices made for a note of the melody abstraction, kept until the note is written in the track
 	 */
-	private MidiNote getLowerFundamentalNote(List<MidiNote> midiNotes) {
+	private static final class SelectionStep {
 		
-		MidiNote lower = null;
+		//Posizione della nota nell'astrazione della melodia
+		private final int noteIndex;
+		private final MidiNote abMelNote;
+		private final List<MidiNote> noteHarmony;
+		private final Long chordTick;
+		private final List<PossibleScale> possibleScales;
 		
-		for(MidiNote mn : midiNotes) {
-			if(lower == null 
-					|| mn.getOctave() < lower.getOctave() 
-					|| (mn.getOctave() == lower.getOctave() 
-						&& mn.getNote().getOffsetFromC() < lower.getNote().getOffsetFromC())) {
-				lower = mn;
+		//Scale scartate e note gia' rifiutate per questa nota
+		private final Set<PossibleScale> rejectedScales = new HashSet<PossibleScale>();
+		private final Set<Integer> rejectedKeys = new HashSet<Integer>();
+		
+		//True if the scale of the chord has been selected by this note
+		private boolean scaleSelected;
+		private MidiNote outputNote;
+		
+		private SelectionStep(int noteIndex, MidiNote abMelNote, List<MidiNote> noteHarmony, Long chordTick, List<PossibleScale> possibleScales) {
+			this.noteIndex = noteIndex;
+			this.abMelNote = abMelNote;
+			this.noteHarmony = noteHarmony;
+			this.chordTick = chordTick;
+			this.possibleScales = possibleScales;
+		}
+		
+		/**
+		 * The note selected is discarded, another note (or scale) will be selected for this step
+		 */
+		private void rejectOutputNote() {
+			if(outputNote != null) {
+				rejectedKeys.add(outputNote.getMidiKeyId());
+				outputNote = null;
 			}
 		}
 		
-		return lower;
+		/**
+		 * The scale selected by this note is discarded, the notes rejected with that scale can be used again
+		 */
+		private void rejectScale(PossibleScale scale, Map<Long, PossibleScale> chordScaleMap) {
+			rejectedScales.add(scale);
+			rejectedKeys.clear();
+			chordScaleMap.remove(chordTick);
+			scaleSelected = false;
+		}
+		
+		/**
+		 * The choices of the step are cleared, as for a note not yet selected
+		 */
+		private void reset() {
+			rejectedScales.clear();
+			rejectedKeys.clear();
+			outputNote = null;
+		}
+		
+		/**
+		 * The step is removed: the scale selected by this note is released
+		 */
+		private void undo(Map<Long, PossibleScale> chordScaleMap) {
+			if(scaleSelected) {
+				chordScaleMap.remove(chordTick);
+				scaleSelected = false;
+			}
+		}
 	}
 	
 }
@@ -0,0 +1,131 @@
+package melpody.midi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.note.MidiNote;
+import melpody.midi.track.HarmonyMidiTrack;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class with the analysis of the harmony used by the real time selection: everything that depends only on the harmony
+ * is computed before the first note is received.
+ *
+ * The harmony is divided in segments, one for each instant of time of the scales map. For each segment are kept the scales
+ * that contain the root of the chord, ordered by category (see {@link OutputMidiNoteSelector#getScaleCategory}), and the position
+ * of the root of the chord in each scale.
+ *
+ */
+final class RealTimeHarmony {
+
+	private final SegmentIndex segmentIndex;
+	private final long loopLength;
+	private final PossibleScale[][] scales;
+	private final int[][] indexOffsets;
+	private final int[][] categories;
+	private int maxScaleCount;
+
+	/**
+	 * Creates the analysis of the harmony
+	 * @param harmony the harmony
+	 * @param scalesMap the map time-list of scales of the harmony
+	 * @param selector the selector defining the categories of the scales
+	 */
+	RealTimeHarmony(HarmonyMidiTrack harmony, Map<Long, List<PossibleScale>> scalesMap, OutputMidiNoteSelector selector) {
+		int segmentCount = scalesMap.size();
+		segmentIndex = new SegmentIndex(scalesMap.keySet());
+		scales = new PossibleScale[segmentCount][];
+		indexOffsets = new int[segmentCount][];
+		categories = new int[segmentCount][];
+
+		long lastTick = harmony.getEndOfTrack();
+		int segment = 0;
+		for(Map.Entry<Long, List<PossibleScale>> entry : scalesMap.entrySet()) {
+			List<MidiNote> noteHarmony = harmony.getPressedNoteAtTick(entry.getKey());
+			analyseSegment(segment, noteHarmony, entry.getValue(), selector);
+
+			for(MidiNote mn : noteHarmony) {
+				lastTick = Math.max(lastTick, mn.getTimestampEventEnd() != null ? mn.getTimestampEventEnd() : 0L);
+			}
+			segment++;
+		}
+
+		loopLength = Math.max(lastTick, 1L);
+	}
+
+	private void analyseSegment(int segment, List<MidiNote> noteHarmony, List<PossibleScale> possibleScales, OutputMidiNoteSelector selector) {
+		List<PossibleScale> segmentScales = new ArrayList<PossibleScale>();
+		List<Integer> segmentOffsets = new ArrayList<Integer>();
+		List<Integer> segmentCategories = new ArrayList<Integer>();
+
+		if(!noteHarmony.isEmpty() && possibleScales != null) {
+			MidiNote fundamentalChordNote = OutputMidiNoteSelector.getLowerFundamentalNote(noteHarmony);
+			int chordThirds = OutputMidiNoteSelector.getChordThirds(noteHarmony);
+
+			//Le scale sono ordinate per categoria, mantenendo l'ordine dell'analisi nella stessa categoria
+			for(int category = OutputMidiNoteSelector.MAJOR_SCALE; category <= OutputMidiNoteSelector.OTHER_SCALE; category++) {
+				for(PossibleScale ps : possibleScales) {
+					int indexOffset = ps.getIndexOf(fundamentalChordNote.getNote());
+					if(indexOffset >= 0 && selector.getScaleCategory(ps, chordThirds, fundamentalChordNote.getNote()) == category) {
+						segmentScales.add(ps);
+						segmentOffsets.add(indexOffset);
+						segmentCategories.add(category);
+					}
+				}
+			}
+		}
+
+		scales[segment] = segmentScales.toArray(new PossibleScale[segmentScales.size()]);
+		indexOffsets[segment] = new int[segmentScales.size()];
+		categories[segment] = new int[segmentScales.size()];
+		for(int i = 0; i < segmentScales.size(); i++) {
+			indexOffsets[segment][i] = segmentOffsets.get(i);
+			categories[segment][i] = segmentCategories.get(i);
+		}
+		maxScaleCount = Math.max(maxScaleCount, segmentScales.size());
+	}
+
+	/**
+	 * Returns the segment of an instant of time: the last segment starting not after the instant.
+	 * The harmony is repeated, so the instants before the first segment belong to the last one
+	 * @param tick the instant of time, between 0 and the length of the harmony
+	 * @return the segment, -1 if the harmony has no segments
+	 */
+	int getSegment(long tick) {
+		int segment = segmentIndex.floor(tick);
+		return segment != SegmentIndex.NO_SEGMENT ? segment : segmentIndex.size() - 1;
+	}
+
+	int getSegmentCount() {
+		return segmentIndex.size();
+	}
+
+	long getLoopLength() {
+		return loopLength;
+	}
+
+	int getScaleCount(int segment) {
+		return scales[segment].length;
+	}
+
+	int getMaxScaleCount() {
+		return maxScaleCount;
+	}
+
+	PossibleScale getScale(int segment, int scaleIndex) {
+		return scales[segment][scaleIndex];
+	}
+
+	int getIndexOffset(int segment, int scaleIndex) {
+		return indexOffsets[segment][scaleIndex];
+	}
+
+	int getCategory(int segment, int scaleIndex) {
+		return categories[segment][scaleIndex];
+	}
+
+}
@@ -0,0 +1,448 @@
+package melpody.midi.util;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+import classifier.GradeModel;
+import classifier.NoteRank;
+import converter.StandardMidiFileWriter;
+import melpody.MelpodyMain;
+import melpody.live.LatencyHistogram;
+import melpody.live.MidiEventRing;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.note.NoteLength;
+import melpody.midi.note.NoteLengthHelper;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.random.RandomSource;
+import melpody.random.SplittableRandomSource;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to create the output melody while the melody abstraction is played, e.g. from a midi keyboard.
+ *
+ * The notes of the melody abstraction are received by the receiver returned by {@link #getInputReceiver()}: NOTE_ON and NOTE_OFF
+ * messages are added to a {@link MidiEventRing} and the selection runs on a dedicated thread, that sends the output notes to the
+ * receiver of this transmitter (e.g. a synthesizer). The harmony is repeated from the start of the selection at the tempo defined by
+ * the property LIVE_TEMPO (beats per minute), the analysis of the harmony is computed before the start ({@link RealTimeHarmony}).
+ *
+ * The selection of a note does not create any object, does not take locks and does not write in the log: the time between the
+ * reception of a note and the output note is collected by {@link #getLatency()}. The rules are the same of {@link OutputMidiNoteSelector},
+ * with these differences:
+ * - the choices are never revised: a note without compatible notes is not played (see {@link #getMissedCount()});
+ * - the length of a note is unknown when the note is pressed: the length of the previous note is used.
+ *
+ */
+public final class RealTimeNoteSelector implements Transmitter {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String TEMPO_PROPERTY = "LIVE_TEMPO";
+	private static final String DEFAULT_TEMPO = "120";
+
+	private static final int EVENT_CAPACITY = 1024;
+	//Cicli di attesa attiva prima di sospendere il thread
+	private static final int SPIN_COUNT = 200;
+	private static final long PARK_NANOS = 1000000L;
+	private static final long NANOS_PER_MINUTE = 60000000000L;
+
+	private final RealTimeHarmony harmony;
+	private final GradeModel gradeModel;
+	private final RandomSource random;
+	private final double noveltyThreshold;
+	//Tick della melodia per nanosecondo, con risoluzione di 96 tick per quarto
+	private final double ticksPerNano;
+
+	private final MidiEventRing events = new MidiEventRing(EVENT_CAPACITY);
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final Receiver inputReceiver = new InputReceiver();
+	private final Thread worker;
+	private volatile boolean running;
+	private volatile boolean waiting;
+	private volatile Receiver outputReceiver;
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile long noteCount;
+	private volatile long missedCount;
+
+	//Stato del thread di selezione, preallocato
+	private final ShortMessage outputMessage = new ShortMessage();
+	private final int[] possibleKeys = new int[MidiTemporalSequenceEvent.KEY_COUNT];
+	private final int[] feasibleScales;
+	//Tasto in uscita + 1 per ogni canale e tasto in ingresso, 0 se la nota non e' suonata
+	private final int[] outputKeys = new int[MidiTemporalSequenceEvent.CHANNEL_COUNT * MidiTemporalSequenceEvent.KEY_COUNT];
+	private long startTime;
+	private int possibleKeyCount;
+	private int currentSegment = -1;
+	private int selectedScale = -1;
+	private int previousInputKey = -1;
+	private int previousOutputKey = -1;
+	private long previousNoteOnTime;
+	private long lastNoteNanos = -1L;
+
+	/**
+	 * Creates a selector configured by the properties of the process, the random choices use the seed of the process
+	 * @param properties the properties of the process
+	 * @param harmony the harmony, repeated from the start of the selection
+	 * @param gradeModel the preset of the probabilities of the grades
+	 * @param modalScaleSelector the set of modal scale accepted
+	 * @param scaleTypeSelector the set of types of scale accepted
+	 */
+	public RealTimeNoteSelector(Properties properties, HarmonyMidiTrack harmony, GradeModel gradeModel, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		RandomSource selectorRandom = new SplittableRandomSource(SplittableRandomSource.getSeed(properties));
+		OutputMidiNoteSelector selector = new OutputMidiNoteSelector(properties, selectorRandom, gradeModel);
+
+		this.harmony = new RealTimeHarmony(harmony, harmony.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector).getScalesMap(), selector);
+		this.gradeModel = gradeModel;
+		this.random = selectorRandom;
+		this.noveltyThreshold = Double.parseDouble(properties.getProperty("NOVELTY_THRESHOLD"));
+		this.ticksPerNano = getTempo(properties) * StandardMidiFileWriter.RESOLUTION / (double) NANOS_PER_MINUTE;
+		this.feasibleScales = new int[Math.max(this.harmony.getMaxScaleCount(), 1)];
+
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				select();
+			}
+		}, "melpody-live-selector");
+		this.worker.setDaemon(true);
+
+		log.info("Live harmony: " + this.harmony.getSegmentCount() + " segments, " + this.harmony.getLoopLength() + " ticks");
+	}
+
+	/**
+	 * Returns the tempo of the harmony in beats per minute, defined by the property LIVE_TEMPO (120 by default)
+	 * @param properties the properties of the process
+	 * @return the tempo
+	 */
+	public static double getTempo(Properties properties) {
+		double tempo = Double.parseDouble(properties.getProperty(TEMPO_PROPERTY, DEFAULT_TEMPO));
+		if(tempo <= 0D) {
+			throw new IllegalArgumentException(TEMPO_PROPERTY + " must be positive: " + tempo);
+		}
+		return tempo;
+	}
+
+	/**
+	 * Use this method to start the selection: the harmony starts now
+	 */
+	public synchronized void start() {
+		if(!running) {
+			startTime = System.nanoTime();
+			running = true;
+			worker.start();
+		}
+	}
+
+	/**
+	 * Returns the receiver of the notes of the melody abstraction, e.g. to be set as receiver of the transmitter of a midi keyboard
+	 * @return the receiver of the input notes
+	 */
+	public Receiver getInputReceiver() {
+		return inputReceiver;
+	}
+
+	@Override
+	public void setReceiver(Receiver receiver) {
+		this.outputReceiver = receiver;
+	}
+
+	@Override
+	public Receiver getReceiver() {
+		return outputReceiver;
+	}
+
+	/**
+	 * Stops the selection: the events not yet processed are discarded, the output notes still sounding are released
+	 */
+	@Override
+	public void close() {
+		if(!running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(worker);
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for(int slot = 0; slot < outputKeys.length; slot++) {
+			if(outputKeys[slot] != 0) {
+				send(ShortMessage.NOTE_OFF, slot / MidiTemporalSequenceEvent.KEY_COUNT, outputKeys[slot] - 1, 0);
+				outputKeys[slot] = 0;
+			}
+		}
+		log.info("Live selection: " + noteCount + " notes, " + missedCount + " missed, " + droppedCount + " dropped, latency " + latency);
+	}
+
+	/**
+	 * Returns the distribution of the time between the reception of a NOTE_ON and the output note
+	 * @return the latency of the selection
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Returns the number of notes played in output
+	 */
+	public long getNoteCount() {
+		return noteCount;
+	}
+
+	/**
+	 * Returns the number of notes of the melody abstraction without a compatible note in the harmony
+	 */
+	public long getMissedCount() {
+		return missedCount;
+	}
+
+	/**
+	 * Returns the number of events discarded because the selection was not fast enough
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Returns the thread of the selection, e.g. to measure its cpu time
+	 */
+	public Thread getWorker() {
+		return worker;
+	}
+
+	/**
+	 * Loop of the selection thread: the thread waits actively for a short time, then it is suspended until a new event is received
+	 */
+	private void select() {
+		int idleCount = 0;
+
+		while(running) {
+			if(events.poll()) {
+				idleCount = 0;
+				int command = events.getStatus() & 0xF0;
+				int channel = events.getStatus() & 0x0F;
+				if(command == ShortMessage.NOTE_ON && events.getData2() > 0) {
+					noteOn(channel, events.getData1(), events.getData2(), events.getReceivedTime());
+				}else {
+					noteOff(channel, events.getData1(), events.getReceivedTime());
+				}
+			}else if(idleCount < SPIN_COUNT) {
+				idleCount++;
+				Thread.yield();
+			}else {
+				waiting = true;
+				if(events.isEmpty() && running) {
+					LockSupport.parkNanos(this, PARK_NANOS);
+				}
+				waiting = false;
+			}
+		}
+	}
+
+	private void noteOn(int channel, int inputKey, int velocity, long receivedTime) {
+		int outputKey = selectKey(inputKey, receivedTime);
+
+		if(outputKey < 0) {
+			missedCount++;
+		}else {
+			int slot = channel * MidiTemporalSequenceEvent.KEY_COUNT + inputKey;
+			//Lo stesso tasto premuto di nuovo prima del rilascio: la nota precedente viene rilasciata
+			if(outputKeys[slot] != 0) {
+				send(ShortMessage.NOTE_OFF, channel, outputKeys[slot] - 1, 0);
+			}
+			send(ShortMessage.NOTE_ON, channel, outputKey, velocity);
+			outputKeys[slot] = outputKey + 1;
+
+			previousInputKey = inputKey;
+			previousOutputKey = outputKey;
+			noteCount++;
+		}
+
+		previousNoteOnTime = receivedTime;
+		latency.record(System.nanoTime() - receivedTime);
+	}
+
+	private void noteOff(int channel, int inputKey, long receivedTime) {
+		int slot = channel * MidiTemporalSequenceEvent.KEY_COUNT + inputKey;
+		if(outputKeys[slot] != 0) {
+			send(ShortMessage.NOTE_OFF, channel, outputKeys[slot] - 1, 0);
+			outputKeys[slot] = 0;
+		}
+
+		if(inputKey == previousInputKey) {
+			lastNoteNanos = receivedTime - previousNoteOnTime;
+		}
+	}
+
+	/**
+	 * Use this method to select the output key of a note of the melody abstraction
+	 * @param inputKey the midi key of the melody abstraction
+	 * @param receivedTime the instant the note has been received
+	 * @return the output midi key, -1 if the harmony has no compatible note
+	 */
+	private int selectKey(int inputKey, long receivedTime) {
+		if(harmony.getSegmentCount() == 0) {
+			return -1;
+		}
+
+		long tick = (long) ((receivedTime - startTime) * ticksPerNano) % harmony.getLoopLength();
+		int segment = harmony.getSegment(Math.max(tick, 0L));
+
+		//La scala viene scelta alla prima nota di ogni accordo
+		if(segment != currentSegment) {
+			currentSegment = segment;
+			selectedScale = -1;
+		}
+
+		if(selectedScale >= 0) {
+			setPossibleKeys(harmony.getScale(segment, selectedScale), inputKey);
+			if(!NoteRank.hasRankedGrade(gradeModel, harmony.getIndexOffset(segment, selectedScale), possibleKeys, possibleKeyCount, harmony.getScale(segment, selectedScale))) {
+				selectedScale = -1;
+			}
+		}
+
+		if(selectedScale < 0) {
+			selectedScale = selectScale(segment, inputKey);
+			if(selectedScale < 0) {
+				return -1;
+			}
+			setPossibleKeys(harmony.getScale(segment, selectedScale), inputKey);
+		}
+
+		NoteLength noteLength = lastNoteNanos >= 0L ? NoteLengthHelper.getNoteLength((long) (lastNoteNanos * ticksPerNano)) : null;
+		boolean novelty = random.nextDouble() >= noveltyThreshold;
+
+		return NoteRank.getKeyFromParameterAndRanking(gradeModel, noteLength, novelty, harmony.getIndexOffset(segment, selectedScale),
+				possibleKeys, possibleKeyCount, harmony.getScale(segment, selectedScale), random);
+	}
+
+	/**
+	 * Use this method to select randomly a scale of the segment among the scales of the preferred category that can produce a note
+	 * @return the position of the scale in the segment, -1 if no scale can produce a note
+	 */
+	private int selectScale(int segment, int inputKey) {
+		int feasibleCount = 0;
+		int feasibleCategory = -1;
+
+		//Le scale del segmento sono ordinate per categoria: mi fermo alla prima categoria con scale compatibili
+		for(int i = 0; i < harmony.getScaleCount(segment); i++) {
+			if(feasibleCount > 0 && harmony.getCategory(segment, i) != feasibleCategory) {
+				break;
+			}
+			PossibleScale ps = harmony.getScale(segment, i);
+			setPossibleKeys(ps, inputKey);
+			if(NoteRank.hasRankedGrade(gradeModel, harmony.getIndexOffset(segment, i), possibleKeys, possibleKeyCount, ps)) {
+				feasibleScales[feasibleCount++] = i;
+				feasibleCategory = harmony.getCategory(segment, i);
+			}
+		}
+
+		if(feasibleCount == 0) {
+			return -1;
+		}
+		return feasibleScales[Math.min((int) Math.round(random.nextDouble() * feasibleCount), feasibleCount - 1)];
+	}
+
+	/**
+	 * This method writes in {@link #possibleKeys} the keys of the scale in the range defined by the melody abstraction,
+	 * in the same order of {@link OutputMidiNoteSelector#getPossibleNoteListFromMelodyAbstraction}
+	 */
+	private void setPossibleKeys(PossibleScale possibleScale, int inputKey) {
+		possibleKeyCount = 0;
+
+		if(previousOutputKey < 0) {
+			//Prima nota: le note della scala nell'ottava dell'astrazione
+			int octaveKey = inputKey - inputKey % 12;
+			for(int i = 0; i < possibleScale.size(); i++) {
+				int key = octaveKey + possibleScale.getNote(i).getOffsetFromC();
+				if(key < MidiTemporalSequenceEvent.KEY_COUNT) {
+					possibleKeys[possibleKeyCount++] = key;
+				}
+			}
+			return;
+		}
+
+		int maxRange = previousOutputKey + inputKey - previousInputKey;
+		int lowerBound = previousOutputKey + 1;
+		int upperBound = maxRange;
+		if(lowerBound > upperBound) {
+			lowerBound = maxRange;
+			upperBound = previousOutputKey - 1;
+		}
+		lowerBound = Math.max(lowerBound, 0);
+		upperBound = Math.min(upperBound, MidiTemporalSequenceEvent.KEY_COUNT - 1);
+
+		for(int i = 0; i < possibleScale.size(); i++) {
+			int offset = possibleScale.getNote(i).getOffsetFromC();
+			for(int key = upperBound; key >= lowerBound; key--) {
+				if(key % 12 == offset) {
+					possibleKeys[possibleKeyCount++] = key;
+				}
+			}
+		}
+
+		if(possibleKeyCount == 0) {
+			possibleKeys[possibleKeyCount++] = previousOutputKey;
+		}
+	}
+
+	private void send(int command, int channel, int key, int velocity) {
+		Receiver receiver = outputReceiver;
+		if(receiver == null) {
+			return;
+		}
+
+		try {
+			outputMessage.setMessage(command, channel, key, velocity);
+			receiver.send(outputMessage, -1L);
+		} catch (InvalidMidiDataException e) {
+			log.log(Level.SEVERE, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Receiver of the notes of the melody abstraction: the NOTE_ON and NOTE_OFF messages are passed to the selection thread,
+	 * the other messages are ignored
+	 */
+	private final class InputReceiver implements Receiver {
+
+		@Override
+		public void send(MidiMessage message, long timeStamp) {
+			long receivedTime = System.nanoTime();
+			if(!running || !(message instanceof ShortMessage)) {
+				return;
+			}
+
+			ShortMessage sm = (ShortMessage) message;
+			if(sm.getCommand() != ShortMessage.NOTE_ON && sm.getCommand() != ShortMessage.NOTE_OFF) {
+				return;
+			}
+
+			if(!events.offer(sm.getStatus(), sm.getData1(), sm.getData2(), receivedTime)) {
+				droppedCount.incrementAndGet();
+			}else if(waiting) {
+				LockSupport.unpark(worker);
+			}
+		}
+
+		@Override
+		public void close() {
+			//Il ricevitore appartiene al selettore: viene fermato da RealTimeNoteSelector.close()
+		}
+	}
+
+}
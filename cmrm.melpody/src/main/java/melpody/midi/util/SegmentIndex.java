@@ -0,0 +1,111 @@
+package melpody.midi.util;
+
+import java.util.Collection;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to find the segment of the harmony containing an instant of time: each segment starts at an instant of time
+ * (e.g. a "NOTE_ON" event of the harmony) and ends at the start of the following segment.
+ *
+ * The starts of the segments are kept sorted in an array: the segment of an instant is found with a binary search, or
+ * by a {@link Cursor} when the instants are requested in order (e.g. the notes of a melody), moving forward from the last segment found.
+ * The index is built once and it is read only.
+ *
+ */
+public final class SegmentIndex {
+
+	//Nessun segmento inizia prima dell'istante richiesto
+	public static final int NO_SEGMENT = -1;
+
+	private final long[] starts;
+
+	/**
+	 * Creates the index
+	 * @param segmentStarts the start instants of the segments, in ascending order (e.g. the keys of a sorted map)
+	 */
+	public SegmentIndex(Collection<Long> segmentStarts) {
+		starts = new long[segmentStarts.size()];
+
+		int segment = 0;
+		for(Long start : segmentStarts) {
+			if(segment > 0 && start < starts[segment - 1]) {
+				throw new IllegalArgumentException("Segment starts not sorted: " + start + " after " + starts[segment - 1]);
+			}
+			starts[segment++] = start;
+		}
+	}
+
+	public int size() {
+		return starts.length;
+	}
+
+	/**
+	 * Returns the start instant of a segment
+	 * @param segment the position of the segment
+	 * @return the start instant
+	 */
+	public long getStart(int segment) {
+		return starts[segment];
+	}
+
+	/**
+	 * Use this method to find the segment of an instant of time: the last segment starting not after the instant
+	 * @param tick the instant of time
+	 * @return the position of the segment, {@link #NO_SEGMENT} if the instant is before the first segment
+	 */
+	public int floor(long tick) {
+		return floor(tick, 0, starts.length - 1);
+	}
+
+	private int floor(long tick, int low, int high) {
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			if(starts[middle] <= tick) {
+				low = middle + 1;
+			}else {
+				high = middle - 1;
+			}
+		}
+		return high;
+	}
+
+	/**
+	 * Returns a new cursor on the index, positioned before the first segment
+	 * @return the cursor
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Class to find the segments of instants of time requested mostly in ascending order: the search starts from the segment
+	 * found by the previous request, so a whole melody is resolved in a single pass over the segments. An instant before the
+	 * previous one is resolved by a binary search.
+	 */
+	public final class Cursor {
+
+		private int segment = NO_SEGMENT;
+
+		private Cursor() {}
+
+		/**
+		 * Use this method to find the segment of an instant of time (see {@link SegmentIndex#floor(long)})
+		 * @param tick the instant of time
+		 * @return the position of the segment, {@link #NO_SEGMENT} if the instant is before the first segment
+		 */
+		public int floor(long tick) {
+			if(segment != NO_SEGMENT && starts[segment] > tick) {
+				segment = SegmentIndex.this.floor(tick, 0, segment - 1);
+				return segment;
+			}
+
+			while(segment + 1 < starts.length && starts[segment + 1] <= tick) {
+				segment++;
+			}
+			return segment;
+		}
+	}
+
+}
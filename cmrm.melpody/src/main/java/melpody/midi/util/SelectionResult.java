@@ -0,0 +1,103 @@
+package melpody.midi.util;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to describe the result of the creation of the output melody: the number of notes written, the number of melodies
+ * completed by the beam search and, when the harmony and the melody abstraction are not compatible, the first note that could not be selected.
+ */
+public final class SelectionResult {
+
+	private final boolean satisfied;
+	private final int noteCount;
+	private final int backtrackCount;
+	private final int melodyCount;
+	private final int noteIndex;
+	private final Long tick;
+	private final String reason;
+
+	private SelectionResult(boolean satisfied, int noteCount, int backtrackCount, int melodyCount, int noteIndex, Long tick, String reason) {
+		this.satisfied = satisfied;
+		this.noteCount = noteCount;
+		this.backtrackCount = backtrackCount;
+		this.melodyCount = melodyCount;
+		this.noteIndex = noteIndex;
+		this.tick = tick;
+		this.reason = reason;
+	}
+
+	static SelectionResult satisfied(int noteCount, int backtrackCount) {
+		return satisfied(noteCount, backtrackCount, 1);
+	}
+
+	static SelectionResult satisfied(int noteCount, int backtrackCount, int melodyCount) {
+		return new SelectionResult(true, noteCount, backtrackCount, melodyCount, -1, null, null);
+	}
+
+	static SelectionResult unsatisfiable(int noteCount, int backtrackCount, int noteIndex, Long tick, String reason) {
+		return new SelectionResult(false, noteCount, backtrackCount, 0, noteIndex, tick, reason);
+	}
+
+	/**
+	 * Returns true if a note has been selected for each note of the melody abstraction
+	 * @return true if the melody is complete
+	 */
+	public boolean isSatisfied() {
+		return satisfied;
+	}
+
+	/**
+	 * Returns the number of notes written in the output track
+	 * @return the number of notes written
+	 */
+	public int getNoteCount() {
+		return noteCount;
+	}
+
+	/**
+	 * Returns the number of times a previous choice has been revised
+	 * @return the number of backtracking steps
+	 */
+	public int getBacktrackCount() {
+		return backtrackCount;
+	}
+
+	/**
+	 * Returns the number of melodies completed, written in the first output tracks: the beam search can complete less melodies
+	 * than the tracks when some groups cannot be extended
+	 * @return the number of melodies written, 0 if the selection is unsatisfiable
+	 */
+	public int getMelodyCount() {
+		return melodyCount;
+	}
+
+	/**
+	 * Returns the index of the note of the melody abstraction that could not be selected
+	 * @return the index of the note, -1 if the melody is complete
+	 */
+	public int getNoteIndex() {
+		return noteIndex;
+	}
+
+	/**
+	 * Returns the time instant of the note that could not be selected
+	 * @return the time instant, null if the melody is complete
+	 */
+	public Long getTick() {
+		return tick;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	@Override
+	public String toString() {
+		if(satisfied) {
+			return "Satisfied: " + noteCount + " notes, " + backtrackCount + " backtracks" + (melodyCount > 1 ? ", " + melodyCount + " melodies" : "");
+		}
+		return "Unsatisfiable at tick " + tick + " (note " + noteIndex + "): " + reason;
+	}
+
+}
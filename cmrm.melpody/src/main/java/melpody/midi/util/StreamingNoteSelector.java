@@ -0,0 +1,493 @@
+package melpody.midi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
+import converter.MidiInputOutputConverter;
+import converter.OutputTrackWriter;
+import converter.StandardMidiFileWriter;
+import melpody.MelpodyMain;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.note.MidiNote;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleMaskTable;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+import melpody.random.SplittableRandomSource;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class used to create the output melody while the events of the harmony and of the melody abstraction are received,
+ * without reading the whole files.
+ *
+ * The events are pushed in order of time. The selector keeps only the state needed by the next notes: the notes of the harmony
+ * still pressed, the scales of the last chord, the notes of the melody abstraction waiting for the harmony and the notes whose
+ * choices can still be revised (see the property STREAM_BACKTRACK_WINDOW). The memory used does not depend on the length of the melody.
+ *
+ * A note of the melody abstraction is selected at its end, as {@link OutputMidiNoteSelector} does, when the harmony is known
+ * at that instant: when an event of the harmony after the end of the note is received, or when {@link #advanceTo(long)} or
+ * {@link #close()} is called. The output notes are written in the track when they cannot be revised anymore.
+ * With the same events, the same seed and the same window the output is the same of {@link OutputMidiNoteSelector}.
+ *
+ * When a note has no compatible note, the notes already selected are written, the note is discarded and the melody continues
+ * from the following note: the first note discarded is reported by the result.
+ *
+ * The instances are not thread safe: the events of a melody must be pushed by a single thread at a time.
+ *
+ * The method {@link #selfTest(File, File, Properties, ModalScaleInitProcess, ScaleTypeInitProcess)} checks that the output of the
+ * events of two files is the same of {@link OutputMidiNoteSelector}.
+ *
+ */
+public final class StreamingNoteSelector {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String BACKTRACK_WINDOW_PROPERTY = "STREAM_BACKTRACK_WINDOW";
+
+	//Maximum number of notes of the melody abstraction waiting for the harmony
+	private static final int MAX_PENDING_NOTES = 1024;
+	private static final long NO_TICK = Long.MIN_VALUE;
+	private static final long NOT_RELEASED = MidiTemporalSequenceEvent.NOT_RELEASED;
+	private static final int CHANNEL_COUNT = MidiTemporalSequenceEvent.CHANNEL_COUNT;
+	private static final int KEY_COUNT = MidiTemporalSequenceEvent.KEY_COUNT;
+
+	private final OutputMidiNoteSelector.SelectionWindow window;
+	private final ScaleMaskTable scaleMaskTable;
+
+	//Note della armonia premute (o rilasciate dopo l'ultimo istante completo), in ordine di arrivo
+	private int harmonySize;
+	private long[] harmonyStart = new long[16];
+	private long[] harmonyEnd = new long[16];
+	private int[] harmonyKey = new int[16];
+	private int[] harmonyChannel = new int[16];
+	private int[] harmonyVelocity = new int[16];
+
+	//All the events of the harmony until this instant have been received
+	private long watermark = NO_TICK;
+	//Last "NOTE_ON" of the harmony, not yet analysed
+	private long pendingChordTick = NO_TICK;
+	//Last "NOTE_ON" of the harmony analysed and the scales of the last chord with notes pressed
+	private long chordTick = NO_TICK;
+	private List<PossibleScale> chordScales;
+
+	//Notes of the melody abstraction waiting for the harmony, in a circular buffer
+	private final MidiNote[] pendingNotes = new MidiNote[MAX_PENDING_NOTES];
+	private int pendingHead;
+	private int pendingCount;
+
+	//Notes of the melody abstraction pressed and not yet released, for each channel and key
+	private final long[] melodyStart = new long[CHANNEL_COUNT * KEY_COUNT];
+	private final int[] melodyVelocity = new int[CHANNEL_COUNT * KEY_COUNT];
+
+	private boolean closed;
+
+	//Order of the events at the same instant: the chord is complete before the notes of the melody abstraction ending at that instant,
+	//a note ends before the next note of the same key starts
+	private static final int HARMONY_NOTE_OFF = 0;
+	private static final int HARMONY_NOTE_ON = 1;
+	private static final int MELODY_NOTE_OFF = 2;
+	private static final int MELODY_NOTE_ON = 3;
+
+	/**
+	 * Creates a selector writing the notes in a track, with the window defined by the property STREAM_BACKTRACK_WINDOW
+	 * @param selector the selector of the notes, with the configuration and the random source of the melody
+	 * @param track the writer of the output track
+	 * @param modalScaleSelector the set of modal scale accepted
+	 * @param scaleTypeSelector the set of types of scale accepted
+	 * @param properties the properties of the process
+	 */
+	public StreamingNoteSelector(OutputMidiNoteSelector selector, OutputTrackWriter track, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector, Properties properties) {
+		this(selector, track, modalScaleSelector, scaleTypeSelector, getBacktrackWindow(properties));
+	}
+
+	/**
+	 * Creates a selector writing the notes in a track
+	 * @param selector the selector of the notes, with the configuration and the random source of the melody
+	 * @param track the writer of the output track
+	 * @param modalScaleSelector the set of modal scale accepted
+	 * @param scaleTypeSelector the set of types of scale accepted
+	 * @param backtrackWindow the number of notes whose choices can be revised, it is the delay (in notes) of the output
+	 * (0 = each note is written as soon as it is selected)
+	 */
+	public StreamingNoteSelector(OutputMidiNoteSelector selector, OutputTrackWriter track, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector, int backtrackWindow) {
+		this.window = selector.openWindow(track, backtrackWindow);
+		this.scaleMaskTable = ScaleMaskTable.getInstance(modalScaleSelector, scaleTypeSelector);
+		Arrays.fill(melodyStart, NOT_RELEASED);
+	}
+
+	/**
+	 * Returns the number of notes whose choices can be revised defined by the property STREAM_BACKTRACK_WINDOW
+	 * (the same window of the whole melody if not defined)
+	 * @param properties the properties of the process
+	 * @return the number of notes of the window
+	 */
+	public static int getBacktrackWindow(Properties properties) {
+		return Math.max(0, Integer.parseInt(properties.getProperty(BACKTRACK_WINDOW_PROPERTY, String.valueOf(OutputMidiNoteSelector.BACKTRACK_WINDOW)).trim()));
+	}
+
+	/**
+	 * Use this method to check the streaming selection: the melody of two files is created by {@link OutputMidiNoteSelector} with
+	 * the whole tracks and again pushing the events of the tracks in order of time, with the same seed and the same window.
+	 * The two results and the maximum number of notes kept by the streaming selector are written in the log. When a note cannot be selected
+	 * only the first note discarded is compared, the streaming selection continues with the following notes
+	 * @param harmonyFile the harmony file
+	 * @param melodyAbstractionFile the melody abstraction file
+	 * @param properties the properties of the process
+	 * @param modalScaleSelector the set of modal scale accepted
+	 * @param scaleTypeSelector the set of types of scale accepted
+	 * @return true if the two output tracks are the same (or the same note is discarded)
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	public static boolean selfTest(File harmonyFile, File melodyAbstractionFile, Properties properties, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) throws InvalidMidiDataException, IOException {
+		String parser = properties.getProperty(MidiInputOutputConverter.MIDI_PARSER_PROPERTY, MidiInputOutputConverter.MAPPED_PARSER);
+		HarmonyMidiTrack harmony = (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi(harmonyFile.getPath(), HarmonyMidiTrack.class, parser);
+		MelodyAbstraction melodyAbstraction = (MelodyAbstraction) MidiInputOutputConverter.mapMidi(melodyAbstractionFile.getPath(), MelodyAbstraction.class, parser);
+		GradeModel gradeModel = GradeModelRegistry.getModel(properties);
+		long seed = SplittableRandomSource.getSeed(properties);
+
+		StandardMidiFileWriter trackWriter = new StandardMidiFileWriter();
+		trackWriter.begin(melodyAbstraction.getEndOfTrack());
+		OutputMidiNoteSelector trackSelector = new OutputMidiNoteSelector(properties, new SplittableRandomSource(seed), gradeModel);
+		SelectionResult trackResult = trackSelector.createOutputTrack(melodyAbstraction, harmony, trackWriter, modalScaleSelector, scaleTypeSelector);
+
+		List<long[]> events = new ArrayList<long[]>();
+		addEvents(events, harmony.getMidiInformation(), HARMONY_NOTE_ON, HARMONY_NOTE_OFF);
+		addEvents(events, melodyAbstraction.getMidiInformation(), MELODY_NOTE_ON, MELODY_NOTE_OFF);
+		Collections.sort(events, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] e1, long[] e2) {
+				if(e1[0] != e2[0]) {
+					return e1[0] < e2[0] ? -1 : 1;
+				}
+				return Long.compare(e1[1], e2[1]);
+			}
+		});
+
+		StandardMidiFileWriter streamWriter = new StandardMidiFileWriter();
+		streamWriter.begin(melodyAbstraction.getEndOfTrack());
+		OutputMidiNoteSelector streamSelector = new OutputMidiNoteSelector(properties, new SplittableRandomSource(seed), gradeModel);
+		StreamingNoteSelector selector = new StreamingNoteSelector(streamSelector, streamWriter, modalScaleSelector, scaleTypeSelector, OutputMidiNoteSelector.BACKTRACK_WINDOW);
+
+		int maxPendingCount = 0;
+		for(long[] event : events) {
+			long tick = event[0];
+			int midiKey = (int) event[2];
+			switch((int) event[1]) {
+				case HARMONY_NOTE_OFF:
+					selector.harmonyNoteOff(0, midiKey, tick);
+					break;
+				case HARMONY_NOTE_ON:
+					selector.harmonyNoteOn(0, midiKey, (int) event[3], tick);
+					break;
+				case MELODY_NOTE_OFF:
+					selector.melodyNoteOff(0, midiKey, tick);
+					break;
+				default:
+					selector.melodyNoteOn(0, midiKey, (int) event[3], tick);
+			}
+			maxPendingCount = Math.max(maxPendingCount, selector.getPendingCount());
+		}
+		SelectionResult streamResult = selector.close();
+
+		//Dopo una nota scartata la selezione in streaming continua, quella delle tracce intere si ferma: si confronta solo la nota scartata
+		boolean passed;
+		if(trackResult.isSatisfied()) {
+			passed = Arrays.equals(trackWriter.toByteArray(), streamWriter.toByteArray());
+		}else {
+			passed = !streamResult.isSatisfied() && trackResult.getNoteIndex() == streamResult.getNoteIndex() && trackResult.getTick().equals(streamResult.getTick());
+		}
+		log.info("Streaming self-test: whole tracks " + trackResult + ", streaming " + streamResult + ", at most " + maxPendingCount
+				+ " notes kept by the streaming selector");
+		if(!passed) {
+			log.severe("Streaming self-test failed: the output of the streaming selection is different");
+		}
+		return passed;
+	}
+
+	/**
+	 * This method adds the "NOTE_ON" and "NOTE_OFF" events of the notes of a track: {tick, kind, midi key, velocity}
+	 */
+	private static void addEvents(List<long[]> events, MidiTemporalSequenceEvent notes, int noteOnKind, int noteOffKind) {
+		for(int i = 0; i < notes.size(); i++) {
+			events.add(new long[] {notes.getStart(i), noteOnKind, notes.getMidiKey(i), Math.max(notes.getVelocity(i), 1)});
+			if(notes.getEnd(i) != NOT_RELEASED) {
+				events.add(new long[] {notes.getEnd(i), noteOffKind, notes.getMidiKey(i), 0});
+			}
+		}
+	}
+
+	/**
+	 * Use this method to push a "NOTE_ON" event of the harmony (with velocity 0 it is a "NOTE_OFF" event)
+	 * @param channel the midi channel (0-15)
+	 * @param midiKey the midi key (0-127)
+	 * @param velocity the velocity of the note
+	 * @param tick the time instant
+	 * @throws InvalidMidiDataException
+	 */
+	public void harmonyNoteOn(int channel, int midiKey, int velocity, long tick) throws InvalidMidiDataException {
+		if(velocity == 0) {
+			harmonyNoteOff(channel, midiKey, tick);
+			return;
+		}
+
+		advance(tick - 1);
+
+		if(harmonySize == harmonyStart.length) {
+			growHarmony(harmonySize * 2);
+		}
+		harmonyStart[harmonySize] = tick;
+		harmonyEnd[harmonySize] = NOT_RELEASED;
+		harmonyKey[harmonySize] = midiKey;
+		harmonyChannel[harmonySize] = channel;
+		harmonyVelocity[harmonySize] = velocity;
+		harmonySize++;
+
+		pendingChordTick = tick;
+	}
+
+	/**
+	 * Use this method to push a "NOTE_OFF" event of the harmony: the first note pressed on the channel and key is released
+	 * @param channel the midi channel (0-15)
+	 * @param midiKey the midi key (0-127)
+	 * @param tick the time instant
+	 * @throws InvalidMidiDataException
+	 */
+	public void harmonyNoteOff(int channel, int midiKey, long tick) throws InvalidMidiDataException {
+		advance(tick - 1);
+
+		for(int i = 0; i < harmonySize; i++) {
+			if(harmonyEnd[i] == NOT_RELEASED && harmonyKey[i] == midiKey && harmonyChannel[i] == channel) {
+				harmonyEnd[i] = tick;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Use this method to push a "NOTE_ON" event of the melody abstraction (with velocity 0 it is a "NOTE_OFF" event)
+	 * @param channel the midi channel (0-15)
+	 * @param midiKey the midi key (0-127)
+	 * @param velocity the velocity of the note
+	 * @param tick the time instant
+	 * @throws InvalidMidiDataException
+	 */
+	public void melodyNoteOn(int channel, int midiKey, int velocity, long tick) throws InvalidMidiDataException {
+		if(velocity == 0) {
+			melodyNoteOff(channel, midiKey, tick);
+			return;
+		}
+
+		int slot = getSlot(channel, midiKey);
+		if(melodyStart[slot] != NOT_RELEASED) {
+			log.fine(() -> "Melody abstraction note " + midiKey + " pressed again before the release at tick " + tick);
+		}
+		melodyStart[slot] = tick;
+		melodyVelocity[slot] = velocity;
+	}
+
+	/**
+	 * Use this method to push a "NOTE_OFF" event of the melody abstraction: the note is complete and it is selected
+	 * as soon as the harmony is known at the end of the note
+	 * @param channel the midi channel (0-15)
+	 * @param midiKey the midi key (0-127)
+	 * @param tick the time instant
+	 * @throws InvalidMidiDataException
+	 */
+	public void melodyNoteOff(int channel, int midiKey, long tick) throws InvalidMidiDataException {
+		int slot = getSlot(channel, midiKey);
+		if(melodyStart[slot] == NOT_RELEASED) {
+			return;
+		}
+
+		MidiNote abMelNote = MidiTemporalSequenceEvent.createMidiNote(midiKey, melodyVelocity[slot], melodyStart[slot], tick);
+		melodyStart[slot] = NOT_RELEASED;
+		melodyNote(abMelNote);
+	}
+
+	/**
+	 * Use this method to push a complete note of the melody abstraction. The notes must be pushed in order of end: a note ending
+	 * before an instant already analysed (an event of the harmony after its end or {@link #advanceTo(long)}) is discarded,
+	 * the harmony of that instant is no longer available
+	 * @param abMelNote the note of the melody abstraction, with start and end instants
+	 * @return true if the note has been accepted, false if it has been discarded
+	 * @throws InvalidMidiDataException
+	 */
+	public boolean melodyNote(MidiNote abMelNote) throws InvalidMidiDataException {
+		if(closed) {
+			throw new IllegalStateException("Streaming selector already closed");
+		}
+
+		if(abMelNote.getTimestampEventEnd() < watermark) {
+			log.warning("Melody abstraction note " + abMelNote.getMidiKeyId() + " ending at tick " + abMelNote.getTimestampEventEnd()
+					+ " received after the harmony until tick " + watermark + ": note discarded");
+			return false;
+		}
+
+		//Buffer pieno: la nota piu' vecchia viene selezionata con l'armonia ricevuta finora
+		if(pendingCount == pendingNotes.length) {
+			long end = pendingNotes[pendingHead].getTimestampEventEnd();
+			log.fine(() -> "Harmony not received at tick " + end + ": note selected with the harmony received");
+			advance(end);
+		}
+
+		pendingNotes[(pendingHead + pendingCount) % pendingNotes.length] = abMelNote;
+		pendingCount++;
+
+		advance(watermark);
+		return true;
+	}
+
+	/**
+	 * Use this method to declare that all the events of the harmony until an instant of time have been pushed:
+	 * the notes of the melody abstraction ending until that instant are selected
+	 * @param tick the time instant
+	 * @throws InvalidMidiDataException
+	 */
+	public void advanceTo(long tick) throws InvalidMidiDataException {
+		advance(tick);
+	}
+
+	/**
+	 * Use this method to end the melody: the notes waiting for the harmony are selected with the harmony received
+	 * and all the notes selected are written
+	 * @return the result of the selection, unsatisfiable if a note has been discarded
+	 * @throws InvalidMidiDataException
+	 */
+	public SelectionResult close() throws InvalidMidiDataException {
+		if(!closed) {
+			advance(Long.MAX_VALUE);
+			closed = true;
+		}
+		SelectionResult result = window.close();
+		log.info("Streaming selection completed: " + result);
+		return result;
+	}
+
+	/**
+	 * Returns the result of the selection of the notes received so far
+	 * @return the result of the selection
+	 */
+	public SelectionResult getResult() {
+		return window.getResult();
+	}
+
+	/**
+	 * Returns the number of notes of the melody abstraction received and not yet written
+	 * @return the number of notes waiting for the harmony or still revisable
+	 */
+	public int getPendingCount() {
+		return pendingCount + window.getPendingCount();
+	}
+
+	/**
+	 * This method analyses the chords and selects the notes of the melody abstraction until an instant of time, in order of time:
+	 * at the same instant the chord is analysed before the notes ending at that instant
+	 */
+	private void advance(long tick) throws InvalidMidiDataException {
+		if(tick > watermark) {
+			watermark = tick;
+		}
+
+		while(true) {
+			boolean chordReady = pendingChordTick != NO_TICK && pendingChordTick <= watermark;
+			long noteEnd = pendingCount > 0 ? pendingNotes[pendingHead].getTimestampEventEnd() : NO_TICK;
+			boolean noteReady = pendingCount > 0 && noteEnd <= watermark;
+
+			if(chordReady && (!noteReady || pendingChordTick <= noteEnd)) {
+				analyseChord(pendingChordTick);
+				pendingChordTick = NO_TICK;
+			}else if(noteReady) {
+				MidiNote abMelNote = pendingNotes[pendingHead];
+				pendingNotes[pendingHead] = null;
+				pendingHead = (pendingHead + 1) % pendingNotes.length;
+				pendingCount--;
+
+				window.offer(abMelNote, getPressedNotes(noteEnd), chordTick != NO_TICK ? chordTick : null, chordScales);
+			}else {
+				break;
+			}
+		}
+
+		releaseHarmony();
+	}
+
+	/**
+	 * This method finds the best scales for the notes of the harmony pressed at the instant of a "NOTE_ON" event
+	 */
+	private void analyseChord(long tick) {
+		int chordMask = 0;
+		for(int i = 0; i < harmonySize; i++) {
+			if(isPressed(i, tick)) {
+				chordMask |= 1 << (harmonyKey[i] % 12);
+			}
+		}
+
+		chordTick = tick;
+		if(chordMask != 0) {
+			chordScales = scaleMaskTable.getBestScales(chordMask);
+		}
+	}
+
+	/**
+	 * This method returns the notes of the harmony pressed at an instant of time, in order of "NOTE_ON" event
+	 */
+	private List<MidiNote> getPressedNotes(long tick) {
+		List<MidiNote> pressedNotes = new ArrayList<MidiNote>();
+		for(int i = 0; i < harmonySize; i++) {
+			if(isPressed(i, tick)) {
+				pressedNotes.add(MidiTemporalSequenceEvent.createMidiNote(harmonyKey[i], harmonyVelocity[i], harmonyStart[i], harmonyEnd[i]));
+			}
+		}
+		return pressedNotes;
+	}
+
+	private boolean isPressed(int i, long tick) {
+		return harmonyStart[i] <= tick && (harmonyEnd[i] == NOT_RELEASED || harmonyEnd[i] >= tick);
+	}
+
+	/**
+	 * This method removes the notes of the harmony released before the instants still to be analysed
+	 */
+	private void releaseHarmony() {
+		int size = 0;
+		for(int i = 0; i < harmonySize; i++) {
+			if(harmonyEnd[i] == NOT_RELEASED || harmonyEnd[i] > watermark) {
+				harmonyStart[size] = harmonyStart[i];
+				harmonyEnd[size] = harmonyEnd[i];
+				harmonyKey[size] = harmonyKey[i];
+				harmonyChannel[size] = harmonyChannel[i];
+				harmonyVelocity[size] = harmonyVelocity[i];
+				size++;
+			}
+		}
+		harmonySize = size;
+	}
+
+	private void growHarmony(int capacity) {
+		harmonyStart = Arrays.copyOf(harmonyStart, capacity);
+		harmonyEnd = Arrays.copyOf(harmonyEnd, capacity);
+		harmonyKey = Arrays.copyOf(harmonyKey, capacity);
+		harmonyChannel = Arrays.copyOf(harmonyChannel, capacity);
+		harmonyVelocity = Arrays.copyOf(harmonyVelocity, capacity);
+	}
+
+	private static int getSlot(int channel, int midiKey) {
+		return (channel & (CHANNEL_COUNT - 1)) * KEY_COUNT + (midiKey & (KEY_COUNT - 1));
+	}
+
+}
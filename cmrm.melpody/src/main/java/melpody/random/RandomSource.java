@@ -0,0 +1,33 @@
+package melpody.random;
+
+/**
+ * 
+ * @author Giorgio De Luca
+ *
+ * Interface to define the source of the random values used by the selection process.
+ * 
+ * An instance is not shared among threads: each process uses its own source (see {@link #split()}),
+ * so the same seed always produces the same sequence of choices.
+ */
+public interface RandomSource {
+
+	/**
+	 * Returns a random value uniformly distributed in [0, 1)
+	 * @return the random value
+	 */
+	double nextDouble();
+	
+	/**
+	 * Returns a random value uniformly distributed in [0, bound)
+	 * @param bound the upper bound (exclusive), it must be positive
+	 * @return the random value
+	 */
+	int nextInt(int bound);
+	
+	/**
+	 * Returns a new independent source, derived from the current state of this source
+	 * @return the new source
+	 */
+	RandomSource split();
+	
+}
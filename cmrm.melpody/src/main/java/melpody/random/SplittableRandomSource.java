@@ -0,0 +1,72 @@
+package melpody.random;
+
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+/**
+ * 
+ * @author Giorgio De Luca
+ *
+ * Random source based on {@link SplittableRandom}: the generator has no locks and no shared state,
+ * it must be used by a single thread.
+ * 
+ * The seed of the process is read from the property SEED: when it is not defined a seed is generated once for the process
+ * (and logged by the callers), so a run can always be repeated.
+ */
+public final class SplittableRandomSource implements RandomSource {
+
+	public static final String SEED_PROPERTY = "SEED";
+	
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+	//Seed generated for the process when the property SEED is not defined
+	private static final long DEFAULT_SEED = new SplittableRandom().nextLong();
+	
+	private final SplittableRandom random;
+	
+	public SplittableRandomSource(long seed) {
+		this(new SplittableRandom(seed));
+	}
+	
+	private SplittableRandomSource(SplittableRandom random) {
+		this.random = random;
+	}
+	
+	/**
+	 * Use this method to retrieve the seed of the process
+	 * @param properties the properties of the process
+	 * @return the value of the property SEED, or the seed generated for the process if the property is not defined
+	 */
+	public static long getSeed(Properties properties) {
+		String seed = properties.getProperty(SEED_PROPERTY);
+		if(seed == null || seed.trim().isEmpty()) {
+			return DEFAULT_SEED;
+		}
+		return Long.parseLong(seed.trim());
+	}
+	
+	/**
+	 * Use this method to retrieve the seed of a specific job
+	 * @param seed the seed of the process
+	 * @param jobName the name of the job
+	 * @return the seed of the job
+	 */
+	public static long getJobSeed(long seed, String jobName) {
+		return seed ^ (jobName.hashCode() * GOLDEN_GAMMA);
+	}
+
+	@Override
+	public double nextDouble() {
+		return random.nextDouble();
+	}
+
+	@Override
+	public int nextInt(int bound) {
+		return random.nextInt(bound);
+	}
+
+	@Override
+	public RandomSource split() {
+		return new SplittableRandomSource(random.split());
+	}
+	
+}
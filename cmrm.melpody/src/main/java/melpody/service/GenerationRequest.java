@@ -0,0 +1,170 @@
+package melpody.service;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Request of a generation to the {@link GenerationService}: the bytes of the harmony file followed by the bytes of the melody
+ * abstraction file, and the options of the query string:
+ * - harmonyLength: number of bytes of the harmony file (required);
+ * - name: name of the generation, used by the log and by the seed (default "request");
+ * - seed: seed of the random choices, by default the seed of the process and the name as for a job of a batch;
+ * - preset: preset of the probabilities of the grades (default GRADE_PRESET), a preset not defined is an error of the request;
+ * - NOVELTY_THRESHOLD, MAX_BACKTRACKS, BEAM_WIDTH: values of the properties of the process for this request only (MAX_BACKTRACKS
+ *   an integer not negative, BEAM_WIDTH an integer from 1 to {@value #MAX_BEAM_WIDTH}).
+ *
+ * e.g. POST /generate?harmonyLength=1024&seed=42&preset=jazz
+ *
+ */
+public final class GenerationRequest {
+
+	public static final String DEFAULT_NAME = "request";
+	//Proprieta' che una richiesta puo' cambiare: le altre (file, directory) restano quelle del servizio
+	public static final List<String> OPTION_PROPERTIES = Collections.unmodifiableList(Arrays.asList("NOVELTY_THRESHOLD", "MAX_BACKTRACKS", "BEAM_WIDTH"));
+	//Larghezza massima del fascio di una richiesta: il costo della generazione cresce con la larghezza
+	public static final int MAX_BEAM_WIDTH = 32;
+
+	private final String name;
+	private final ByteBuffer harmonyBytes;
+	private final ByteBuffer melodyAbstractionBytes;
+	private final Long seed;
+	private final String gradePreset;
+	private final Properties options;
+
+	public GenerationRequest(String name, ByteBuffer harmonyBytes, ByteBuffer melodyAbstractionBytes, Long seed, String gradePreset, Properties options) {
+		this.name = name;
+		this.harmonyBytes = harmonyBytes;
+		this.melodyAbstractionBytes = melodyAbstractionBytes;
+		this.seed = seed;
+		this.gradePreset = gradePreset;
+		this.options = options;
+	}
+
+	/**
+	 * Use this method to read a request from the query string and the body of an HTTP request
+	 * @param query the raw query string, null if not present
+	 * @param body the bytes of the harmony file followed by the bytes of the melody abstraction file
+	 * @return the request
+	 * @throws IllegalArgumentException if an option is not valid or harmonyLength is missing
+	 */
+	public static GenerationRequest fromQuery(String query, byte[] body) {
+		String name = DEFAULT_NAME;
+		Long seed = null;
+		String gradePreset = null;
+		int harmonyLength = -1;
+		Properties options = new Properties();
+
+		if(query != null) {
+			for(String parameter : query.split("&")) {
+				int idx = parameter.indexOf('=');
+				String key = decode(idx >= 0 ? parameter.substring(0, idx) : parameter);
+				String value = idx >= 0 ? decode(parameter.substring(idx + 1)).trim() : "";
+
+				if("harmonyLength".equals(key)) {
+					harmonyLength = Integer.parseInt(value);
+				}else if("name".equals(key)) {
+					name = value.isEmpty() ? DEFAULT_NAME : value;
+				}else if("seed".equals(key)) {
+					seed = Long.parseLong(value);
+				}else if("preset".equals(key)) {
+					gradePreset = value.isEmpty() ? null : value;
+				}else if(OPTION_PROPERTIES.contains(key)) {
+					//Il valore viene controllato subito: un errore e' della richiesta, non della generazione
+					checkOption(key, value);
+					options.setProperty(key, value);
+				}else if(!key.isEmpty()) {
+					throw new IllegalArgumentException("Unknown option " + key);
+				}
+			}
+		}
+
+		if(harmonyLength <= 0 || harmonyLength >= body.length) {
+			throw new IllegalArgumentException("harmonyLength must be between 1 and the length of the body (" + body.length + " bytes) excluded: " + harmonyLength);
+		}
+
+		ByteBuffer harmonyBytes = ByteBuffer.wrap(body, 0, harmonyLength).slice();
+		ByteBuffer melodyAbstractionBytes = ByteBuffer.wrap(body, harmonyLength, body.length - harmonyLength).slice();
+		return new GenerationRequest(name, harmonyBytes, melodyAbstractionBytes, seed, gradePreset, options);
+	}
+
+	/**
+	 * This method checks the value of an option as it is read by the selection: NOVELTY_THRESHOLD is a number, MAX_BACKTRACKS
+	 * and BEAM_WIDTH are integers
+	 * @throws IllegalArgumentException if the value is not valid
+	 */
+	private static void checkOption(String key, String value) {
+		if("NOVELTY_THRESHOLD".equals(key)) {
+			Double.parseDouble(value);
+		}else if("MAX_BACKTRACKS".equals(key)) {
+			if(Integer.parseInt(value) < 0) {
+				throw new IllegalArgumentException("MAX_BACKTRACKS must not be negative: " + value);
+			}
+		}else if("BEAM_WIDTH".equals(key)) {
+			int beamWidth = Integer.parseInt(value);
+			if(beamWidth < 1 || beamWidth > MAX_BEAM_WIDTH) {
+				throw new IllegalArgumentException("BEAM_WIDTH must be between 1 and " + MAX_BEAM_WIDTH + ": " + value);
+			}
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		}catch(UnsupportedEncodingException e) {
+			//UTF-8 e' disponibile in ogni Java SE
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the properties of the process with the options of the request
+	 * @param properties the properties of the process
+	 * @return the same properties if the request has no options, a copy with the options otherwise
+	 */
+	public Properties getProperties(Properties properties) {
+		if(options.isEmpty()) {
+			return properties;
+		}
+		Properties requestProperties = new Properties();
+		requestProperties.putAll(properties);
+		requestProperties.putAll(options);
+		return requestProperties;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ByteBuffer getHarmonyBytes() {
+		return harmonyBytes;
+	}
+
+	public ByteBuffer getMelodyAbstractionBytes() {
+		return melodyAbstractionBytes;
+	}
+
+	/**
+	 * Returns the seed of the request
+	 * @return the seed, null to use the seed of the process and the name of the request
+	 */
+	public Long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the preset of the grades of the request
+	 * @return the name of the preset, null to use the preset defined by the property GRADE_PRESET
+	 */
+	public String getGradePreset() {
+		return gradePreset;
+	}
+
+}
@@ -0,0 +1,474 @@
+package melpody.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
+import converter.StandardMidiFileParser;
+import converter.StandardMidiFileWriter;
+import exception.MelpodySelectionProcessException;
+import melpody.MelpodyMain;
+import melpody.batch.GenerationJob;
+import melpody.live.LatencyHistogram;
+import melpody.metrics.Metrics;
+import melpody.metrics.Phase;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyAnalysisCache;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+import melpody.midi.track.MidiTrackFactory;
+import melpody.random.SplittableRandomSource;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Generation service: the process is initialized once (properties, scales, tables, presets) and the melodies are generated on request
+ * through a local HTTP endpoint (bound to the loopback address only), without files:
+ * - POST /generate: the body contains the bytes of the harmony file followed by the bytes of the melody abstraction file, the options
+ * are in the query string (see {@link GenerationRequest}). The response is the output Standard MIDI File (200), the error of the request
+ * (400), the error of the selection when the melody abstraction is not compatible with the harmony (422) or 503 when the queue is full;
+ * - GET /status: requests served and rejected, distribution of the latency and metrics of the process (JSON).
+ *
+ * e.g. curl --data-binary @<(cat harmony.mid abstract_melody.mid) "http://localhost:8765/generate?harmonyLength=$(stat -c%s harmony.mid)" -o out.mid
+ *
+ * Each request is received and answered by its own thread, a virtual thread by default (SERVICE_EXECUTOR=VIRTUAL, PLATFORM for a
+ * platform thread): a thread waiting for the network does not hold a core. The generations (parse, analysis, selection) run on a
+ * {@link ForkJoinPool} of SERVICE_THREADS threads (default the number of processors), at most SERVICE_QUEUE requests (default 64)
+ * wait for a thread of the pool: the following requests are rejected at once. Each request uses only its own objects (tracks, selector,
+ * random source), the harmony analysis of a repeated harmony is read from the cache, if active.
+ * Before accepting the requests the service generates the default files SERVICE_WARMUP times (default 200), so the first requests
+ * are served by compiled code.
+ *
+ */
+public final class GenerationService {
+
+	private static Logger log = Logger.getLogger(MelpodyMain.MELPODY_LOGNAME);
+
+	public static final String PORT_PROPERTY = "SERVICE_PORT";
+	public static final String THREADS_PROPERTY = "SERVICE_THREADS";
+	public static final String QUEUE_PROPERTY = "SERVICE_QUEUE";
+	public static final String WARMUP_PROPERTY = "SERVICE_WARMUP";
+	public static final String EXECUTOR_PROPERTY = "SERVICE_EXECUTOR";
+	public static final String GENERATE_PATH = "/generate";
+	public static final String STATUS_PATH = "/status";
+
+	public static final int DEFAULT_PORT = 8765;
+	private static final int DEFAULT_QUEUE = 64;
+	private static final int DEFAULT_WARMUP = 200;
+	//Dimensione massima del corpo di una richiesta (armonia e astrazione)
+	private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+	private static final String MIDI_CONTENT_TYPE = "audio/midi";
+	//Intestazione e corpo della risposta sono scritti separatamente: senza TCP_NODELAY il secondo pacchetto attende l'ACK ritardato del client (~40 ms)
+	private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+	private final Properties properties;
+	private final ModalScaleInitProcess modalScaleSelector;
+	private final ScaleTypeInitProcess scaleTypeSelector;
+	private final int threads;
+	private final int queueCapacity;
+
+	private final RequestExecutor requestExecutor;
+
+	//Richieste accettate (in esecuzione o in attesa di un thread del pool)
+	private final Semaphore admitted;
+	private final ForkJoinPool generationPool;
+
+	//Output writer of each thread of the pool, reused by the following requests
+	private final ThreadLocal<StandardMidiFileWriter> outputWriter = ThreadLocal.withInitial(StandardMidiFileWriter::new);
+
+	private final AtomicLong servedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public GenerationService(Properties properties, ModalScaleInitProcess modalScaleSelector, ScaleTypeInitProcess scaleTypeSelector) {
+		this.properties = properties;
+		this.modalScaleSelector = modalScaleSelector;
+		this.scaleTypeSelector = scaleTypeSelector;
+		this.threads = Math.max(1, Integer.parseInt(properties.getProperty(THREADS_PROPERTY, String.valueOf(Runtime.getRuntime().availableProcessors())).trim()));
+		this.queueCapacity = Math.max(0, Integer.parseInt(properties.getProperty(QUEUE_PROPERTY, String.valueOf(DEFAULT_QUEUE)).trim()));
+		this.requestExecutor = RequestExecutor.valueOf(properties.getProperty(EXECUTOR_PROPERTY, RequestExecutor.VIRTUAL.name()).trim());
+		this.admitted = new Semaphore(threads + queueCapacity);
+		this.generationPool = new ForkJoinPool(threads, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("melpody-generation-" + thread.getPoolIndex());
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * Threads that receive and answer the requests
+	 */
+	public enum RequestExecutor {
+		//Un thread virtuale per richiesta: l'attesa della rete o del pool non occupa un thread della piattaforma
+		VIRTUAL,
+		//Un thread della piattaforma per richiesta, riusato dalle richieste successive
+		PLATFORM;
+
+		/**
+		 * Use this method to create the executor of the requests
+		 * @param name the prefix of the names of the threads
+		 * @return the executor, a new thread for each request
+		 */
+		public ExecutorService create(String name) {
+			if(this == VIRTUAL) {
+				return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name, 1).factory());
+			}
+			return Executors.newCachedThreadPool(Thread.ofPlatform().name(name, 1).daemon(true).factory());
+		}
+	}
+
+	/**
+	 * Returns the port of the service
+	 * @param properties the properties of the process
+	 * @return the value of the property SERVICE_PORT, {@value #DEFAULT_PORT} if not defined
+	 */
+	public static int getPort(Properties properties) {
+		return Integer.parseInt(properties.getProperty(PORT_PROPERTY, String.valueOf(DEFAULT_PORT)).trim());
+	}
+
+	/**
+	 * Use this method to generate a melody on the pool of the generations, waiting for the result: the calling thread (e.g. the
+	 * virtual thread of a request) does not use a core while it waits
+	 * @param request the request
+	 * @return the bytes of the output Standard MIDI File
+	 * @throws MelpodySelectionProcessException if the melody abstraction is not compatible with the harmony
+	 * @throws InvalidMidiDataException if the bytes of a file are not a valid Standard MIDI File
+	 * @throws IOException
+	 * @throws InterruptedException if the calling thread is interrupted, the generation is cancelled
+	 */
+	public byte[] submit(GenerationRequest request) throws MelpodySelectionProcessException, InvalidMidiDataException, IOException, InterruptedException {
+		//ForkJoinPool.submit(Callable) avvolge le eccezioni controllate in RuntimeException: la FutureTask conserva l'eccezione originale
+		FutureTask<byte[]> result = new FutureTask<byte[]>(() -> generate(request));
+		generationPool.execute(result);
+		try {
+			return result.get();
+		}catch(InterruptedException e) {
+			result.cancel(false);
+			throw e;
+		}catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof MelpodySelectionProcessException) {
+				throw (MelpodySelectionProcessException) cause;
+			}else if(cause instanceof InvalidMidiDataException) {
+				throw (InvalidMidiDataException) cause;
+			}else if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Use this method to generate a melody in the calling thread
+	 * @param request the request
+	 * @return the bytes of the output Standard MIDI File
+	 * @throws MelpodySelectionProcessException if the melody abstraction is not compatible with the harmony
+	 * @throws InvalidMidiDataException if the bytes of a file are not a valid Standard MIDI File
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the preset of the request is not defined
+	 */
+	public byte[] generate(GenerationRequest request) throws MelpodySelectionProcessException, InvalidMidiDataException, IOException {
+		Properties requestProperties = request.getProperties(properties);
+
+		HarmonyMidiTrack harmonySeq = HarmonyAnalysisCache.loadHarmony(request.getHarmonyBytes(), modalScaleSelector, scaleTypeSelector);
+		MelodyAbstraction melodyAbstraction = (MelodyAbstraction) MidiTrackFactory.getCorrectType(MelodyAbstraction.class);
+		Metrics.Timer parseTimer = Metrics.start(Phase.PARSE);
+		try {
+			StandardMidiFileParser.parse(request.getMelodyAbstractionBytes(), melodyAbstraction);
+		}finally {
+			parseTimer.close();
+		}
+
+		//Un preset richiesto esplicitamente deve esistere: la richiesta non viene servita con il preset di default
+		GradeModel gradeModel = request.getGradePreset() != null ? GradeModelRegistry.getDefinedModel(request.getGradePreset()) : GradeModelRegistry.getModel(requestProperties);
+		long seed = request.getSeed() != null ? request.getSeed() : SplittableRandomSource.getJobSeed(SplittableRandomSource.getSeed(requestProperties), request.getName());
+
+		//Il servizio restituisce solo la melodia migliore
+		StandardMidiFileWriter writer = outputWriter.get();
+		GenerationJob.createMelodies(request.getName(), seed, harmonySeq, melodyAbstraction, gradeModel, requestProperties,
+				modalScaleSelector, scaleTypeSelector, Collections.singletonList(writer));
+
+		Metrics.Timer writeTimer = Metrics.start(Phase.WRITE);
+		try {
+			return writer.toByteArray();
+		}finally {
+			writeTimer.close();
+		}
+	}
+
+	/**
+	 * Use this method to generate the same files many times before the service accepts requests, so the code is compiled.
+	 * The latency of the warm up is discarded (the metrics of the process include it, they can be reset through JMX)
+	 * @param harmonyFile the harmony file
+	 * @param melodyAbstractionFile the melody abstraction file
+	 * @param repetitions the number of generations
+	 */
+	public void warmUp(File harmonyFile, File melodyAbstractionFile, int repetitions) {
+		if(repetitions <= 0 || !harmonyFile.isFile() || !melodyAbstractionFile.isFile()) {
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		try {
+			byte[] harmony = Files.readAllBytes(harmonyFile.toPath());
+			byte[] melodyAbstraction = Files.readAllBytes(melodyAbstractionFile.toPath());
+			byte[] body = new byte[harmony.length + melodyAbstraction.length];
+			System.arraycopy(harmony, 0, body, 0, harmony.length);
+			System.arraycopy(melodyAbstraction, 0, body, harmony.length, melodyAbstraction.length);
+
+			//Il log delle generazioni di prova non serve
+			Level level = log.getLevel();
+			log.setLevel(Level.WARNING);
+			try {
+				for(int i = 0; i < repetitions; i++) {
+					generate(GenerationRequest.fromQuery("harmonyLength=" + harmony.length + "&name=warmup" + i, body));
+				}
+			}finally {
+				log.setLevel(level);
+			}
+		}catch(Exception e) {
+			log.warning("Warm up not completed: " + e);
+		}
+
+		latency.reset();
+		log.info("Warm up: " + repetitions + " generations in " + (System.nanoTime() - startTime) / 1000000L + " ms");
+	}
+
+	/**
+	 * Use this method to start the service
+	 * @param port the port of the loopback address, 0 for any free port
+	 * @throws IOException if the port cannot be used
+	 */
+	public synchronized void start(int port) throws IOException {
+		if(System.getProperty(NODELAY_PROPERTY) == null) {
+			System.setProperty(NODELAY_PROPERTY, "true");
+		}
+		
+		//Le richieste oltre la coda vengono rifiutate dal semaforo, non dall'executor: un thread le rifiuta subito
+		executor = requestExecutor.create("melpody-service-");
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads + queueCapacity);
+		server.createContext(GENERATE_PATH, this::handleGenerate);
+		server.createContext(STATUS_PATH, this::handleStatus);
+		server.setExecutor(executor);
+		server.start();
+		log.info("Generation service on http://" + server.getAddress().getHostString() + ":" + getLocalPort() + GENERATE_PATH
+				+ ", " + requestExecutor + " request threads, " + threads + " generation threads, queue " + queueCapacity);
+	}
+
+	/**
+	 * Use this method to stop the service: the requests in progress are completed (at most 5 seconds)
+	 */
+	public synchronized void stop() {
+		if(server != null) {
+			server.stop(5);
+			executor.shutdown();
+			server = null;
+			log.info("Generation service stopped: " + getStatus());
+		}
+		generationPool.shutdown();
+		stopped.countDown();
+	}
+
+	/**
+	 * Use this method to wait the end of the service
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		stopped.await();
+	}
+
+	/**
+	 * Returns the port of the service
+	 * @return the port, -1 if the service is not started
+	 */
+	public synchronized int getLocalPort() {
+		return server != null ? server.getAddress().getPort() : -1;
+	}
+
+	private void handleGenerate(HttpExchange exchange) throws IOException {
+		try {
+			if(!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+				sendText(exchange, 405, "POST required");
+				return;
+			}
+			if(!admitted.tryAcquire()) {
+				rejectedCount.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendText(exchange, 503, "Queue full");
+				return;
+			}
+
+			try {
+				byte[] body = readBody(exchange);
+				if(body == null) {
+					sendText(exchange, 413, "Request larger than " + MAX_BODY_BYTES + " bytes");
+					return;
+				}
+				GenerationRequest request = GenerationRequest.fromQuery(exchange.getRequestURI().getRawQuery(), body);
+
+				long startTime = System.nanoTime();
+				byte[] midi = submit(request);
+				latency.record(System.nanoTime() - startTime);
+				servedCount.incrementAndGet();
+
+				exchange.getResponseHeaders().set("Content-Type", MIDI_CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, midi.length);
+				try(OutputStream os = exchange.getResponseBody()) {
+					os.write(midi);
+				}
+			}finally {
+				admitted.release();
+			}
+		}catch(IllegalArgumentException | InvalidMidiDataException e) {
+			failedCount.incrementAndGet();
+			sendText(exchange, 400, e.getMessage());
+		}catch(MelpodySelectionProcessException e) {
+			failedCount.incrementAndGet();
+			sendText(exchange, 422, e.getMessage());
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			sendText(exchange, 503, "Service stopped");
+		}catch(IOException e) {
+			//La connessione e' stata chiusa dal client: non c'e' nessuno a cui rispondere
+			log.fine(() -> "Generation request not completed: " + e.getMessage());
+		}catch(RuntimeException e) {
+			failedCount.incrementAndGet();
+			log.log(Level.SEVERE, "Generation request failed", e);
+			sendText(exchange, 500, String.valueOf(e));
+		}finally {
+			exchange.close();
+		}
+	}
+
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		try {
+			byte[] json = getStatus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, json.length);
+			try(OutputStream os = exchange.getResponseBody()) {
+				os.write(json);
+			}
+		}finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Returns the state of the service in JSON: requests served, failed and rejected, requests in progress, latency of the
+	 * generations and, if active, the metrics of the process
+	 */
+	public String getStatus() {
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"served\":").append(servedCount.get())
+			.append(",\"failed\":").append(failedCount.get())
+			.append(",\"rejected\":").append(rejectedCount.get())
+			.append(",\"inProgress\":").append(threads + queueCapacity - admitted.availablePermits())
+			.append(",\"latencyMicros\":{\"p50\":").append(latency.getPercentile(50D) / 1000L)
+			.append(",\"p99\":").append(latency.getPercentile(99D) / 1000L)
+			.append(",\"max\":").append(latency.getMax() / 1000L).append('}');
+		if(Metrics.isEnabled()) {
+			json.append(",\"metrics\":").append(Metrics.toJson());
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * This method reads the body of the request
+	 * @return the bytes, null if the body is larger than {@value #MAX_BODY_BYTES} bytes
+	 */
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+		int expected = contentLength != null ? Integer.parseInt(contentLength.trim()) : 8192;
+		if(expected > MAX_BODY_BYTES) {
+			return null;
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(expected, 0));
+		byte[] buffer = new byte[8192];
+		try(InputStream is = exchange.getRequestBody()) {
+			int read;
+			while((read = is.read(buffer)) >= 0) {
+				body.write(buffer, 0, read);
+				if(body.size() > MAX_BODY_BYTES) {
+					return null;
+				}
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) {
+		try {
+			byte[] bytes = String.valueOf(text).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			try(OutputStream os = exchange.getResponseBody()) {
+				os.write(bytes);
+			}
+		}catch(IOException e) {
+			log.fine(() -> "Response " + status + " not sent: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Use this method to run the service until the process is stopped: the service is stopped and the metrics are written
+	 * by the shutdown of the process (e.g. Ctrl+C)
+	 * @param port the port of the loopback address
+	 * @param harmonyFile the harmony file of the warm up
+	 * @param melodyAbstractionFile the melody abstraction file of the warm up
+	 * @throws IOException if the port cannot be used
+	 * @throws InterruptedException
+	 */
+	public void run(int port, File harmonyFile, File melodyAbstractionFile) throws IOException, InterruptedException {
+		warmUp(harmonyFile, melodyAbstractionFile, Integer.parseInt(properties.getProperty(WARMUP_PROPERTY, String.valueOf(DEFAULT_WARMUP)).trim()));
+		start(port);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stop();
+			Metrics.writeReport();
+		}, "melpody-service-shutdown"));
+		awaitTermination();
+		//Attesa del completamento delle risposte in corso
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+}
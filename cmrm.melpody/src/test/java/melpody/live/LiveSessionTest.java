@@ -0,0 +1,133 @@
+package melpody.live;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import classifier.GradeModelRegistry;
+import classifier.NoteRank;
+import converter.MidiInputOutputConverter;
+import converter.StandardMidiFileWriter;
+import junit.framework.TestCase;
+import melpody.MelpodyMain;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.util.MidiTemporalSequenceEvent;
+import melpody.midi.util.RealTimeNoteSelector;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Test of the latency of {@link RealTimeNoteSelector} without midi devices: the notes of a melody abstraction are sent to the
+ * selector as by a keyboard and the output notes are received by a {@link LoopbackReceiver}, as in {@link LiveSession#selfTest(File, File, int)}.
+ * The harmony is a C major chord, written in a temporary file with the default properties of the program.
+ *
+ */
+public class LiveSessionTest extends TestCase {
+
+	private static final int[] MELODY_KEYS = {60, 62, 64, 65, 67, 65, 64, 62, 60, 64, 67, 72, 67, 64, 62, 60};
+	private static final int[] CHORD_KEYS = {48, 52, 55};
+	private static final int WARM_UP_REPETITIONS = 200;
+	private static final int REPETITIONS = 20;
+	//Intervallo tra due note: la selezione di una nota non deve attendere la precedente
+	private static final long NOTE_NANOS = 5000000L;
+	private static final long TIMEOUT_NANOS = 100000000L;
+
+	private Properties properties;
+	private ModalScaleInitProcess modalScaleSelector;
+	private ScaleTypeInitProcess scaleTypeSelector;
+	private File harmonyFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		properties = new Properties();
+		try(InputStream is = new FileInputStream("src/resources/melpody.properties")) {
+			properties.load(is);
+		}
+		Logger.getLogger(MelpodyMain.MELPODY_LOGNAME).setLevel(Level.OFF);
+
+		modalScaleSelector = new ModalScaleInitProcess();
+		scaleTypeSelector = new ScaleTypeInitProcess();
+		modalScaleSelector.collectActiveModalScale(properties);
+		scaleTypeSelector.collectActiveTypesOfScale(properties);
+		MidiInputOutputConverter.initialize();
+		NoteRank.initialize();
+		GradeModelRegistry.initialize(properties);
+
+		harmonyFile = File.createTempFile("harmony", ".mid");
+		writeHarmony(harmonyFile);
+	}
+
+	@Override
+	protected void tearDown() {
+		harmonyFile.delete();
+	}
+
+	public void testLatencyBelowMaxP99() throws Exception {
+		String parser = properties.getProperty(MidiInputOutputConverter.MIDI_PARSER_PROPERTY, MidiInputOutputConverter.MAPPED_PARSER);
+		HarmonyMidiTrack harmony = (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi(harmonyFile.getPath(), HarmonyMidiTrack.class, parser);
+
+		RealTimeNoteSelector selector = new RealTimeNoteSelector(properties, harmony, GradeModelRegistry.getModel(properties), modalScaleSelector, scaleTypeSelector);
+		LoopbackReceiver loopback = new LoopbackReceiver();
+		selector.setReceiver(loopback);
+		Receiver input = selector.getInputReceiver();
+		selector.start();
+
+		try {
+			//Riscaldamento: ogni nota viene inviata quando la precedente e' stata selezionata
+			for(int i = 0; i < WARM_UP_REPETITIONS; i++) {
+				for(int key : MELODY_KEYS) {
+					long selectedCount = selector.getLatency().getCount();
+					input.send(new ShortMessage(ShortMessage.NOTE_ON, 0, key, 100), -1L);
+					long timeout = System.nanoTime() + TIMEOUT_NANOS;
+					while(selector.getLatency().getCount() == selectedCount && System.nanoTime() < timeout) {
+						Thread.yield();
+					}
+					input.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, key, 0), -1L);
+				}
+			}
+			selector.getLatency().reset();
+
+			for(int i = 0; i < REPETITIONS; i++) {
+				for(int key : MELODY_KEYS) {
+					input.send(new ShortMessage(ShortMessage.NOTE_ON, 0, key, 100), -1L);
+					LockSupport.parkNanos(NOTE_NANOS);
+					input.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, key, 0), -1L);
+				}
+			}
+			LockSupport.parkNanos(TIMEOUT_NANOS);
+		}finally {
+			selector.close();
+		}
+
+		LatencyHistogram latency = selector.getLatency();
+		assertEquals(REPETITIONS * MELODY_KEYS.length, latency.getCount());
+		assertTrue("No notes received by the loopback", loopback.getNoteOnCount() > 0);
+		assertTrue("p99 latency " + latency.getPercentile(99D) + " ns, " + latency, latency.getPercentile(99D) < LiveSession.MAX_P99_NANOS);
+	}
+
+	/**
+	 * This method writes a C major chord held for the whole test
+	 */
+	private static void writeHarmony(File file) throws InvalidMidiDataException, IOException {
+		long endTick = (long) StandardMidiFileWriter.RESOLUTION * 4;
+		StandardMidiFileWriter writer = new StandardMidiFileWriter();
+		writer.begin(endTick);
+		for(int key : CHORD_KEYS) {
+			writer.writeNote(MidiTemporalSequenceEvent.createMidiNote(key, 100, 0L, endTick), 0L, endTick);
+		}
+		writer.writeTo(file);
+	}
+
+}
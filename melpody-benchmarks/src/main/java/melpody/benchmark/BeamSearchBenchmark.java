@@ -0,0 +1,109 @@
+package melpody.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
+import converter.MidiInputOutputConverter;
+import converter.StandardMidiFileWriter;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+import melpody.midi.util.BeamSearchNoteSelector;
+import melpody.midi.util.SelectionResult;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Benchmark of the beam search, {@link BeamSearchNoteSelector#createOutputTracks(MelodyAbstraction, HarmonyMidiTrack, List, ModalScaleInitProcess, ScaleTypeInitProcess)},
+ * on the synthetic files of 10000 notes, with a melody for each group of the beam (BEAM_RESULTS equal to the width, at most 4).
+ * As {@link SelectionBenchmark} the files are parsed and the harmony is analysed once, before the measures.
+ *
+ * The partial melodies of all the groups are extended in parallel in the common pool: the speedup of the width 8 depends on
+ * the processors. On JDK 21 with a single processor (java -jar benchmarks.jar BeamSearchBenchmark -prof gc) the extensions
+ * run in the calling thread and the cost grows with the number of partial melodies:
+ *
+ * <pre>
+ * beamWidth 1   ~120 ms/op   ~120 MB/op
+ * beamWidth 8   ~800 ms/op   ~880 MB/op
+ * </pre>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BeamSearchBenchmark {
+
+	private static final int NOTE_COUNT = 10000;
+	private static final int MAX_RESULTS = 4;
+
+	@Param({"1", "8"})
+	public int beamWidth;
+
+	private Properties properties;
+	private ModalScaleInitProcess modalScaleSelector;
+	private ScaleTypeInitProcess scaleTypeSelector;
+	private GradeModel gradeModel;
+	private HarmonyMidiTrack harmony;
+	private MelodyAbstraction melodyAbstraction;
+	private final List<StandardMidiFileWriter> writers = new ArrayList<StandardMidiFileWriter>();
+
+	@Setup
+	public void setup() throws IOException, InvalidMidiDataException {
+		BenchmarkInput input = BenchmarkInput.create();
+		properties = input.getProperties();
+		modalScaleSelector = input.getModalScaleSelector();
+		scaleTypeSelector = input.getScaleTypeSelector();
+		gradeModel = GradeModelRegistry.getModel(properties);
+
+		harmony = (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi(BenchmarkInput.getHarmonyFile(NOTE_COUNT).getPath(), HarmonyMidiTrack.class, input.getParser());
+		melodyAbstraction = (MelodyAbstraction) MidiInputOutputConverter.mapMidi(BenchmarkInput.getMelodyAbstractionFile(NOTE_COUNT).getPath(), MelodyAbstraction.class, input.getParser());
+		harmony.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector);
+
+		while(writers.size() < Math.min(beamWidth, MAX_RESULTS)) {
+			writers.add(new StandardMidiFileWriter());
+		}
+
+		SelectionResult result = createOutputTracks();
+		if(!result.isSatisfied()) {
+			throw new IllegalStateException("Synthetic input not compatible: " + result);
+		}
+	}
+
+	@Benchmark
+	public SelectionResult createOutputTracks() throws InvalidMidiDataException {
+		BeamSearchNoteSelector selector = new BeamSearchNoteSelector(properties, beamWidth, gradeModel);
+		for(StandardMidiFileWriter writer : writers) {
+			writer.begin(melodyAbstraction.getEndOfTrack());
+		}
+		SelectionResult result = selector.createOutputTracks(melodyAbstraction, harmony, writers, modalScaleSelector, scaleTypeSelector);
+		for(StandardMidiFileWriter writer : writers) {
+			writer.close();
+		}
+		return result;
+	}
+
+}
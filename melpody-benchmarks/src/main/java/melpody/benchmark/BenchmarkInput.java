@@ -0,0 +1,119 @@
+package melpody.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import classifier.GradeModelRegistry;
+import classifier.NoteRank;
+import converter.MidiInputOutputConverter;
+import melpody.MelpodyMain;
+import melpody.benchmark.corpus.CorpusGenerator;
+import melpody.benchmark.corpus.CorpusShape;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Inputs shared by the benchmarks: the default properties of the program, the active scales and the synthetic files
+ * of each size (default shape of the {@link CorpusGenerator}).
+ *
+ * The files are written once in the directory defined by the system property melpody.benchmark.dir (the temporary
+ * directory by default) and reused by the following runs, so the results of different commits use the same input.
+ *
+ */
+public final class BenchmarkInput {
+
+	public static final long SEED = 42L;
+	public static final String DIRECTORY_PROPERTY = "melpody.benchmark.dir";
+
+	private final Properties properties = new Properties();
+	private final ModalScaleInitProcess modalScaleSelector = new ModalScaleInitProcess();
+	private final ScaleTypeInitProcess scaleTypeSelector = new ScaleTypeInitProcess();
+
+	private BenchmarkInput() throws IOException {
+		try(InputStream is = BenchmarkInput.class.getResourceAsStream("/melpody.properties")) {
+			if(is == null) {
+				throw new IOException("melpody.properties not found in the classpath");
+			}
+			properties.load(is);
+		}
+		properties.setProperty("SEED", String.valueOf(SEED));
+		//Il numero di revisioni vale per tutta la melodia: le melodie di un milione di note ne richiedono piu' del default
+		properties.setProperty("MAX_BACKTRACKS", String.valueOf(Integer.MAX_VALUE));
+
+		//Il log non deve pesare sulle misure
+		Logger.getLogger(MelpodyMain.MELPODY_LOGNAME).setLevel(Level.OFF);
+
+		modalScaleSelector.collectActiveModalScale(properties);
+		scaleTypeSelector.collectActiveTypesOfScale(properties);
+		MidiInputOutputConverter.initialize();
+		NoteRank.initialize();
+		GradeModelRegistry.initialize(properties);
+	}
+
+	/**
+	 * Use this method to initialize the program as the main class does, without the log
+	 * @return the inputs
+	 * @throws IOException if the default properties cannot be read
+	 */
+	public static BenchmarkInput create() throws IOException {
+		return new BenchmarkInput();
+	}
+
+	public Properties getProperties() {
+		return properties;
+	}
+
+	public ModalScaleInitProcess getModalScaleSelector() {
+		return modalScaleSelector;
+	}
+
+	public ScaleTypeInitProcess getScaleTypeSelector() {
+		return scaleTypeSelector;
+	}
+
+	public String getParser() {
+		return properties.getProperty(MidiInputOutputConverter.MIDI_PARSER_PROPERTY, MidiInputOutputConverter.MAPPED_PARSER);
+	}
+
+	/**
+	 * Returns the harmony file of a size, written if not already present
+	 * @param noteCount the number of notes of the melody abstraction
+	 * @return the harmony file
+	 */
+	public static File getHarmonyFile(int noteCount) throws IOException, InvalidMidiDataException {
+		return getFiles(noteCount)[0];
+	}
+
+	/**
+	 * Returns the melody abstraction file of a size, written if not already present
+	 * @param noteCount the number of notes of the melody abstraction
+	 * @return the melody abstraction file
+	 */
+	public static File getMelodyAbstractionFile(int noteCount) throws IOException, InvalidMidiDataException {
+		return getFiles(noteCount)[1];
+	}
+
+	private static synchronized File[] getFiles(int noteCount) throws IOException, InvalidMidiDataException {
+		File directory = new File(System.getProperty(DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir")), "melpody-benchmarks/" + SEED + "-" + noteCount);
+		File harmonyFile = new File(directory, "harmony.mid");
+		File melodyAbstractionFile = new File(directory, "abstract_melody.mid");
+
+		if(!harmonyFile.isFile() || !melodyAbstractionFile.isFile()) {
+			if(!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create the directory " + directory);
+			}
+			new CorpusGenerator().write(CorpusShape.ofNotes(directory.getName(), noteCount), SEED, harmonyFile, melodyAbstractionFile);
+		}
+		return new File[] {harmonyFile, melodyAbstractionFile};
+	}
+
+}
@@ -0,0 +1,48 @@
+package melpody.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Main class of the benchmarks: it accepts the arguments of the JMH command line (e.g. a regular expression of the benchmarks,
+ * "-p noteCount=100,10000") and by default it writes the results in {@value #DEFAULT_RESULT_FILE} as JSON, with the allocation
+ * rate measured by the GC profiler, so the files of different commits can be compared.
+ *
+ * java -jar melpody-benchmarks/target/benchmarks.jar [JMH options]
+ *
+ */
+public final class BenchmarkMain {
+
+	public static final String DEFAULT_RESULT_FILE = "melpody-benchmarks.json";
+
+	private BenchmarkMain() {}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if(commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if(!commandLine.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if(!commandLine.getResult().hasValue()) {
+			options.result(DEFAULT_RESULT_FILE);
+		}
+		if(commandLine.getProfilers().isEmpty()) {
+			options.addProfiler(GCProfiler.class);
+		}
+
+		new Runner(options.build()).run();
+	}
+
+}
@@ -0,0 +1,106 @@
+package melpody.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import converter.MidiInputOutputConverter;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleMaskTable;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyMidiTrack;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Benchmark of the analysis of the harmony: {@link HarmonyMidiTrack#getScalesMap(ModalScaleInitProcess, ScaleTypeInitProcess)},
+ * the search of the best scales of each chord and {@link HarmonyMidiTrack#getPressedNoteAtTick(Long)} for each event of the harmony.
+ *
+ * HarmonyMidiTrack.findBestChord only reads the table of the scale masks: the benchmark findBestChord measures the table as used by
+ * the analysis, findBestScales the computation without the results already stored in the table.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HarmonyAnalysisBenchmark {
+
+	@Param({"100", "10000", "1000000"})
+	public int noteCount;
+
+	private HarmonyMidiTrack harmony;
+	private ModalScaleInitProcess modalScaleSelector;
+	private ScaleTypeInitProcess scaleTypeSelector;
+	private ScaleMaskTable scaleMaskTable;
+	private long[] eventTicks;
+	private int[] chordMasks;
+	private int[] bestScaleIndexes;
+
+	@Setup
+	public void setup() throws IOException, InvalidMidiDataException {
+		BenchmarkInput input = BenchmarkInput.create();
+		modalScaleSelector = input.getModalScaleSelector();
+		scaleTypeSelector = input.getScaleTypeSelector();
+		harmony = (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi(BenchmarkInput.getHarmonyFile(noteCount).getPath(), HarmonyMidiTrack.class, input.getParser());
+
+		scaleMaskTable = ScaleMaskTable.getInstance(modalScaleSelector, scaleTypeSelector);
+		bestScaleIndexes = new int[scaleMaskTable.size()];
+
+		eventTicks = new long[harmony.getEventTimeList().size()];
+		chordMasks = new int[eventTicks.length];
+		int i = 0;
+		for(Long tick : harmony.getEventTimeList()) {
+			eventTicks[i] = tick;
+			chordMasks[i] = harmony.getPressedPitchClassMaskAtTick(tick);
+			i++;
+		}
+	}
+
+	@Benchmark
+	public Map<Long, List<PossibleScale>> getScalesMap() {
+		return harmony.getScalesMap(modalScaleSelector, scaleTypeSelector);
+	}
+
+	@Benchmark
+	public void findBestChord(Blackhole blackhole) {
+		for(int i = 0; i < chordMasks.length; i++) {
+			blackhole.consume(scaleMaskTable.getBestScales(chordMasks[i]));
+		}
+	}
+
+	@Benchmark
+	public void findBestScales(Blackhole blackhole) {
+		for(int i = 0; i < chordMasks.length; i++) {
+			blackhole.consume(scaleMaskTable.findBestScales(chordMasks[i], bestScaleIndexes));
+		}
+	}
+
+	@Benchmark
+	public void getPressedNoteAtTick(Blackhole blackhole) {
+		for(int i = 0; i < eventTicks.length; i++) {
+			blackhole.consume(harmony.getPressedNoteAtTick(eventTicks[i]));
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package melpody.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
+import classifier.NoteRank;
+import exception.MelpodySelectionProcessException;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.note.MidiNote;
+import melpody.midi.note.Note;
+import melpody.midi.note.NoteLength;
+import melpody.midi.scale.ScaleMaskTable;
+import melpody.midi.util.MidiTemporalSequenceEvent;
+import melpody.random.RandomSource;
+import melpody.random.SplittableRandomSource;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Benchmark of a single call of {@link NoteRank#getNoteFromParameterAndRanking(GradeModel, NoteLength, boolean, int, List, PossibleScale, RandomSource)}.
+ *
+ * The calls cycle over {@value #CASE_COUNT} cases built from the active scales: random root offset, length of the note, novelty
+ * and from 1 to 8 candidate notes, also outside the scale. Only the cases with a ranked grade are kept, as the selector checks
+ * {@link NoteRank#hasRankedGrade(GradeModel, int, List, PossibleScale)} before the call.
+ *
+ * The baseline benchmark runs the same cases on {@link BaselineNoteRank}, the selection before the tables of the grades.
+ * On JDK 21 (java -jar benchmarks.jar NoteRankBenchmark -prof gc), one note costs:
+ *
+ * <pre>
+ * baselineGetNoteFromParameterAndRanking   ~700 ns/op   ~540 B/op
+ * getNoteFromParameterAndRanking           ~140 ns/op     ~0 B/op
+ * </pre>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class NoteRankBenchmark {
+
+	private static final int CASE_COUNT = 1024;
+	private static final int MAX_CANDIDATES = 8;
+	private static final double NOVELTY_RATIO = 0.25D;
+
+	private GradeModel gradeModel;
+	private RandomSource random;
+	private final PossibleScale[] scales = new PossibleScale[CASE_COUNT];
+	private final int[] indexOffsets = new int[CASE_COUNT];
+	private final NoteLength[] noteLengths = new NoteLength[CASE_COUNT];
+	private final boolean[] novelties = new boolean[CASE_COUNT];
+	@SuppressWarnings("unchecked")
+	private final List<MidiNote>[] candidates = new List[CASE_COUNT];
+	@SuppressWarnings("unchecked")
+	private final List<MidiNote>[] scaleNotes = new List[CASE_COUNT];
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		BenchmarkInput input = BenchmarkInput.create();
+		gradeModel = GradeModelRegistry.getModel(input.getProperties());
+		random = new SplittableRandomSource(BenchmarkInput.SEED);
+
+		ScaleMaskTable scaleMaskTable = ScaleMaskTable.getInstance(input.getModalScaleSelector(), input.getScaleTypeSelector());
+		SplittableRandom caseRandom = new SplittableRandom(BenchmarkInput.SEED);
+		for(int i = 0; i < CASE_COUNT;) {
+			scales[i] = scaleMaskTable.getPossibleScale(caseRandom.nextInt(scaleMaskTable.size()));
+			indexOffsets[i] = caseRandom.nextInt(scales[i].size());
+			noteLengths[i] = NoteLength.values()[caseRandom.nextInt(NoteLength.values().length)];
+			novelties[i] = caseRandom.nextDouble() < NOVELTY_RATIO;
+
+			int candidateCount = 1 + caseRandom.nextInt(MAX_CANDIDATES);
+			candidates[i] = new ArrayList<MidiNote>(candidateCount);
+			for(int c = 0; c < candidateCount; c++) {
+				candidates[i].add(MidiTemporalSequenceEvent.createMidiNote(48 + caseRandom.nextInt(24), 100, 0L, 96L));
+			}
+
+			if(NoteRank.hasRankedGrade(gradeModel, indexOffsets[i], candidates[i], scales[i])) {
+				scaleNotes[i] = new ArrayList<MidiNote>(scales[i].size());
+				for(Note note : scales[i].getNoteList()) {
+					MidiNote scaleNote = new MidiNote();
+					scaleNote.setNote(note);
+					scaleNotes[i].add(scaleNote);
+				}
+				i++;
+			}
+		}
+	}
+
+	@Benchmark
+	public MidiNote getNoteFromParameterAndRanking() {
+		int i = next;
+		next = (i + 1) & (CASE_COUNT - 1);
+		return NoteRank.getNoteFromParameterAndRanking(gradeModel, noteLengths[i], novelties[i], indexOffsets[i], candidates[i], scales[i], random);
+	}
+
+	@Benchmark
+	public MidiNote baselineGetNoteFromParameterAndRanking() throws MelpodySelectionProcessException {
+		int i = next;
+		next = (i + 1) & (CASE_COUNT - 1);
+		return BaselineNoteRank.getNoteFromParameterAndRanking(noteLengths[i], novelties[i], indexOffsets[i], candidates[i], scaleNotes[i]);
+	}
+
+}
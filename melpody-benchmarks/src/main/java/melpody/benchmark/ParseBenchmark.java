@@ -0,0 +1,67 @@
+package melpody.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import converter.MidiInputOutputConverter;
+import melpody.midi.track.AbstractMidiTrack;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Benchmark of {@link MidiInputOutputConverter#mapMidi(String, Class, String)}: parse of the harmony and of the melody abstraction
+ * with both parsers.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParseBenchmark {
+
+	@Param({"100", "10000", "1000000"})
+	public int noteCount;
+
+	@Param({MidiInputOutputConverter.MAPPED_PARSER, MidiInputOutputConverter.JAVAX_SOUND_PARSER})
+	public String parser;
+
+	private String harmonyFilename;
+	private String melodyAbstractionFilename;
+
+	@Setup
+	public void setup() throws IOException, InvalidMidiDataException {
+		BenchmarkInput.create();
+		harmonyFilename = BenchmarkInput.getHarmonyFile(noteCount).getPath();
+		melodyAbstractionFilename = BenchmarkInput.getMelodyAbstractionFile(noteCount).getPath();
+	}
+
+	@Benchmark
+	public AbstractMidiTrack mapHarmony() throws InvalidMidiDataException, IOException {
+		return MidiInputOutputConverter.mapMidi(harmonyFilename, HarmonyMidiTrack.class, parser);
+	}
+
+	@Benchmark
+	public AbstractMidiTrack mapMelodyAbstraction() throws InvalidMidiDataException, IOException {
+		return MidiInputOutputConverter.mapMidi(melodyAbstractionFilename, MelodyAbstraction.class, parser);
+	}
+
+}
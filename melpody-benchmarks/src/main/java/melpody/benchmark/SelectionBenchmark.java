@@ -0,0 +1,89 @@
+package melpody.benchmark;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import classifier.GradeModel;
+import classifier.GradeModelRegistry;
+import converter.MidiInputOutputConverter;
+import converter.OutputTrackWriter;
+import converter.StandardMidiFileWriter;
+import melpody.midi.scale.ModalScaleInitProcess;
+import melpody.midi.scale.ScaleTypeInitProcess;
+import melpody.midi.track.HarmonyMidiTrack;
+import melpody.midi.track.MelodyAbstraction;
+import melpody.midi.util.OutputMidiNoteSelector;
+import melpody.midi.util.SelectionResult;
+import melpody.random.SplittableRandomSource;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Benchmark of the whole selection, {@link OutputMidiNoteSelector#createOutputTrack(MelodyAbstraction, HarmonyMidiTrack, OutputTrackWriter, ModalScaleInitProcess, ScaleTypeInitProcess)},
+ * including the write of the output track in memory. The files are parsed and the harmony is analysed once, before the measures:
+ * each call selects the same melody (same seed).
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SelectionBenchmark {
+
+	@Param({"100", "10000", "1000000"})
+	public int noteCount;
+
+	private Properties properties;
+	private ModalScaleInitProcess modalScaleSelector;
+	private ScaleTypeInitProcess scaleTypeSelector;
+	private GradeModel gradeModel;
+	private HarmonyMidiTrack harmony;
+	private MelodyAbstraction melodyAbstraction;
+	private final StandardMidiFileWriter writer = new StandardMidiFileWriter();
+
+	@Setup
+	public void setup() throws IOException, InvalidMidiDataException {
+		BenchmarkInput input = BenchmarkInput.create();
+		properties = input.getProperties();
+		modalScaleSelector = input.getModalScaleSelector();
+		scaleTypeSelector = input.getScaleTypeSelector();
+		gradeModel = GradeModelRegistry.getModel(properties);
+
+		harmony = (HarmonyMidiTrack) MidiInputOutputConverter.mapMidi(BenchmarkInput.getHarmonyFile(noteCount).getPath(), HarmonyMidiTrack.class, input.getParser());
+		melodyAbstraction = (MelodyAbstraction) MidiInputOutputConverter.mapMidi(BenchmarkInput.getMelodyAbstractionFile(noteCount).getPath(), MelodyAbstraction.class, input.getParser());
+		harmony.getHarmonyAnalysis(modalScaleSelector, scaleTypeSelector);
+
+		SelectionResult result = createOutputTrack();
+		if(!result.isSatisfied()) {
+			throw new IllegalStateException("Synthetic input not compatible: " + result);
+		}
+	}
+
+	@Benchmark
+	public SelectionResult createOutputTrack() throws InvalidMidiDataException {
+		OutputMidiNoteSelector selector = new OutputMidiNoteSelector(properties, new SplittableRandomSource(BenchmarkInput.SEED), gradeModel);
+		writer.begin(melodyAbstraction.getEndOfTrack());
+		SelectionResult result = selector.createOutputTrack(melodyAbstraction, harmony, writer, modalScaleSelector, scaleTypeSelector);
+		writer.close();
+		return result;
+	}
+
+}
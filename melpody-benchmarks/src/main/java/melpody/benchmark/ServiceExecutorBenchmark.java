@@ -0,0 +1,107 @@
+package melpody.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import melpody.service.GenerationRequest;
+import melpody.service.GenerationService;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Benchmark of the threads of the requests of the {@link GenerationService} under a mixed load: each operation sends a burst of
+ * requests at the same time, each request reads the harmony and the melody abstraction files, waits ioMillis (the time of the network
+ * of a real client) and generates the melody on the pool of the service, as the HTTP requests do.
+ *
+ * With VIRTUAL each request has a virtual thread, with PLATFORM a platform thread (the executor of the service before the virtual
+ * threads): the generations always run on the pool of SERVICE_THREADS threads, so the difference is the cost of the threads waiting.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ServiceExecutorBenchmark {
+
+	@Param({"VIRTUAL", "PLATFORM"})
+	public GenerationService.RequestExecutor executor;
+
+	@Param({"1000"})
+	public int requests;
+
+	@Param({"5"})
+	public int ioMillis;
+
+	@Param({"100"})
+	public int noteCount;
+
+	private GenerationService service;
+	private ExecutorService requestExecutor;
+	private File harmonyFile;
+	private File melodyAbstractionFile;
+
+	@Setup
+	public void setup() throws IOException, InvalidMidiDataException {
+		BenchmarkInput input = BenchmarkInput.create();
+		//Le richieste passano direttamente dal pool (submit), senza il limite della coda del server
+		service = new GenerationService(input.getProperties(), input.getModalScaleSelector(), input.getScaleTypeSelector());
+		requestExecutor = executor.create("benchmark-request-");
+		harmonyFile = BenchmarkInput.getHarmonyFile(noteCount);
+		melodyAbstractionFile = BenchmarkInput.getMelodyAbstractionFile(noteCount);
+	}
+
+	@TearDown
+	public void tearDown() {
+		requestExecutor.shutdown();
+		service.stop();
+	}
+
+	@Benchmark
+	public long burst() throws Exception {
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(requests);
+		for(int i = 0; i < requests; i++) {
+			long seed = i;
+			results.add(requestExecutor.submit(() -> request(seed)));
+		}
+
+		long outputBytes = 0;
+		for(Future<byte[]> result : results) {
+			outputBytes += result.get().length;
+		}
+		return outputBytes;
+	}
+
+	private byte[] request(long seed) throws Exception {
+		ByteBuffer harmony = ByteBuffer.wrap(Files.readAllBytes(harmonyFile.toPath()));
+		ByteBuffer melodyAbstraction = ByteBuffer.wrap(Files.readAllBytes(melodyAbstractionFile.toPath()));
+		Thread.sleep(ioMillis);
+		return service.submit(new GenerationRequest(GenerationRequest.DEFAULT_NAME, harmony, melodyAbstraction, seed, null, new Properties()));
+	}
+
+}
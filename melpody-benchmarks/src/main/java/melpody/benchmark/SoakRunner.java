@@ -0,0 +1,203 @@
+package melpody.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import converter.StandardMidiFileWriter;
+import melpody.batch.BatchProcessor;
+import melpody.batch.GenerationJob;
+import melpody.batch.GenerationJobResult;
+import melpody.benchmark.corpus.CorpusGenerator;
+import melpody.benchmark.corpus.CorpusShape;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to run the whole generation (parse, harmony analysis, selection, write) of synthetic pieces of growing size for a fixed
+ * time each, and to report how the throughput and the heap scale with the number of notes.
+ *
+ * java -cp melpody-benchmarks/target/benchmarks.jar melpody.benchmark.SoakRunner [secondsPerPiece] [corpus.properties]
+ *
+ * The pieces are defined as for the {@link CorpusGenerator} ({@value #DEFAULT_SOAK_CORPUS} by default, from 1000 to 1000000 notes)
+ * and written in the directory defined by the system property melpody.benchmark.dir (the temporary directory by default).
+ * For each piece the report contains the generations completed and failed, the time of a generation, the notes per second,
+ * the peak of the heap during the generations and the heap still used after a garbage collection. For two pieces of different size
+ * the exponent is the growth of the time (or heap) with respect to the growth of the notes: 1 = linear.
+ *
+ */
+public final class SoakRunner {
+
+	public static final String DEFAULT_SOAK_CORPUS = "soak.properties";
+	private static final int DEFAULT_SECONDS_PER_PIECE = 30;
+	private static final double MEGABYTE = 1024D * 1024D;
+
+	private final Properties properties;
+	private final BenchmarkInput input;
+	private final StandardMidiFileWriter outputWriter = new StandardMidiFileWriter();
+
+	public SoakRunner(BenchmarkInput input) {
+		this.input = input;
+		this.properties = input.getProperties();
+	}
+
+	/**
+	 * Use this method to run the generations of a piece for a given time (at least one generation)
+	 * @param shape the shape of the piece
+	 * @param directory the directory of the piece (harmony and melody abstraction files)
+	 * @param outputFile the output file
+	 * @param seconds the time of the test
+	 * @return the measures of the piece
+	 */
+	public SoakResult run(CorpusShape shape, File directory, File outputFile, int seconds) {
+		GenerationJob job = new GenerationJob(shape.getName(), new File(directory, BatchProcessor.HARMONY_FILENAME),
+				new File(directory, BatchProcessor.MELODY_ABSTRACTION_FILENAME), outputFile);
+
+		System.gc();
+		long baselineHeap = getUsedHeap();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+
+		SoakResult result = new SoakResult(shape.getName());
+		long endTime = System.nanoTime() + seconds * 1000000000L;
+		do {
+			GenerationJobResult jobResult = job.run(properties, input.getModalScaleSelector(), input.getScaleTypeSelector(), outputWriter);
+			result.add(jobResult);
+		}while(System.nanoTime() < endTime);
+
+		result.peakHeap = getPeakHeap();
+		System.gc();
+		result.retainedHeap = Math.max(getUsedHeap() - baselineHeap, 0L);
+		return result;
+	}
+
+	private static long getUsedHeap() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long getPeakHeap() {
+		long peak = 0L;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * Measures of the generations of a piece
+	 */
+	public static final class SoakResult {
+
+		private final String name;
+		private int runs;
+		private int failures;
+		private int noteCount;
+		private long elapsedNanos;
+		private String firstError;
+		private long peakHeap;
+		private long retainedHeap;
+
+		private SoakResult(String name) {
+			this.name = name;
+		}
+
+		private void add(GenerationJobResult jobResult) {
+			runs++;
+			elapsedNanos += jobResult.getElapsedNanos();
+			noteCount = Math.max(noteCount, jobResult.getNoteCount());
+			if(!jobResult.isSuccessful()) {
+				failures++;
+				if(firstError == null) {
+					firstError = jobResult.getError().toString();
+				}
+			}
+		}
+
+		public int getNoteCount() {
+			return noteCount;
+		}
+
+		/**
+		 * Returns the mean time of a generation in milliseconds
+		 */
+		public double getMillisPerRun() {
+			return elapsedNanos / 1e6 / Math.max(runs, 1);
+		}
+
+		public double getNotesPerSecond() {
+			return (double) noteCount * runs / Math.max(elapsedNanos / 1e9, 1e-9);
+		}
+
+		public long getPeakHeap() {
+			return peakHeap;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-16s %10d %6d %6d %12.2f %12.0f %10.1f %10.1f", name, noteCount, runs, failures, getMillisPerRun(), getNotesPerSecond(),
+					peakHeap / MEGABYTE, retainedHeap / MEGABYTE) + (firstError != null ? "  " + firstError : "");
+		}
+	}
+
+	/**
+	 * This method writes the growth of time and heap between two pieces of different size
+	 */
+	private static String getScaling(SoakResult previous, SoakResult result) {
+		double notesRatio = Math.log((double) result.getNoteCount() / previous.getNoteCount());
+		double timeExponent = Math.log(result.getMillisPerRun() / previous.getMillisPerRun()) / notesRatio;
+		double heapExponent = Math.log((double) Math.max(result.getPeakHeap(), 1L) / Math.max(previous.getPeakHeap(), 1L)) / notesRatio;
+		return String.format("%s -> %s: time exponent %.2f, peak heap exponent %.2f", previous.name, result.name, timeExponent, heapExponent);
+	}
+
+	public static void main(String[] args) throws IOException, InvalidMidiDataException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SECONDS_PER_PIECE;
+		Properties corpus = args.length > 1 ? CorpusGenerator.loadCorpus(new File(args[1])) : loadDefaultSoakCorpus();
+
+		File soakDirectory = new File(System.getProperty(BenchmarkInput.DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir")), "melpody-soak");
+		File outputDirectory = new File(soakDirectory, "output");
+		if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("Cannot create the directory " + outputDirectory);
+		}
+
+		SoakRunner runner = new SoakRunner(BenchmarkInput.create());
+		List<CorpusShape> shapes = new CorpusGenerator().writeCorpus(corpus, soakDirectory);
+
+		System.out.println(String.format("%-16s %10s %6s %6s %12s %12s %10s %10s", "piece", "notes", "runs", "failed", "ms/run", "notes/s", "peak MB", "kept MB"));
+		List<SoakResult> results = new ArrayList<SoakResult>();
+		for(CorpusShape shape : shapes) {
+			SoakResult result = runner.run(shape, new File(soakDirectory, shape.getName()), new File(outputDirectory, shape.getName() + ".mid"), seconds);
+			results.add(result);
+			System.out.println(result);
+		}
+
+		for(int i = 1; i < results.size(); i++) {
+			if(results.get(i).getNoteCount() != results.get(i - 1).getNoteCount() && results.get(i - 1).getNoteCount() > 0) {
+				System.out.println(getScaling(results.get(i - 1), results.get(i)));
+			}
+		}
+	}
+
+	private static Properties loadDefaultSoakCorpus() throws IOException {
+		Properties corpus = new Properties();
+		try(InputStream is = SoakRunner.class.getResourceAsStream("/" + DEFAULT_SOAK_CORPUS)) {
+			if(is == null) {
+				throw new IOException(DEFAULT_SOAK_CORPUS + " not found in the classpath");
+			}
+			corpus.load(is);
+		}
+		return corpus;
+	}
+
+}
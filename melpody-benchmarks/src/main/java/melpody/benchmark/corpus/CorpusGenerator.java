@@ -0,0 +1,222 @@
+package melpody.benchmark.corpus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import converter.StandardMidiFileWriter;
+import melpody.batch.BatchProcessor;
+import melpody.midi.chord.PossibleScale;
+import melpody.midi.chord.ScaleCatalogue;
+import melpody.midi.note.Note;
+import melpody.midi.note.NoteLength;
+import melpody.midi.util.MidiTemporalSequenceEvent;
+import melpody.random.SplittableRandomSource;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to write synthetic harmonies and melody abstractions, always the same for the same seed and shape ({@link CorpusShape}).
+ *
+ * The melody abstraction moves by steps of the key of the piece, the harmony plays chords of the same key on the I, IV, V or VI grade:
+ * without a pathology each note of the melody abstraction has a compatible note, whatever is its length.
+ *
+ * A corpus is defined by a properties file: PIECES is the list of the names of the pieces (separated by ","), SEED the seed of the
+ * corpus (each piece uses the seed of the corpus and its name, as the jobs of a batch) and the shape of each piece is defined by the
+ * properties with the name of the piece as prefix. The pieces are written in subdirectories of the output directory, in the layout
+ * read by the batch mode of the program ("-batch outputDirectory"):
+ *
+ * java -cp melpody-benchmarks/target/benchmarks.jar melpody.benchmark.corpus.CorpusGenerator [corpus.properties] outputDirectory
+ *
+ * Without the properties file the default corpus ({@value #DEFAULT_CORPUS}) is written.
+ *
+ */
+public final class CorpusGenerator {
+
+	public static final String DEFAULT_CORPUS = "corpus.properties";
+	public static final String PIECES_PROPERTY = "PIECES";
+
+	private static final int[] CHORD_GRADES = {0, 3, 4, 5};
+	private static final int MELODY_KEY = 60;
+	private static final int HARMONY_KEY = 48;
+	private static final int MAX_MELODY_DEGREE = 14;
+	private static final int MIN_MELODY_DEGREE = -7;
+	private static final int MAX_CHROMATIC_OFFSET = 24;
+	private static final int MIN_CHROMATIC_OFFSET = -12;
+	private static final int VELOCITY = 100;
+
+	private final StandardMidiFileWriter writer = new StandardMidiFileWriter();
+
+	/**
+	 * Use this method to write the harmony and the melody abstraction of a piece
+	 * @param shape the shape of the piece
+	 * @param seed the seed of the random choices
+	 * @param harmonyFile the harmony file
+	 * @param melodyAbstractionFile the melody abstraction file
+	 * @return the number of notes of the melody abstraction
+	 * @throws IOException
+	 * @throws InvalidMidiDataException
+	 */
+	public int write(CorpusShape shape, long seed, File harmonyFile, File melodyAbstractionFile) throws IOException, InvalidMidiDataException {
+		SplittableRandom random = new SplittableRandom(seed);
+		Note root = shape.getRoot() != null ? shape.getRoot() : Note.values()[random.nextInt(Note.values().length)];
+		PossibleScale key = ScaleCatalogue.getScale(root, shape.getScaleType(), shape.getModalScale());
+
+		//Durate dalla piu' breve con i pesi cumulativi
+		NoteLength[] lengths = NoteLength.values();
+		int[] lengthTicks = new int[lengths.length];
+		int[] cumulativeWeights = new int[lengths.length];
+		int lengthCount = 0;
+		int totalWeight = 0;
+		for(int i = lengths.length - 1; i >= 0; i--) {
+			if(shape.getNoteLengthWeight(lengths[i]) > 0) {
+				totalWeight += shape.getNoteLengthWeight(lengths[i]);
+				lengthTicks[lengthCount] = CorpusShape.getTicks(lengths[i]);
+				cumulativeWeights[lengthCount++] = totalWeight;
+			}
+		}
+
+		//Astrazione della melodia
+		writer.begin(0L);
+		long durationTicks = shape.getDurationTicks();
+		long tick = 0L;
+		int noteCount = 0;
+		int degree = 0;
+		int chromaticOffset = 0;
+		int maxStep = shape.getMaxStep();
+		boolean chromatic = shape.getPathology() == CorpusShape.Pathology.CHROMATIC_STEPS;
+
+		while(durationTicks > 0 ? tick < durationTicks : noteCount < shape.getNoteCount()) {
+			int weight = random.nextInt(totalWeight);
+			int lengthIndex = 0;
+			while(weight >= cumulativeWeights[lengthIndex]) {
+				lengthIndex++;
+			}
+			long length = lengthTicks[lengthIndex];
+
+			int midiKey = chromatic ? MELODY_KEY + root.getOffsetFromC() + chromaticOffset : getKey(key, MELODY_KEY, degree);
+			writeNote(midiKey, tick, tick + length);
+			tick += length;
+			noteCount++;
+
+			if(chromatic) {
+				chromaticOffset += random.nextBoolean() ? 1 : -1;
+				chromaticOffset = Math.max(MIN_CHROMATIC_OFFSET, Math.min(MAX_CHROMATIC_OFFSET, chromaticOffset));
+			}else {
+				degree += random.nextInt(2 * maxStep + 1) - maxStep;
+				if(degree > MAX_MELODY_DEGREE || degree < MIN_MELODY_DEGREE) {
+					degree = Math.max(MIN_MELODY_DEGREE, Math.min(MAX_MELODY_DEGREE, degree)) - Integer.signum(degree) * maxStep;
+				}
+			}
+		}
+		writer.writeTo(melodyAbstractionFile);
+
+		//Armonia: un accordo ogni CHORD_TICKS fino alla fine della melodia
+		long endOfMelody = tick;
+		boolean gaps = shape.getPathology() == CorpusShape.Pathology.HARMONY_GAPS;
+		writer.begin(0L);
+		for(long chordTick = 0L; chordTick < endOfMelody; chordTick += shape.getChordTicks()) {
+			int grade = CHORD_GRADES[random.nextInt(CHORD_GRADES.length)];
+			if(gaps && (chordTick / CorpusShape.BAR_TICKS) % shape.getPathologyBars() == shape.getPathologyBars() - 1) {
+				continue;
+			}
+			for(int third = 0; third < shape.getPolyphony(); third++) {
+				writeNote(getKey(key, HARMONY_KEY, grade + third * 2), chordTick, chordTick + shape.getChordTicks());
+			}
+		}
+		writer.writeTo(harmonyFile);
+
+		return noteCount;
+	}
+
+	/**
+	 * Use this method to write all the pieces of a corpus, in the layout of the batch mode
+	 * @param corpus the properties of the corpus
+	 * @param outputDirectory the directory of the pieces
+	 * @return the shapes of the pieces written
+	 * @throws IOException
+	 * @throws InvalidMidiDataException
+	 */
+	public List<CorpusShape> writeCorpus(Properties corpus, File outputDirectory) throws IOException, InvalidMidiDataException {
+		long seed = Long.parseLong(corpus.getProperty(SplittableRandomSource.SEED_PROPERTY, "0").trim());
+		List<CorpusShape> shapes = getShapes(corpus);
+
+		for(CorpusShape shape : shapes) {
+			File directory = new File(outputDirectory, shape.getName());
+			if(!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create the directory " + directory);
+			}
+			write(shape, SplittableRandomSource.getJobSeed(seed, shape.getName()),
+					new File(directory, BatchProcessor.HARMONY_FILENAME), new File(directory, BatchProcessor.MELODY_ABSTRACTION_FILENAME));
+		}
+		return shapes;
+	}
+
+	/**
+	 * Use this method to read the shapes of the pieces of a corpus
+	 * @param corpus the properties of the corpus
+	 * @return the shapes, in the order of the property PIECES
+	 */
+	public static List<CorpusShape> getShapes(Properties corpus) {
+		List<CorpusShape> shapes = new ArrayList<CorpusShape>();
+		for(String name : corpus.getProperty(PIECES_PROPERTY, "").split(",")) {
+			if(!name.trim().isEmpty()) {
+				shapes.add(CorpusShape.fromProperties(corpus, name.trim()));
+			}
+		}
+		return shapes;
+	}
+
+	/**
+	 * Use this method to read the properties of a corpus
+	 * @param corpusFile the properties file, null for the default corpus
+	 * @return the properties
+	 * @throws IOException
+	 */
+	public static Properties loadCorpus(File corpusFile) throws IOException {
+		Properties corpus = new Properties();
+		try(InputStream is = corpusFile != null ? new FileInputStream(corpusFile) : CorpusGenerator.class.getResourceAsStream("/" + DEFAULT_CORPUS)) {
+			if(is == null) {
+				throw new IOException(DEFAULT_CORPUS + " not found in the classpath");
+			}
+			corpus.load(is);
+		}
+		return corpus;
+	}
+
+	/**
+	 * Returns the midi key of a degree of the scale, counted from the root of the scale in the octave of a reference key
+	 */
+	static int getKey(PossibleScale scale, int referenceKey, int degree) {
+		int size = scale.size();
+		int root = scale.getFundamentalNote().getOffsetFromC();
+		int semitones = (scale.getNote(Math.floorMod(degree, size)).getOffsetFromC() - root + 12) % 12;
+		return referenceKey + root + 12 * Math.floorDiv(degree, size) + semitones;
+	}
+
+	private void writeNote(int midiKey, long start, long end) throws InvalidMidiDataException {
+		writer.writeNote(MidiTemporalSequenceEvent.createMidiNote(midiKey, VELOCITY, start, end), start, end);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.err.println("Usage: CorpusGenerator [corpus.properties] outputDirectory");
+			System.exit(1);
+		}
+		File corpusFile = args.length > 1 ? new File(args[0]) : null;
+		File outputDirectory = new File(args[args.length - 1]);
+
+		for(CorpusShape shape : new CorpusGenerator().writeCorpus(loadCorpus(corpusFile), outputDirectory)) {
+			System.out.println("Written " + shape);
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+package melpody.benchmark.corpus;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import converter.StandardMidiFileWriter;
+import melpody.midi.note.Note;
+import melpody.midi.note.NoteLength;
+import melpody.midi.scale.ModalScale;
+import melpody.midi.scale.ScaleType;
+
+/**
+ *
+ * @author Giorgio De Luca
+ *
+ * Class to define the size and the shape of a synthetic piece (harmony and melody abstraction) written by the {@link CorpusGenerator}.
+ *
+ * The shape of a piece is read from the properties with the name of the piece as prefix (e.g. "hour.MINUTES=60"):
+ * - NOTES: number of notes of the melody abstraction (default 100), MINUTES: length of the piece at the tempo TEMPO (default 120),
+ * if defined it replaces NOTES;
+ * - KEY: key of the piece as note, type of scale and mode of the scale (e.g. "D MINOR DORIAN"), random root of a major scale by default;
+ * - CHORD_TICKS: instants of time between two chords (density of the chord changes, default one bar);
+ * - POLYPHONY: notes of each chord, stacked by thirds on a grade of the key (default 3, at most 7);
+ * - NOTE_LENGTHS: weights of the lengths of the notes of the melody abstraction (e.g. "EIGHTH_NOTE:1,QUARTER_NOTE:2");
+ * - MAX_STEP: maximum interval between two notes of the melody abstraction, in grades of the key (default 2);
+ * - PATHOLOGY: case that forces the selection to revise its choices or to fail, see {@link Pathology} (default NONE).
+ *
+ */
+public final class CorpusShape {
+
+	public static final int BAR_TICKS = 4 * StandardMidiFileWriter.RESOLUTION;
+	public static final int MAX_POLYPHONY = 7;
+
+	private static final int DEFAULT_NOTES = 100;
+	private static final int DEFAULT_TEMPO = 120;
+	private static final int DEFAULT_POLYPHONY = 3;
+	private static final int DEFAULT_MAX_STEP = 2;
+	private static final int DEFAULT_PATHOLOGY_BARS = 16;
+
+	/**
+	 * Cases that force the selection to revise its choices or to fail
+	 */
+	public enum Pathology {
+		NONE,
+		//The melody abstraction moves by semitones: the range of the following note often has no note of the scale and the choices
+		//are revised, until the maximum number of revisions (MAX_BACKTRACKS) is reached and the job fails
+		CHROMATIC_STEPS,
+		//One bar without harmony every PATHOLOGY_BARS bars (default 16): the notes ending in the bar have no compatible note, the job fails
+		HARMONY_GAPS
+	}
+
+	private final String name;
+	private int noteCount = DEFAULT_NOTES;
+	private double minutes;
+	private int tempo = DEFAULT_TEMPO;
+	private Note root;
+	private ScaleType scaleType = ScaleType.MAJOR;
+	private ModalScale modalScale = ModalScale.IONIAN;
+	private int chordTicks = BAR_TICKS;
+	private int polyphony = DEFAULT_POLYPHONY;
+	//Pesi delle durate, nell'ordine di NoteLength
+	private final int[] noteLengthWeights = new int[NoteLength.values().length];
+	private int maxStep = DEFAULT_MAX_STEP;
+	private Pathology pathology = Pathology.NONE;
+	private int pathologyBars = DEFAULT_PATHOLOGY_BARS;
+
+	private CorpusShape(String name) {
+		this.name = name;
+		noteLengthWeights[NoteLength.EIGHTH_NOTE.ordinal()] = 1;
+		noteLengthWeights[NoteLength.QUARTER_NOTE.ordinal()] = 2;
+		noteLengthWeights[NoteLength.HALF_NOTE.ordinal()] = 1;
+		noteLengthWeights[NoteLength.WHOLE_NOTE.ordinal()] = 1;
+	}
+
+	/**
+	 * Use this method to create the default shape of a piece with a given number of notes
+	 * @param name the name of the piece
+	 * @param noteCount the number of notes of the melody abstraction
+	 * @return the shape
+	 */
+	public static CorpusShape ofNotes(String name, int noteCount) {
+		CorpusShape shape = new CorpusShape(name);
+		shape.noteCount = noteCount;
+		return shape;
+	}
+
+	/**
+	 * Use this method to read the shape of a piece from the properties, the values not defined are the default values
+	 * @param properties the properties of the corpus
+	 * @param name the name of the piece, prefix of its properties
+	 * @return the shape
+	 * @throws IllegalArgumentException if a value is not valid
+	 */
+	public static CorpusShape fromProperties(Properties properties, String name) {
+		CorpusShape shape = new CorpusShape(name);
+		String prefix = name + ".";
+
+		shape.noteCount = getInt(properties, prefix + "NOTES", shape.noteCount, 1);
+		shape.minutes = Double.parseDouble(properties.getProperty(prefix + "MINUTES", "0").trim());
+		shape.tempo = getInt(properties, prefix + "TEMPO", shape.tempo, 1);
+		shape.chordTicks = getInt(properties, prefix + "CHORD_TICKS", shape.chordTicks, 1);
+		shape.polyphony = Math.min(getInt(properties, prefix + "POLYPHONY", shape.polyphony, 1), MAX_POLYPHONY);
+		shape.maxStep = getInt(properties, prefix + "MAX_STEP", shape.maxStep, 1);
+		shape.pathologyBars = getInt(properties, prefix + "PATHOLOGY_BARS", shape.pathologyBars, 2);
+		shape.pathology = Pathology.valueOf(properties.getProperty(prefix + "PATHOLOGY", shape.pathology.name()).trim());
+
+		String key = properties.getProperty(prefix + "KEY");
+		if(key != null) {
+			String[] values = key.trim().split("\\s+");
+			if(values.length != 3) {
+				throw new IllegalArgumentException(prefix + "KEY must be note, type of scale and mode of the scale: " + key);
+			}
+			shape.root = Note.getNoteFromString(values[0]);
+			if(shape.root == null) {
+				throw new IllegalArgumentException(prefix + "KEY: unknown note " + values[0]);
+			}
+			shape.scaleType = ScaleType.valueOf(values[1]);
+			shape.modalScale = ModalScale.valueOf(values[2]);
+		}
+
+		String noteLengths = properties.getProperty(prefix + "NOTE_LENGTHS");
+		if(noteLengths != null) {
+			int totalWeight = 0;
+			Arrays.fill(shape.noteLengthWeights, 0);
+			for(String value : noteLengths.split(",")) {
+				String[] lengthWeight = value.trim().split(":");
+				int weight = lengthWeight.length > 1 ? Integer.parseInt(lengthWeight[1].trim()) : 1;
+				if(weight < 0) {
+					throw new IllegalArgumentException(prefix + "NOTE_LENGTHS: negative weight " + value);
+				}
+				shape.noteLengthWeights[NoteLength.valueOf(lengthWeight[0].trim()).ordinal()] = weight;
+				totalWeight += weight;
+			}
+			if(totalWeight == 0) {
+				throw new IllegalArgumentException(prefix + "NOTE_LENGTHS: no length with a weight");
+			}
+		}
+
+		return shape;
+	}
+
+	private static int getInt(Properties properties, String key, int defaultValue, int minValue) {
+		String value = properties.getProperty(key);
+		int result = value != null ? Integer.parseInt(value.trim()) : defaultValue;
+		if(result < minValue) {
+			throw new IllegalArgumentException(key + " must be at least " + minValue + ": " + result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the duration of a length of note in instants of time (a whole note is a bar)
+	 * @param noteLength the length of the note
+	 * @return the duration
+	 */
+	public static int getTicks(NoteLength noteLength) {
+		return BAR_TICKS >> noteLength.ordinal();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getNoteCount() {
+		return noteCount;
+	}
+
+	/**
+	 * Returns the length of the piece in instants of time, 0 if the length is defined by the number of notes
+	 * @return the length of the piece
+	 */
+	public long getDurationTicks() {
+		return (long) (minutes * tempo * StandardMidiFileWriter.RESOLUTION);
+	}
+
+	/**
+	 * Returns the root of the key, null if chosen randomly
+	 */
+	public Note getRoot() {
+		return root;
+	}
+
+	public ScaleType getScaleType() {
+		return scaleType;
+	}
+
+	public ModalScale getModalScale() {
+		return modalScale;
+	}
+
+	public int getChordTicks() {
+		return chordTicks;
+	}
+
+	public int getPolyphony() {
+		return polyphony;
+	}
+
+	/**
+	 * Returns the weight of a length of note
+	 * @param noteLength the length of the note
+	 * @return the weight, 0 if the length is not used
+	 */
+	public int getNoteLengthWeight(NoteLength noteLength) {
+		return noteLengthWeights[noteLength.ordinal()];
+	}
+
+	public int getMaxStep() {
+		return maxStep;
+	}
+
+	public Pathology getPathology() {
+		return pathology;
+	}
+
+	public int getPathologyBars() {
+		return pathologyBars;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + (minutes > 0 ? minutes + " minutes" : noteCount + " notes") + ", " + (root != null ? root + " " : "") + scaleType + " " + modalScale
+				+ ", chord every " + chordTicks + " ticks, polyphony " + polyphony + ", max step " + maxStep + ", " + pathology + ")";
+	}
+
+}